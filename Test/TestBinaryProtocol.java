@@ -0,0 +1,93 @@
+import java.io.*;
+import java.util.*;
+
+// Wire format v2 between the client's BinaryCodec and the server's
+// BinaryProtocol: block ids and varints written by either side read back the
+// same on the other, in the compact form where the id has one, and ids that
+// would not survive the compact forms unchanged (uppercase hex, leading zeros)
+// travel as text.
+public class TestBinaryProtocol {
+    private static final String HEX = "0123456789abcdef0123456789abcdef";
+
+    public static void main(String[] args) throws Exception {
+        checkId(HEX, BinaryProtocol.ID_HEX, 17);
+        checkId(HEX + "_s3", BinaryProtocol.ID_HEX | BinaryProtocol.SHARD_FLAG, 18);
+        checkId(HEX + "_block_0", BinaryProtocol.ID_INDEXED, 18);
+        checkId(HEX + "_block_300", BinaryProtocol.ID_INDEXED, 19);
+        checkId(HEX + "_block_123456789", BinaryProtocol.ID_INDEXED, 21);
+        checkId(HEX + "_block_7_s12", BinaryProtocol.ID_INDEXED | BinaryProtocol.SHARD_FLAG, 19);
+        checkId(HEX + "_s0", BinaryProtocol.ID_HEX | BinaryProtocol.SHARD_FLAG, 18);
+
+        for (String text : List.of(
+                HEX.toUpperCase(),                      // uppercase hex
+                HEX.substring(0, 31) + "A",
+                HEX + "_block_007",                     // leading zeros
+                HEX + "_block_00",
+                HEX + "_s01",
+                HEX + "_block_7_s007",
+                HEX + "_block_1234567890",              // too long for the varint form
+                HEX + "_block_",
+                HEX + "_block_-1",
+                HEX.substring(1),                       // 31 hex digits
+                HEX + "0",
+                "_s3", "a_s3", "", "x", "file.txt_block_0", "\u00e9 unicode \u2713")) {
+            checkId(text, BinaryProtocol.ID_TEXT, -1);
+        }
+
+        for (int v : new int[]{0, 1, 127, 128, 300, 16383, 16384, 1 << 21, 1 << 28, Integer.MAX_VALUE}) checkVarint(v);
+        TestSupport.checkEquals(1, varintBytes(127), "127 in one byte");
+        TestSupport.checkEquals(2, varintBytes(128), "128 in two bytes");
+        TestSupport.checkEquals(5, varintBytes(Integer.MAX_VALUE), "MAX_VALUE in five bytes");
+
+        byte[] tooLong = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+        TestSupport.checkThrows(IOException.class, () -> BinaryProtocol.readVarint(in(tooLong)), "server: six-byte varint");
+        TestSupport.checkThrows(IOException.class, () -> BinaryCodec.readVarint(in(tooLong)), "client: six-byte varint");
+        TestSupport.checkThrows(IOException.class, () -> BinaryProtocol.readCount(in(bytes(o -> BinaryCodec.writeVarint(o, 11))), 10),
+                "count over its limit");
+        TestSupport.checkThrows(IOException.class, () -> BinaryProtocol.readBlockId(in(new byte[]{3}), null), "unknown id form");
+
+        byte[][] fileId = new byte[1][];
+        BinaryProtocol.readBlockId(in(bytes(o -> BinaryCodec.writeBlockId(o, HEX + "_block_4"))), fileId);
+        TestSupport.checkEquals(HEX, BinaryProtocol.fileIdText(fileId[0]), "fileId of an indexed id");
+        BinaryProtocol.readBlockId(in(bytes(o -> BinaryCodec.writeBlockId(o, "plain"))), fileId);
+        TestSupport.checkEquals(null, fileId[0], "no fileId for a text id");
+        TestSupport.passed("TestBinaryProtocol");
+    }
+
+    // Both directions, the form byte, and the encoded size (-1: not checked).
+    private static void checkId(String id, int form, int size) throws Exception {
+        byte[] fromClient = bytes(o -> BinaryCodec.writeBlockId(o, id));
+        byte[] fromServer = bytes(o -> BinaryProtocol.writeBlockId(o, id));
+        TestSupport.checkEquals(fromClient, fromServer, "same encoding of " + id);
+        TestSupport.checkEquals(form, fromClient[0] & 0xFF, "form of " + id);
+        if (size >= 0) TestSupport.checkEquals(size, fromClient.length, "size of " + id);
+        TestSupport.checkEquals(id, BinaryProtocol.readBlockId(in(fromClient), null), "server reads " + id);
+        TestSupport.checkEquals(id, BinaryCodec.readBlockId(in(fromServer)), "client reads " + id);
+    }
+
+    private static void checkVarint(int v) throws Exception {
+        byte[] fromClient = bytes(o -> BinaryCodec.writeVarint(o, v));
+        TestSupport.checkEquals(fromClient, bytes(o -> BinaryProtocol.writeVarint(o, v)), "same encoding of " + v);
+        TestSupport.checkEquals(v, BinaryProtocol.readVarint(in(fromClient)), "server reads " + v);
+        TestSupport.checkEquals(v, BinaryCodec.readVarint(in(fromClient)), "client reads " + v);
+        TestSupport.checkEquals(v, BinaryProtocol.readCount(in(fromClient), Integer.MAX_VALUE), "count " + v);
+    }
+
+    private static int varintBytes(int v) throws Exception {
+        return bytes(o -> BinaryCodec.writeVarint(o, v)).length;
+    }
+
+    interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] bytes(Writer w) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        w.write(new DataOutputStream(b));
+        return b.toByteArray();
+    }
+
+    private static DataInputStream in(byte[] b) {
+        return new DataInputStream(new ByteArrayInputStream(b));
+    }
+}
@@ -0,0 +1,84 @@
+import crypto.CryptoFactory;
+import crypto.CryptoSuite;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// BlockCodec: text is stored DEFLATE and random data RAW, both open back to the
+// same bytes, the codec byte is covered by the AAD, and a codec that stops
+// compressing still stores and opens every chunk.
+public class TestBlockCodec {
+
+    public static void main(String[] args) throws Exception {
+        byte[] key = new byte[32];
+        new Random(5).nextBytes(key);
+        CryptoSuite suite = CryptoFactory.build(new CryptoFactory.Config("AES_GCM", 256, 256), key);
+        byte[] aad = "chunk aad".getBytes();
+
+        byte[] text = "2024-01-01 INFO request served in 3 ms\n".repeat(500).getBytes();
+        byte[] random = new byte[text.length];
+        new Random(6).nextBytes(random);
+
+        BlockCodec codec = new BlockCodec(suite, true);
+        byte[] packed = codec.seal(text, text.length, aad);
+        TestSupport.checkEquals(BlockCodec.DEFLATE, packed[0], "text codec");
+        TestSupport.check(packed.length < text.length / 4, "text compressed: " + packed.length);
+        TestSupport.checkEquals(text, open(suite, packed, aad, text.length), "text back");
+
+        byte[] raw = codec.seal(random, random.length, aad);
+        TestSupport.checkEquals(BlockCodec.RAW, raw[0], "random data codec");
+        TestSupport.checkEquals(1 + suite.encryptedLength(random.length), raw.length, "random data stored as is");
+        TestSupport.checkEquals(random, open(suite, raw, aad, random.length), "random data back");
+
+        // only the first len bytes of the buffer are the chunk
+        byte[] longer = Arrays.copyOf(text, text.length + 100);
+        TestSupport.checkEquals(text, open(suite, codec.seal(longer, text.length, aad), aad, text.length), "partial buffer");
+        TestSupport.checkEquals(new byte[0], open(suite, codec.seal(new byte[0], 0, aad), aad, 0), "empty chunk");
+
+        BlockCodec off = new BlockCodec(suite, false);
+        byte[] uncompressed = off.seal(text, text.length, aad);
+        TestSupport.checkEquals(BlockCodec.RAW, uncompressed[0], "compression off");
+        TestSupport.checkEquals(text, open(suite, uncompressed, aad, text.length), "compression off, back");
+
+        flipped(suite, packed, aad);
+        flipped(suite, raw, aad);
+        bypass(suite, aad, text, random);
+        TestSupport.passed("TestBlockCodec");
+    }
+
+    // A changed codec byte or AAD fails authentication.
+    private static void flipped(CryptoSuite suite, byte[] blob, byte[] aad) {
+        byte[] other = blob.clone();
+        other[0] = (byte) (other[0] == BlockCodec.RAW ? BlockCodec.DEFLATE : BlockCodec.RAW);
+        TestSupport.checkThrows(Exception.class, () -> open(suite, other, aad, 1 << 16), "codec byte flipped");
+        byte[] otherAad = aad.clone();
+        otherAad[0] ^= 1;
+        TestSupport.checkThrows(Exception.class, () -> open(suite, blob, otherAad, 1 << 16), "other aad");
+    }
+
+    // After a run of random chunks the codec tries compression only now and then,
+    // and text turns it back on; every chunk opens either way.
+    private static void bypass(CryptoSuite suite, byte[] aad, byte[] text, byte[] random) throws Exception {
+        BlockCodec codec = new BlockCodec(suite, true);
+        for (int i = 0; i < 10; i++) {
+            byte[] blob = codec.seal(random, random.length, aad);
+            TestSupport.checkEquals(random, open(suite, blob, aad, random.length), "random chunk " + i);
+        }
+        int compressed = 0;
+        for (int i = 0; i < 40; i++) {
+            byte[] blob = codec.seal(text, text.length, aad);
+            if (blob[0] == BlockCodec.DEFLATE) compressed++;
+            TestSupport.checkEquals(text, open(suite, blob, aad, text.length), "text chunk " + i);
+        }
+        TestSupport.check(compressed > 1, "compression back on after a sample shrank: " + compressed);
+        TestSupport.check(codec.packedBytes() < codec.plainBytes(), "packed bytes counted");
+    }
+
+    private static byte[] open(CryptoSuite suite, byte[] blob, byte[] aad, int size) throws Exception {
+        ByteBuffer plain = ByteBuffer.allocate(size + 8);
+        plain.position(3);
+        int n = BlockCodec.open(suite, blob, aad, plain);
+        TestSupport.checkEquals(3 + n, plain.position(), "position after open");
+        return Arrays.copyOfRange(plain.array(), 3, 3 + n);
+    }
+}
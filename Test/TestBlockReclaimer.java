@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+// BlockReclaimer: blocks stay queued while their delete fails, blocks queued
+// before a restart are reclaimed after it, a block stored again after its delete
+// was logged survives the restart, and a log torn in the middle of a record
+// loses only that record.
+public class TestBlockReclaimer {
+
+    public static void main(String[] args) throws Exception {
+        reclaimedAfterRestart();
+        storedAgainSurvives();
+        tornLog();
+        TestSupport.passed("TestBlockReclaimer");
+    }
+
+    private static void reclaimedAfterRestart() throws Exception {
+        Path dir = TestSupport.tempDir("reclaim-test");
+        try {
+            Stalled store = new Stalled(dir);
+            Path log = dir.resolve("reclaim.log");
+            List<String> ids = put(store, "a", 10);
+            List<String> removed = Collections.synchronizedList(new ArrayList<>());
+            try (BlockReclaimer reclaimer = new BlockReclaimer(store, log, 1000, removed::add)) {
+                reclaimer.enqueue(ids);
+                for (String id : ids) TestSupport.check(reclaimer.isPending(id), id + " pending");
+                TestSupport.checkEquals(ids, removed, "queued blocks reported");
+            }
+            TestSupport.check(store.contains(ids.get(0)), "nothing deleted while the store fails");
+
+            store.stalled = false;
+            try (BlockReclaimer reclaimer = new BlockReclaimer(store, log, 1000, id -> {})) {
+                awaitGone(store, ids);
+                awaitEmpty(log);
+                TestSupport.check(!reclaimer.isPending(ids.get(0)), "reclaimed block no longer pending");
+            }
+        } finally {
+            TestSupport.deleteTree(dir);
+        }
+    }
+
+    private static void storedAgainSurvives() throws Exception {
+        Path dir = TestSupport.tempDir("reclaim-test");
+        try {
+            Stalled store = new Stalled(dir);
+            Path log = dir.resolve("reclaim.log");
+            List<String> ids = put(store, "b", 5);
+            String again = ids.get(2);
+            byte[] data = "stored again".getBytes();
+            try (BlockReclaimer reclaimer = new BlockReclaimer(store, log, 1000, id -> {})) {
+                reclaimer.enqueue(ids);
+                reclaimer.store(again, () -> store.put(again, data));
+                TestSupport.check(!reclaimer.isPending(again), "stored block taken off the queue");
+                TestSupport.check(reclaimer.isPending(ids.get(0)), "other blocks still queued");
+            }
+
+            store.stalled = false;
+            List<String> others = new ArrayList<>(ids);
+            others.remove(again);
+            try (BlockReclaimer reclaimer = new BlockReclaimer(store, log, 1000, id -> {})) {
+                TestSupport.check(!reclaimer.isPending(again), "stored block not queued after the restart");
+                awaitGone(store, others);
+                awaitEmpty(log);
+            }
+            TestSupport.checkEquals(data, store.get(again), "block stored again survives");
+        } finally {
+            TestSupport.deleteTree(dir);
+        }
+    }
+
+    private static void tornLog() throws Exception {
+        Path dir = TestSupport.tempDir("reclaim-test");
+        try {
+            Stalled store = new Stalled(dir);
+            Path log = dir.resolve("reclaim.log");
+            List<String> ids = put(store, "c", 3);
+            try (BlockReclaimer reclaimer = new BlockReclaimer(store, log, 1000, id -> {})) {
+                reclaimer.enqueue(ids);
+            }
+            long whole = Files.size(log);
+            // a crash in the middle of a record: op, id length 5, one byte of the id
+            Files.write(log, new byte[]{0, 0, 5, 'c'}, StandardOpenOption.APPEND);
+
+            store.stalled = false;
+            try (BlockReclaimer reclaimer = new BlockReclaimer(store, log, 1000, id -> {})) {
+                TestSupport.checkEquals(whole, Files.size(log), "torn record cut off");
+                awaitGone(store, ids);
+                List<String> more = put(store, "d", 2);
+                reclaimer.enqueue(more);
+                awaitGone(store, more);
+                awaitEmpty(log);
+            }
+        } finally {
+            TestSupport.deleteTree(dir);
+        }
+    }
+
+    private static List<String> put(BlockStore store, String prefix, int n) throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ids.add(prefix + i);
+            store.put(prefix + i, ("block " + prefix + i).getBytes());
+        }
+        return ids;
+    }
+
+    private static void awaitGone(BlockStore store, List<String> ids) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        for (String id : ids) {
+            while (store.contains(id) && System.currentTimeMillis() < deadline) Thread.sleep(20);
+            TestSupport.check(!store.contains(id), id + " reclaimed");
+        }
+    }
+
+    private static void awaitEmpty(Path log) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.size(log) > 0 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+        TestSupport.checkEquals(0L, Files.size(log), "log emptied with the queue");
+    }
+
+    // A FILE store whose deletes fail while stalled, so queued blocks stay queued.
+    private static final class Stalled implements BlockStore {
+        private final FileBlockStore store;
+        volatile boolean stalled = true;
+
+        Stalled(Path dir) {
+            store = new FileBlockStore(dir.resolve("blocks").toFile());
+        }
+
+        @Override
+        public void put(String blockId, byte[] data) throws IOException {
+            store.put(blockId, data);
+        }
+
+        @Override
+        public byte[] get(String blockId) throws IOException {
+            return store.get(blockId);
+        }
+
+        @Override
+        public Region region(String blockId) throws IOException {
+            return store.region(blockId);
+        }
+
+        @Override
+        public boolean contains(String blockId) throws IOException {
+            return store.contains(blockId);
+        }
+
+        @Override
+        public void delete(String blockId) throws IOException {
+            if (stalled) throw new IOException("stalled");
+            store.delete(blockId);
+        }
+
+        @Override
+        public Collection<String> blockIds() throws IOException {
+            return store.blockIds();
+        }
+
+        @Override
+        public void close() throws IOException {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.nio.file.*;
+import java.util.*;
+
+// Chunker: chunks cover the file in order within the size bounds, ids are the
+// chunk fingerprints, the thread count does not change the result, and an edit
+// in the middle of a file changes only the chunks around it.
+public class TestChunker {
+
+    public static void main(String[] args) throws Exception {
+        byte[] key = new byte[32];
+        new Random(9).nextBytes(key);
+        Chunker chunker = new Chunker(key);
+        Path dir = TestSupport.tempDir("chunker-test");
+        try {
+            byte[] data = new byte[3 << 20];
+            new Random(10).nextBytes(data);
+            Path file = dir.resolve("file");
+            Files.write(file, data);
+
+            for (int avg : new int[]{Chunker.DEFAULT_SIZE, 64 * 1024}) {
+                Chunker c = chunker.withAverage(avg);
+                List<Chunker.Chunk> chunks = c.scan(file, 4, 16);
+                checkChunks(c, data, chunks, avg / 2, Chunker.maxChunk(avg), "average " + avg);
+                TestSupport.checkEquals(chunks, c.scan(file, 1, 1), "one thread, average " + avg);
+                edits(c, dir, data, chunks, "average " + avg);
+            }
+            TestSupport.check(!chunker.withAverage(64 * 1024).scan(file, 2, 4).equals(chunker.scan(file, 2, 4)),
+                    "another average cuts elsewhere");
+
+            byte[] otherKey = key.clone();
+            otherKey[0] ^= 1;
+            List<Chunker.Chunk> mine = chunker.scan(file, 2, 4), other = new Chunker(otherKey).scan(file, 2, 4);
+            TestSupport.check(!offsets(mine).equals(offsets(other)), "another key cuts elsewhere");
+
+            Path empty = dir.resolve("empty");
+            Files.write(empty, new byte[0]);
+            TestSupport.checkEquals(List.of(), chunker.scan(empty, 2, 4), "empty file");
+            Path small = dir.resolve("small");
+            Files.write(small, Arrays.copyOf(data, 100));
+            TestSupport.checkEquals(1, chunker.scan(small, 2, 4).size(), "small file is one chunk");
+
+            for (int bad : new int[]{512, 3000, 2 << 20})
+                TestSupport.checkThrows(IllegalArgumentException.class, () -> chunker.withAverage(bad), "average " + bad);
+        } finally {
+            TestSupport.deleteTree(dir);
+        }
+        TestSupport.passed("TestChunker");
+    }
+
+    private static void checkChunks(Chunker c, byte[] data, List<Chunker.Chunk> chunks, int min, int max, String what) {
+        long offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunker.Chunk ch = chunks.get(i);
+            TestSupport.checkEquals(offset, ch.offset(), what + " chunk " + i + " offset");
+            boolean last = i == chunks.size() - 1;
+            TestSupport.check(ch.length() <= max && (last || ch.length() > min), what + " chunk " + i + " length " + ch.length());
+            TestSupport.checkEquals(c.fingerprint(data, (int) offset, ch.length()), ch.id(), what + " chunk " + i + " id");
+            offset += ch.length();
+        }
+        TestSupport.checkEquals((long) data.length, offset, what + " chunks cover the file");
+    }
+
+    // Bytes inserted, overwritten and removed at the middle of the file.
+    private static void edits(Chunker c, Path dir, byte[] data, List<Chunker.Chunk> before, String what) throws Exception {
+        int at = data.length / 2;
+        byte[] inserted = new byte[at + 100 + (data.length - at)];
+        System.arraycopy(data, 0, inserted, 0, at);
+        Arrays.fill(inserted, at, at + 100, (byte) 'x');
+        System.arraycopy(data, at, inserted, at + 100, data.length - at);
+        byte[] overwritten = data.clone();
+        Arrays.fill(overwritten, at, at + 10, (byte) 0);
+        byte[] removed = new byte[data.length - 100];
+        System.arraycopy(data, 0, removed, 0, at);
+        System.arraycopy(data, at + 100, removed, at, data.length - at - 100);
+
+        Map<String, byte[]> edited = Map.of("insert", inserted, "overwrite", overwritten, "remove", removed);
+        for (Map.Entry<String, byte[]> e : edited.entrySet()) {
+            Path file = dir.resolve(e.getKey());
+            Files.write(file, e.getValue());
+            List<Chunker.Chunk> after = c.scan(file, 4, 16);
+            String how = what + ", " + e.getKey();
+
+            // every chunk that ends before the edit is unchanged
+            int same = 0;
+            while (same < before.size() && before.get(same).offset() + before.get(same).length() <= at) {
+                TestSupport.checkEquals(before.get(same), after.get(same), how + " chunk " + same);
+                same++;
+            }
+            // and after it the old cut points come back within a few chunks
+            Set<String> old = new HashSet<>(ids(before));
+            long changed = ids(after).stream().filter(id -> !old.contains(id)).count();
+            TestSupport.check(changed >= 1 && changed <= 3, how + ": " + changed + " new chunks");
+            TestSupport.checkEquals(ids(before).subList(before.size() - 10, before.size()),
+                    ids(after).subList(after.size() - 10, after.size()), how + " tail chunks");
+        }
+    }
+
+    private static List<String> ids(List<Chunker.Chunk> chunks) {
+        return chunks.stream().map(Chunker.Chunk::id).toList();
+    }
+
+    private static List<Long> offsets(List<Chunker.Chunk> chunks) {
+        return chunks.stream().map(Chunker.Chunk::offset).toList();
+    }
+}
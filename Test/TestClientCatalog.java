@@ -0,0 +1,153 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// ClientCatalog: entries come back after a reopen by filename and by fileId, a
+// newer upload under the same filename hides the older one, and a torn or
+// corrupt last record is dropped on reopen and overwritten by the next append.
+// Large catalogs are compacted once most of their records are replaced or
+// deleted, and open from their checkpoint, which a stale one cannot mislead.
+public class TestClientCatalog {
+
+    public static void main(String[] args) throws Exception {
+        Path dir = TestSupport.tempDir("catalog-test");
+        try {
+            Path file = dir.resolve("catalog.dat");
+            Map<String, ClientCatalog.Entry> expected = new LinkedHashMap<>();
+            try (ClientCatalog catalog = new ClientCatalog(file)) {
+                TestSupport.check(catalog.isEmpty(), "new catalog is empty");
+                List<ClientCatalog.Entry> batch = new ArrayList<>();
+                for (int i = 0; i < 3000; i++) batch.add(entry("file" + i, i, List.of("kw" + i % 7, "all")));
+                catalog.addAll(batch);
+                for (ClientCatalog.Entry e : batch) expected.put(e.filename(), e);
+                add(catalog, expected, entry("file5", 5000, List.of("replaced")));
+            }
+            try (ClientCatalog catalog = new ClientCatalog(file)) {
+                checkContents(catalog, expected);
+                TestSupport.checkEquals(null, catalog.byFileId(fileId(5)), "replaced upload's fileId");
+                TestSupport.checkEquals(null, catalog.byFileId("not hex"), "bad fileId");
+                add(catalog, expected, entry("last", 6000, List.of()));
+            }
+
+            // a crash halfway through the last record
+            long size = Files.size(file);
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(size - 5);
+            }
+            expected.remove("last");
+            try (ClientCatalog catalog = new ClientCatalog(file)) {
+                checkContents(catalog, expected);
+                add(catalog, expected, entry("after torn", 6001, List.of("x")));
+            }
+            TestSupport.check(Files.size(file) < size + 10, "append overwrote the torn record: " + Files.size(file));
+            try (ClientCatalog catalog = new ClientCatalog(file)) {
+                checkContents(catalog, expected);
+                add(catalog, expected, entry("corrupt", 6002, List.of()));
+            }
+
+            // a last record whose bytes do not match its crc
+            size = Files.size(file);
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.write(ByteBuffer.wrap(new byte[]{'?'}), size - 1);
+            }
+            expected.remove("corrupt");
+            try (ClientCatalog catalog = new ClientCatalog(file)) {
+                checkContents(catalog, expected);
+                add(catalog, expected, entry("corrupt", 6003, List.of("again")));
+            }
+            try (ClientCatalog catalog = new ClientCatalog(file)) {
+                checkContents(catalog, expected);
+            }
+
+            compaction(dir);
+        } finally {
+            TestSupport.deleteTree(dir);
+        }
+        TestSupport.passed("TestClientCatalog");
+    }
+
+    // Uploads of 1000 chunks (16 KB records) replaced over and over.
+    private static void compaction(Path dir) throws Exception {
+        Path file = dir.resolve("big.dat"), end = dir.resolve("big.dat.end"), temp = dir.resolve("big.dat.compact");
+        Map<String, ClientCatalog.Entry> expected = new LinkedHashMap<>();
+        List<byte[]> checkpoints = new ArrayList<>(); // of earlier layouts of the file
+        long appended = 0;
+        try (ClientCatalog catalog = new ClientCatalog(file)) {
+            for (int round = 0; round < 4; round++) {
+                for (int i = 0; i < 40; i++) {
+                    add(catalog, expected, chunked("big" + i, round * 100 + i));
+                    appended += 16_000;
+                    if (i % 10 == 0 && Files.exists(end)) checkpoints.add(Files.readAllBytes(end));
+                }
+            }
+            catalog.remove(List.of("big3", "big7"));
+            expected.remove("big3");
+            expected.remove("big7");
+            checkContents(catalog, expected);
+        }
+        TestSupport.check(Files.size(file) < appended * 6 / 10, "compacted: " + Files.size(file) + " of " + appended);
+        TestSupport.check(Files.exists(end), "checkpoint written");
+        TestSupport.check(!Files.exists(temp), "no compaction file left");
+
+        Files.write(temp, new byte[100]); // a compaction cut short before its rename
+        try (ClientCatalog catalog = new ClientCatalog(file)) {
+            checkContents(catalog, expected);
+            TestSupport.checkEquals(null, catalog.byFileId(fileId(3)), "deleted upload's fileId");
+            add(catalog, expected, entry("tail", 9000, List.of()));
+        }
+        TestSupport.check(!Files.exists(temp), "compaction file removed on open");
+
+        // past the checkpoint, a torn record is still found
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 5);
+        }
+        expected.remove("tail");
+        try (ClientCatalog catalog = new ClientCatalog(file)) {
+            checkContents(catalog, expected);
+        }
+
+        // checkpoints of earlier layouts, wrong or torn ones are ignored
+        TestSupport.check(checkpoints.size() > 2, "checkpoints along the way: " + checkpoints.size());
+        checkpoints.add(ByteBuffer.allocate(12).putInt(0).putInt((int) Files.size(file)).putInt(7).array());
+        checkpoints.add(new byte[12]);
+        checkpoints.add(new byte[5]);
+        for (byte[] stale : checkpoints) {
+            Files.write(end, stale);
+            try (ClientCatalog catalog = new ClientCatalog(file)) {
+                checkContents(catalog, expected);
+            }
+        }
+    }
+
+    private static ClientCatalog.Entry chunked(String name, int id) {
+        List<String> chunks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) chunks.add(String.format("%08x%024x", id, i));
+        return new ClientCatalog.Entry(name, fileId(id), chunks.size(), List.of("k"), chunks, true, null,
+                ClientCore.BLOCK_SIZE, null);
+    }
+
+    private static ClientCatalog.Entry entry(String name, int id, List<String> keywords) {
+        return new ClientCatalog.Entry(name, fileId(id), 1 + id % 5, keywords);
+    }
+
+    private static String fileId(int id) {
+        return String.format("%032x", id);
+    }
+
+    private static void add(ClientCatalog catalog, Map<String, ClientCatalog.Entry> expected, ClientCatalog.Entry e)
+            throws Exception {
+        catalog.addAll(List.of(e));
+        expected.remove(e.filename()); // a replaced name moves to the end
+        expected.put(e.filename(), e);
+    }
+
+    private static void checkContents(ClientCatalog catalog, Map<String, ClientCatalog.Entry> expected) {
+        TestSupport.checkEquals(new ArrayList<>(expected.keySet()), catalog.filenames(), "filenames");
+        for (ClientCatalog.Entry e : expected.values()) {
+            TestSupport.checkEquals(e, catalog.byName(e.filename()), "by name " + e.filename());
+            TestSupport.checkEquals(e, catalog.byFileId(e.fileId()), "by fileId " + e.filename());
+        }
+        TestSupport.checkEquals(null, catalog.byName("nosuch"), "unknown name");
+    }
+}
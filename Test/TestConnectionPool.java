@@ -0,0 +1,97 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+
+// ConnectionPool against a scripted text-protocol server: while a new connection
+// waits for its HELLO reply, requests still go out on the open one, and a
+// server that accepts but never answers fails the request instead of hanging it.
+public class TestConnectionPool {
+    private static final long HELLO_DELAY_MS = 1500;
+
+    public static void main(String[] args) throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread accepter = new Thread(() -> serve(server), "fake-server");
+            accepter.setDaemon(true);
+            accepter.start();
+            try (ConnectionPool pool = new ConnectionPool("localhost", server.getLocalPort(), 2, 2)) {
+                CompletableFuture<String> slow = send(pool, "SLOW");     // opens connection 1 and keeps it busy
+                CompletableFuture<CompletableFuture<String>> opening =
+                        CompletableFuture.supplyAsync(() -> send(pool, "PING")); // opens connection 2, HELLO held back
+                Thread.sleep(300);
+                long t = System.nanoTime();
+                CompletableFuture<String> meanwhile = send(pool, "PING");
+                long ms = (System.nanoTime() - t) / 1_000_000;
+                TestSupport.check(ms < HELLO_DELAY_MS / 2, "sent on the open connection in " + ms + " ms");
+                TestSupport.check(!opening.isDone(), "second connection still opening");
+                TestSupport.checkEquals("SLOW done", ConnectionPool.await(slow), "slow reply");
+                TestSupport.checkEquals("PONG", ConnectionPool.await(meanwhile), "reply on the open connection");
+                TestSupport.checkEquals("PONG", ConnectionPool.await(ConnectionPool.await(opening)), "reply on the new connection");
+            }
+        }
+
+        try (ServerSocket silent = new ServerSocket(0)) {
+            Thread accepter = new Thread(() -> {
+                try {
+                    while (true) silent.accept(); // and never a word
+                } catch (IOException ignored) {
+                }
+            }, "silent-server");
+            accepter.setDaemon(true);
+            accepter.start();
+            try (ConnectionPool pool = new ConnectionPool("localhost", silent.getLocalPort(), 1, 2)) {
+                long t = System.nanoTime();
+                TestSupport.checkThrows(IOException.class, () -> ConnectionPool.await(send(pool, "PING")), "no HELLO reply");
+                long ms = (System.nanoTime() - t) / 1_000_000;
+                TestSupport.check(ms < 10_000, "gave up after " + ms + " ms");
+            }
+        }
+        TestSupport.passed("TestConnectionPool");
+    }
+
+    private static CompletableFuture<String> send(ConnectionPool pool, String command) {
+        return pool.send(out -> out.writeUTF(command), DataInput::readUTF,
+                out -> {
+                    throw new IOException("no binary protocol here");
+                }, DataInput::readUTF);
+    }
+
+    // Answers HELLO like a server from before it (at once on the first connection,
+    // late on the next), then SLOW after a while and anything else with PONG.
+    private static void serve(ServerSocket server) {
+        try {
+            for (int n = 0; ; n++) {
+                Socket s = server.accept();
+                long helloDelay = n == 0 ? 0 : HELLO_DELAY_MS;
+                Thread t = new Thread(() -> session(s, helloDelay), "fake-session");
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void session(Socket s, long helloDelay) {
+        try (s) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            while (true) {
+                String word = in.readUTF();
+                if (word.startsWith("HELLO")) {
+                    Thread.sleep(helloDelay);
+                    out.writeUTF("ERROR: Unknown command");
+                } else if (word.equals("REQ")) {
+                    int id = in.readInt();
+                    String command = in.readUTF();
+                    if (command.equals("SLOW")) Thread.sleep(2 * HELLO_DELAY_MS);
+                    out.writeInt(id);
+                    out.writeUTF(command.equals("SLOW") ? "SLOW done" : "PONG");
+                } else {
+                    return; // EXIT
+                }
+                out.flush();
+            }
+        } catch (IOException | InterruptedException ignored) {
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import crypto.CryptoFactory;
+import crypto.CryptoSuite;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// CryptoSuite, for all three suites: the ByteBuffer API writes the same blob as
+// the original byte[] suites (iv/nonce || ciphertext || tag/mac, rebuilt here
+// with plain JCE calls and the iv taken from the blob), each side decrypts the
+// other's blobs, buffer offsets and direct buffers work, and a changed blob or
+// aad is rejected.
+public class TestCryptoSuite {
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(3);
+        byte[] dataKey = new byte[32], macKey = new byte[32];
+        random.nextBytes(dataKey);
+        random.nextBytes(macKey);
+        for (String alg : List.of("AES_GCM", "AES_CBC_HMAC", "CHACHA20_POLY1305")) {
+            CryptoSuite suite = CryptoFactory.build(new CryptoFactory.Config(alg, 256, 256), dataKey, macKey);
+            for (int size : new int[]{0, 1, 15, 16, 17, 1000, 65536}) {
+                byte[] plain = new byte[size], aad = new byte[1 + random.nextInt(40)];
+                random.nextBytes(plain);
+                random.nextBytes(aad);
+                String what = alg + " " + size + " bytes";
+                sameAsOriginal(suite, alg, dataKey, macKey, plain, aad, what);
+                buffers(suite, plain, aad, what);
+                rejected(suite, plain, aad, what);
+            }
+            byte[] blob = suite.encrypt("no aad".getBytes(), null);
+            TestSupport.checkEquals("no aad", new String(suite.decrypt(blob, null)), alg + " null aad");
+        }
+        TestSupport.passed("TestCryptoSuite");
+    }
+
+    private static void sameAsOriginal(CryptoSuite suite, String alg, byte[] dataKey, byte[] macKey,
+                                       byte[] plain, byte[] aad, String what) throws Exception {
+        byte[] blob = suite.encrypt(plain, aad);
+        TestSupport.checkEquals(suite.encryptedLength(plain.length), blob.length, what + " encryptedLength");
+        int ivLen = alg.equals("AES_CBC_HMAC") ? 16 : 12;
+        byte[] iv = Arrays.copyOf(blob, ivLen);
+        TestSupport.checkEquals(original(alg, dataKey, macKey, iv, plain, aad), blob, what + " blob");
+        TestSupport.checkEquals(plain, suite.decrypt(blob, aad), what + " decrypt");
+
+        byte[] otherIv = new byte[ivLen];
+        new Random(plain.length).nextBytes(otherIv);
+        TestSupport.checkEquals(plain, suite.decrypt(original(alg, dataKey, macKey, otherIv, plain, aad), aad),
+                what + " decrypt of an original blob");
+    }
+
+    // The blob as the byte[] suites before the buffer API wrote it.
+    private static byte[] original(String alg, byte[] dataKey, byte[] macKey, byte[] iv, byte[] plain, byte[] aad)
+            throws Exception {
+        byte[] body;
+        switch (alg) {
+            case "AES_GCM" -> {
+                Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+                c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(dataKey, "AES"), new GCMParameterSpec(128, iv));
+                c.updateAAD(aad);
+                body = c.doFinal(plain);
+            }
+            case "AES_CBC_HMAC" -> {
+                Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(dataKey, "AES"), new IvParameterSpec(iv));
+                byte[] ct = c.doFinal(plain);
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+                mac.update(aad);
+                mac.update(iv);
+                mac.update(ct);
+                byte[] tag = mac.doFinal();
+                body = Arrays.copyOf(ct, ct.length + tag.length);
+                System.arraycopy(tag, 0, body, ct.length, tag.length);
+            }
+            default -> {
+                Cipher c = Cipher.getInstance("ChaCha20-Poly1305");
+                c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(dataKey, "ChaCha20"), new IvParameterSpec(iv));
+                c.updateAAD(aad);
+                body = c.doFinal(plain);
+            }
+        }
+        byte[] blob = Arrays.copyOf(iv, iv.length + body.length);
+        System.arraycopy(body, 0, blob, iv.length, body.length);
+        return blob;
+    }
+
+    // Input and output in the middle of larger buffers, heap and direct.
+    private static void buffers(CryptoSuite suite, byte[] plain, byte[] aad, String what) throws Exception {
+        for (boolean direct : new boolean[]{false, true}) {
+            ByteBuffer in = allocate(plain.length + 10, direct);
+            in.position(7);
+            in.put(plain).flip().position(7);
+            ByteBuffer blob = allocate(suite.encryptedLength(plain.length) + 5, direct);
+            blob.position(3);
+            int n = suite.encrypt(in, ByteBuffer.wrap(aad), blob);
+            TestSupport.checkEquals(suite.encryptedLength(plain.length), n, what + " bytes written");
+            TestSupport.checkEquals(3 + n, blob.position(), what + " out position");
+
+            blob.flip().position(3);
+            ByteBuffer out = allocate(suite.maxDecryptedLength(n) + 4, direct);
+            out.position(4);
+            int m = suite.decrypt(blob, ByteBuffer.wrap(aad), out);
+            byte[] back = new byte[m];
+            out.flip().position(4);
+            out.get(back);
+            TestSupport.checkEquals(plain, back, what + (direct ? " direct" : " heap") + " buffers");
+        }
+    }
+
+    private static void rejected(CryptoSuite suite, byte[] plain, byte[] aad, String what) throws Exception {
+        byte[] blob = suite.encrypt(plain, aad);
+        for (int at : new int[]{0, blob.length / 2, blob.length - 1}) {
+            byte[] tampered = blob.clone();
+            tampered[at] ^= 1;
+            TestSupport.checkThrows(Exception.class, () -> suite.decrypt(tampered, aad), what + " byte " + at + " changed");
+        }
+        byte[] otherAad = aad.clone();
+        otherAad[0] ^= 1;
+        TestSupport.checkThrows(Exception.class, () -> suite.decrypt(blob, otherAad), what + " other aad");
+        TestSupport.checkThrows(Exception.class, () -> suite.decrypt(Arrays.copyOf(blob, 8), aad), what + " short blob");
+    }
+
+    private static ByteBuffer allocate(int n, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(n) : ByteBuffer.allocate(n);
+    }
+}
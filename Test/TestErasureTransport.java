@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// ErasureTransport over in-memory servers: a write that misses some servers
+// leaves their shards of the block from the earlier write, and a read decodes
+// only from shards of one version (never a mix, even of equal-length blobs),
+// the one with the most shards, while fetchOther hands out the other versions
+// for a download that cannot decrypt the first.
+public class TestErasureTransport {
+    private static final String ID = "0123456789abcdef0123456789abcdef_block_0";
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(5);
+        byte[] a = blob(random, 1000), b = blob(random, 1000), c = blob(random, 999);
+
+        // 4 + 2: the second write reaches 4 servers, the first keeps 2 shards
+        List<Memory> six = servers(6);
+        try (ErasureTransport t = new ErasureTransport(six, 4, 2)) {
+            TestSupport.checkEquals(null, fetch(t, ID), "block never stored");
+            TestSupport.checkEquals("OK", t.store(ID, a).join(), "first write");
+            TestSupport.checkEquals(a, fetch(t, ID), "first write read back");
+            down(six, 0, 3);
+            TestSupport.check(!"OK".equals(t.store(ID, b).join()), "second write misses two servers");
+            up(six);
+            for (int slow = 0; slow < 6; slow++) { // whichever k shards come first
+                six.get(slow).slow = true;
+                TestSupport.checkEquals(b, fetch(t, ID), "newer version, slow server " + slow);
+                six.get(slow).slow = false;
+            }
+            TestSupport.checkEquals(null, t.fetchOther(ID, List.of(b)).join(), "2 shards of the first write are too few");
+
+            down(six, 1, 4);
+            TestSupport.checkThrows(Exception.class, () -> fetch(t, ID), "2 shards of each version");
+            up(six);
+            six.get(2).blocks.get(ID + "_s" + shardOn(six, 2))[20] ^= 1;
+            TestSupport.checkThrows(Exception.class, () -> fetch(t, ID), "a newer shard fails its CRC");
+        }
+
+        // 2 + 2: two shards of each of two versions, both decodable
+        List<Memory> four = servers(4);
+        try (ErasureTransport t = new ErasureTransport(four, 2, 2)) {
+            t.store(ID, a).join();
+            down(four, 0, 1);
+            t.store(ID, c).join();
+            up(four);
+            byte[] first = fetch(t, ID);
+            TestSupport.check(Arrays.equals(first, a) || Arrays.equals(first, c), "one whole version");
+            TestSupport.checkEquals(Arrays.equals(first, a) ? c : a, t.fetchOther(ID, List.of(first)).join(),
+                    "the other version");
+            TestSupport.checkEquals(null, t.fetchOther(ID, List.of(a, c)).join(), "no third version");
+
+            for (byte[] wanted : List.of(a, c)) {
+                DownloadPipeline.Decoder only = (index, blob, plain) -> {
+                    if (!Arrays.equals(blob, wanted)) throw new IOException("tag mismatch");
+                    plain.put(blob);
+                    return blob.length;
+                };
+                ByteBuffer plain = ByteBuffer.allocate(1000);
+                TestSupport.checkEquals(wanted.length, DownloadPipeline.decode(t, only, ID, 0, first, plain),
+                        "decrypts the version of length " + wanted.length);
+            }
+            DownloadPipeline.Decoder none = (index, blob, plain) -> {
+                throw new IOException("tag mismatch");
+            };
+            TestSupport.checkThrows(IOException.class, () -> DownloadPipeline.decode(t, none, ID, 0, first, ByteBuffer.allocate(1000)),
+                    "no version decrypts");
+        }
+        TestSupport.passed("TestErasureTransport");
+    }
+
+    // the shard of ID that server s holds
+    private static int shardOn(List<Memory> servers, int s) {
+        for (int j = 0; ; j++) if (servers.get(s).blocks.containsKey(ID + "_s" + j)) return j;
+    }
+
+    private static byte[] fetch(ErasureTransport t, String id) throws Exception {
+        return ConnectionPool.await(t.fetch(List.of(id))).get(0);
+    }
+
+    private static byte[] blob(Random random, int length) {
+        byte[] b = new byte[length];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static List<Memory> servers(int n) {
+        List<Memory> servers = new ArrayList<>();
+        for (int i = 0; i < n; i++) servers.add(new Memory("m" + i));
+        return servers;
+    }
+
+    private static void down(List<Memory> servers, int... which) {
+        for (int s : which) servers.get(s).down = true;
+    }
+
+    private static void up(List<Memory> servers) {
+        for (Memory m : servers) m.down = false;
+    }
+
+    // One server's blocks; a down server fails every request, a slow one answers late.
+    static final class Memory implements BlockTransport {
+        final Map<String, byte[]> blocks = new ConcurrentHashMap<>();
+        final String name;
+        volatile boolean down, slow;
+
+        Memory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public CompletableFuture<String> store(String blockId, byte[] blob) {
+            if (down) return CompletableFuture.failedFuture(new IOException("down"));
+            blocks.put(blockId, blob);
+            return CompletableFuture.completedFuture("OK");
+        }
+
+        @Override
+        public CompletableFuture<List<byte[]>> fetch(List<String> ids) {
+            if (down) return CompletableFuture.failedFuture(new IOException("down"));
+            List<byte[]> blobs = new ArrayList<>();
+            for (String id : ids) blobs.add(blocks.get(id));
+            if (!slow) return CompletableFuture.completedFuture(blobs);
+            return CompletableFuture.supplyAsync(() -> blobs,
+                    CompletableFuture.delayedExecutor(20, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public CompletableFuture<boolean[]> has(List<String> ids) {
+            boolean[] has = new boolean[ids.size()];
+            for (int i = 0; i < has.length; i++) has[i] = blocks.containsKey(ids.get(i));
+            return CompletableFuture.completedFuture(has);
+        }
+
+        @Override
+        public List<CompletableFuture<String>> addTokens(String fileId, List<String> tokens) {
+            return List.of(CompletableFuture.completedFuture("OK"));
+        }
+
+        @Override
+        public List<CompletableFuture<String>> delete(Map<String, List<String>> blocksByFile) {
+            blocksByFile.values().forEach(ids -> ids.forEach(blocks::remove));
+            return List.of(CompletableFuture.completedFuture("OK"));
+        }
+
+        @Override
+        public CompletableFuture<SearchReply> search(List<String> query) {
+            return CompletableFuture.completedFuture(new SearchReply(List.of(), null));
+        }
+
+        @Override
+        public List<CompletableFuture<String>> stats() {
+            return List.of(CompletableFuture.completedFuture(""));
+        }
+
+        @Override
+        public CompletableFuture<Proof> proof(List<String> ids, int[] samples) {
+            return CompletableFuture.failedFuture(new UnsupportedOperationException());
+        }
+
+        @Override
+        public CompletableFuture<List<byte[]>> hashes(List<String> ids) {
+            return CompletableFuture.failedFuture(new UnsupportedOperationException());
+        }
+
+        @Override
+        public boolean canProve() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+
+// KeywordQuery.toPostfix (precedence, implicit AND, malformed queries) and the
+// server's evaluation of the postfix in TokenIndex.query, whose NOT handling
+// (a AND NOT b as a difference, De Morgan for the rest) must match plain set logic.
+public class TestKeywordQuery {
+    private static final Function<String, String> SAME = w -> w;
+
+    public static void main(String[] args) throws Exception {
+        postfix();
+        errors();
+        evaluation();
+        TestSupport.passed("TestKeywordQuery");
+    }
+
+    private static void postfix() {
+        checkPostfix("report", "report");
+        checkPostfix("report 2024", "report 2024 AND");
+        checkPostfix("a,b c", "a b AND c AND");
+        checkPostfix("a AND b OR c", "a b AND c OR");
+        checkPostfix("a OR b AND c", "a b c AND OR");
+        checkPostfix("a OR b c", "a b c AND OR");
+        checkPostfix("NOT a AND b", "a NOT b AND");
+        checkPostfix("NOT NOT a", "a NOT NOT");
+        checkPostfix("NOT (a OR b)", "a b OR NOT");
+        checkPostfix("invoice AND (paid OR NOT draft)", "invoice paid draft NOT OR AND");
+        checkPostfix("(a)(b)", "a b AND");
+        checkPostfix("and or not", "and or AND not AND"); // lower case words are keywords
+        TestSupport.checkEquals(List.of("#a", "#b", "AND"), KeywordQuery.toPostfix("a b", w -> "#" + w), "keywords mapped");
+    }
+
+    private static void errors() {
+        for (String bad : List.of("", "   ", "AND", "a AND", "a OR", "OR a", "NOT", "(a", "a)", "()", "a (b OR)", "a NOT")) {
+            TestSupport.checkThrows(IllegalArgumentException.class, () -> KeywordQuery.toPostfix(bad, SAME), "\"" + bad + "\"");
+        }
+    }
+
+    // Every query against a small index, compared with evaluating its postfix over sets.
+    private static void evaluation() throws Exception {
+        Map<String, List<String>> files = new LinkedHashMap<>();
+        files.put("f1", List.of("a", "b"));
+        files.put("f2", List.of("a"));
+        files.put("f3", List.of("b", "c"));
+        files.put("f4", List.of("c"));
+        files.put("f5", List.of("a", "b", "c"));
+        files.put("f6", List.of("d"));
+        Path dir = TestSupport.tempDir("keyword-query-test");
+        try (TokenIndex index = new TokenIndex(dir.resolve("metadata.idx"), dir.resolve("metadata.wal"), Long.MAX_VALUE, 3600)) {
+            for (Map.Entry<String, List<String>> f : files.entrySet()) index.addAll(f.getKey(), f.getValue());
+            index.removeAll(List.of("f6"));
+            files.remove("f6");
+            List<String> queries = List.of("a", "a b", "a OR c", "NOT a", "NOT NOT a", "a AND NOT b", "NOT a AND b",
+                    "NOT a AND NOT b", "NOT (a OR b)", "NOT (a AND b)", "NOT a OR NOT c", "a OR NOT b",
+                    "NOT (a AND NOT c) OR b", "(a OR b) AND NOT (b AND c)", "nosuch", "NOT nosuch", "a AND nosuch",
+                    "d", "NOT d");
+            for (String q : queries) {
+                List<String> rpn = KeywordQuery.toPostfix(q, SAME);
+                TestSupport.checkEquals(expected(rpn, files), new TreeSet<>(index.query(rpn)), "\"" + q + "\"");
+            }
+        } finally {
+            TestSupport.deleteTree(dir);
+        }
+    }
+
+    private static Set<String> expected(List<String> rpn, Map<String, List<String>> files) {
+        Deque<Set<String>> stack = new ArrayDeque<>();
+        for (String item : rpn) {
+            Set<String> result = new TreeSet<>();
+            switch (item) {
+                case "NOT" -> {
+                    Set<String> x = stack.pop();
+                    for (String f : files.keySet()) if (!x.contains(f)) result.add(f);
+                }
+                case "AND", "OR" -> {
+                    Set<String> y = stack.pop(), x = stack.pop();
+                    result.addAll(x);
+                    if (item.equals("AND")) result.retainAll(y);
+                    else result.addAll(y);
+                }
+                default -> files.forEach((f, kws) -> {
+                    if (kws.contains(item)) result.add(f);
+                });
+            }
+            stack.push(result);
+        }
+        return stack.pop();
+    }
+
+    private static void checkPostfix(String query, String expected) {
+        TestSupport.checkEquals(List.of(expected.split(" ")), KeywordQuery.toPostfix(query, SAME), "\"" + query + "\"");
+    }
+}
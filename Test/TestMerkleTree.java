@@ -0,0 +1,59 @@
+import java.util.*;
+
+// MerkleTree (client) against BlockHashes (server): same leaves and roots, and
+// every audit path the server builds verifies, for odd and even block counts,
+// while wrong blocks, indexes or paths do not. (The count is not in the root:
+// the client takes it from its catalog.)
+public class TestMerkleTree {
+
+    public static void main(String[] args) {
+        Random random = new Random(7);
+        for (int count = 1; count <= 33; count++) {
+            byte[][] blocks = new byte[count][];
+            byte[][] leaves = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                blocks[i] = new byte[random.nextInt(64)];
+                random.nextBytes(blocks[i]);
+                leaves[i] = MerkleTree.leaf(blocks[i]);
+                TestSupport.checkEquals(BlockHashes.leaf(blocks[i]), leaves[i], "leaf hash " + i);
+            }
+            byte[][][] tree = BlockHashes.tree(leaves);
+            byte[] root = MerkleTree.root(Arrays.asList(leaves));
+            TestSupport.checkEquals(BlockHashes.root(tree), root, "root of " + count);
+            for (int i = 0; i < count; i++) {
+                List<byte[]> path = BlockHashes.path(tree, i);
+                TestSupport.check(MerkleTree.verify(leaves[i], i, count, path, root), "block " + i + " of " + count);
+                wrong(leaves, i, count, path, root);
+            }
+        }
+        TestSupport.checkEquals(BlockHashes.root(BlockHashes.tree(new byte[0][])), MerkleTree.root(List.of()), "root of no blocks");
+        TestSupport.check(!MerkleTree.verify(MerkleTree.leaf(new byte[0]), 0, 0, List.of(), MerkleTree.root(List.of())),
+                "no block verifies under an empty tree");
+        TestSupport.passed("TestMerkleTree");
+    }
+
+    private static void wrong(byte[][] leaves, int i, int count, List<byte[]> path, byte[] root) {
+        byte[] tampered = leaves[i].clone();
+        tampered[0] ^= 1;
+        TestSupport.check(!MerkleTree.verify(tampered, i, count, path, root), "tampered block " + i + " of " + count);
+        TestSupport.check(!MerkleTree.verify(leaves[i], count, count, path, root), "index past the end, " + count);
+        TestSupport.check(!MerkleTree.verify(leaves[i], -1, count, path, root), "negative index, " + count);
+        if (count > 1) {
+            int other = i == 0 ? 1 : 0;
+            if (!Arrays.equals(leaves[other], leaves[i]))
+                TestSupport.check(!MerkleTree.verify(leaves[i], other, count, path, root), "block " + i + " at index " + other);
+        }
+        if (!path.isEmpty()) {
+            List<byte[]> shorter = path.subList(0, path.size() - 1);
+            TestSupport.check(!MerkleTree.verify(leaves[i], i, count, shorter, root), "short path for " + i + " of " + count);
+            List<byte[]> bent = new ArrayList<>(path);
+            byte[] sibling = bent.get(0).clone();
+            sibling[31] ^= 0x80;
+            bent.set(0, sibling);
+            TestSupport.check(!MerkleTree.verify(leaves[i], i, count, bent, root), "altered path for " + i + " of " + count);
+        }
+        List<byte[]> longer = new ArrayList<>(path);
+        longer.add(root);
+        TestSupport.check(!MerkleTree.verify(leaves[i], i, count, longer, root), "long path for " + i + " of " + count);
+    }
+}
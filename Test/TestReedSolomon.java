@@ -0,0 +1,51 @@
+import java.util.*;
+
+// ReedSolomon: data shards come back from any k of the k + m shards, for every
+// pattern of up to m lost shards; fewer than k shards is an error.
+public class TestReedSolomon {
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        int[][] shapes = {{1, 0}, {1, 2}, {2, 1}, {3, 2}, {4, 2}, {6, 3}, {10, 4}};
+        for (int[] shape : shapes) {
+            for (int size : new int[]{1, 37, 1024}) everyErasure(shape[0], shape[1], size, random);
+        }
+        tooFewShards(random);
+        TestSupport.checkThrows(IllegalArgumentException.class, () -> new ReedSolomon(0, 2), "no data shards");
+        TestSupport.checkThrows(IllegalArgumentException.class, () -> new ReedSolomon(200, 56), "over 255 shards");
+        TestSupport.passed("TestReedSolomon");
+    }
+
+    // Every set of lost shards up to m in size (all subsets of n shards are few here).
+    private static void everyErasure(int k, int m, int size, Random random) {
+        ReedSolomon rs = new ReedSolomon(k, m);
+        int n = k + m;
+        byte[][] shards = new byte[n][size + 5]; // shards may be longer than size
+        for (int i = 0; i < k; i++) random.nextBytes(shards[i]);
+        rs.encode(shards, size);
+        for (int lost = 0; lost < 1 << n; lost++) {
+            if (Integer.bitCount(lost) > m) continue;
+            byte[][] copy = new byte[n][];
+            boolean[] present = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                present[i] = (lost & (1 << i)) == 0;
+                copy[i] = present[i] ? shards[i].clone() : new byte[size + 5];
+                if (!present[i]) Arrays.fill(copy[i], (byte) 0x5A); // garbage where a shard is missing
+            }
+            rs.decode(copy, present, size);
+            for (int d = 0; d < k; d++) {
+                TestSupport.checkEquals(Arrays.copyOf(shards[d], size), Arrays.copyOf(copy[d], size),
+                        k + "+" + m + " size " + size + " lost " + Integer.toBinaryString(lost) + " data shard " + d);
+            }
+        }
+    }
+
+    private static void tooFewShards(Random random) {
+        ReedSolomon rs = new ReedSolomon(4, 2);
+        byte[][] shards = new byte[6][16];
+        for (int i = 0; i < 4; i++) random.nextBytes(shards[i]);
+        rs.encode(shards, 16);
+        boolean[] present = {true, false, true, false, false, true};
+        TestSupport.checkThrows(IllegalArgumentException.class, () -> rs.decode(shards, present, 16), "3 of 4 needed shards");
+    }
+}
@@ -0,0 +1,144 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// SegmentLogBlockStore: compaction keeps live blocks and deletes, a restart
+// rebuilds the index from footers, a crashed tail segment loses only its torn
+// last record, and a seal cut short anywhere in the footer loses nothing.
+public class TestSegmentLogBlockStore {
+    private static final long SEGMENT_BYTES = 4096;
+
+    public static void main(String[] args) throws Exception {
+        compaction();
+        crashedTail();
+        cutFooter();
+        TestSupport.passed("TestSegmentLogBlockStore");
+    }
+
+    private static void compaction() throws Exception {
+        Path dir = TestSupport.tempDir("segment-test");
+        try {
+            Map<String, byte[]> expected = new HashMap<>();
+            try (SegmentLogBlockStore store = new SegmentLogBlockStore(dir, SEGMENT_BYTES, 0.5, 1)) {
+                for (int i = 0; i < 200; i++) put(store, expected, "b" + i, "first " + i);
+                List<Path> before = segments(dir);
+                TestSupport.check(before.size() > 3, "blocks spread over several segments: " + before.size());
+                // overwrite most blocks and delete some, leaving the early segments mostly garbage
+                for (int i = 0; i < 200; i++) {
+                    if (i % 10 == 0) continue;
+                    if (i % 7 == 0) {
+                        store.delete("b" + i);
+                        expected.remove("b" + i);
+                    } else put(store, expected, "b" + i, "second " + i);
+                }
+                long deadline = System.currentTimeMillis() + 15_000;
+                while (Files.exists(before.get(0)) && System.currentTimeMillis() < deadline) Thread.sleep(100);
+                TestSupport.check(!Files.exists(before.get(0)), "first segment compacted away");
+                checkContents(store, expected);
+            }
+            try (SegmentLogBlockStore reopened = new SegmentLogBlockStore(dir, SEGMENT_BYTES, 0.5, 3600)) {
+                checkContents(reopened, expected);
+            }
+        } finally {
+            TestSupport.deleteTree(dir);
+        }
+    }
+
+    private static void crashedTail() throws Exception {
+        Path dir = TestSupport.tempDir("segment-test");
+        Path copy = TestSupport.tempDir("segment-crash");
+        try {
+            Map<String, byte[]> expected = new HashMap<>();
+            try (SegmentLogBlockStore store = new SegmentLogBlockStore(dir, 1 << 20, 0.5, 3600)) {
+                for (int i = 0; i < 20; i++) put(store, expected, "b" + i, "data " + i);
+                store.delete("b3");
+                expected.remove("b3");
+                // the files as a crash would leave them: the active segment has no footer yet
+                for (Path p : segments(dir)) Files.copy(p, copy.resolve(p.getFileName()));
+            }
+            Path tail = segments(copy).get(segments(copy).size() - 1);
+            try (FileChannel ch = FileChannel.open(tail, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ch.write(ByteBuffer.wrap(new byte[]{0, 3, 'b', '9', '9', 0, 0, 0, 100, 1, 2})); // torn record
+            }
+            try (SegmentLogBlockStore recovered = new SegmentLogBlockStore(copy, 1 << 20, 0.5, 3600)) {
+                checkContents(recovered, expected);
+                put(recovered, expected, "after", "written after recovery");
+            }
+            try (SegmentLogBlockStore again = new SegmentLogBlockStore(copy, 1 << 20, 0.5, 3600)) {
+                checkContents(again, expected);
+            }
+        } finally {
+            TestSupport.deleteTree(dir);
+            TestSupport.deleteTree(copy);
+        }
+    }
+
+    // A crash while sealing: the segment ends somewhere in its footer, with no trailer.
+    private static void cutFooter() throws Exception {
+        Path dir = TestSupport.tempDir("segment-test");
+        try {
+            Map<String, byte[]> expected = new HashMap<>();
+            try (SegmentLogBlockStore store = new SegmentLogBlockStore(dir, 1 << 20, 0.5, 3600)) {
+                for (int i = 0; i < 20; i++) put(store, expected, "b" + i, "data " + i);
+                store.delete("b3");
+                expected.remove("b3");
+            } // sealed on close
+            Path segment = segments(dir).get(0);
+            long size = Files.size(segment), footerStart;
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                ByteBuffer trailer = ByteBuffer.allocate(16);
+                ch.read(trailer, size - 16);
+                footerStart = trailer.getLong(0);
+            }
+            for (long cut : new long[]{footerStart + 1, footerStart + 4, footerStart + 6, footerStart + 6 + 5,
+                    footerStart + 6 + 17, (footerStart + size) / 2, size - 16, size - 1}) {
+                Path copy = TestSupport.tempDir("segment-cut");
+                try {
+                    Files.copy(segment, copy.resolve(segment.getFileName()));
+                    try (FileChannel ch = FileChannel.open(copy.resolve(segment.getFileName()), StandardOpenOption.WRITE)) {
+                        ch.truncate(cut);
+                    }
+                    Map<String, byte[]> now = new HashMap<>(expected);
+                    try (SegmentLogBlockStore recovered = new SegmentLogBlockStore(copy, 1 << 20, 0.5, 3600)) {
+                        checkContents(recovered, now);
+                        put(recovered, now, "after", "written after recovery");
+                    }
+                    try (SegmentLogBlockStore again = new SegmentLogBlockStore(copy, 1 << 20, 0.5, 3600)) {
+                        checkContents(again, now);
+                    }
+                } catch (AssertionError e) {
+                    throw new AssertionError("footer cut at " + (cut - footerStart) + ": " + e.getMessage(), e);
+                } finally {
+                    TestSupport.deleteTree(copy);
+                }
+            }
+        } finally {
+            TestSupport.deleteTree(dir);
+        }
+    }
+
+    private static void put(BlockStore store, Map<String, byte[]> expected, String id, String text) throws Exception {
+        byte[] data = (text + " ").repeat(8).getBytes(UTF_8);
+        store.put(id, data);
+        expected.put(id, data);
+    }
+
+    private static void checkContents(BlockStore store, Map<String, byte[]> expected) throws Exception {
+        TestSupport.checkEquals(new TreeSet<>(expected.keySet()), new TreeSet<>(store.blockIds()), "block ids");
+        for (Map.Entry<String, byte[]> e : expected.entrySet()) TestSupport.checkEquals(e.getValue(), store.get(e.getKey()), e.getKey());
+        for (int i = 0; i < 200; i++) {
+            String id = "b" + i;
+            if (!expected.containsKey(id)) TestSupport.checkEquals(null, store.get(id), "deleted " + id);
+        }
+    }
+
+    private static List<Path> segments(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().startsWith("segment-")).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.nio.file.*;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// ShardedBlockStore with a volume added: blocks left away from their home volume
+// are still served, and overwriting or deleting them must not let a stale copy
+// come back after a restart.
+public class TestShardedBlockStore {
+    private static final int BLOCKS = 64;
+
+    public static void main(String[] args) throws Exception {
+        Path root = TestSupport.tempDir("sharded-test");
+        try {
+            Path v1 = root.resolve("v1"), v2 = root.resolve("v2");
+            try (ShardedBlockStore one = open(v1)) {
+                for (int i = 0; i < BLOCKS; i++) one.put(id(i), bytes("old " + i));
+            }
+
+            // v2 added: the blocks it now owns are misplaced on v1 until a rebalance
+            try (ShardedBlockStore two = open(v1, v2)) {
+                TestSupport.check(two.misplacedCount() > 0 && two.misplacedCount() < BLOCKS,
+                        "some blocks misplaced after adding a volume: " + two.misplacedCount());
+                for (int i = 0; i < BLOCKS; i++) TestSupport.checkEquals(bytes("old " + i), two.get(id(i)), "read before rebalance " + i);
+                for (int i = 0; i < BLOCKS; i += 2) two.put(id(i), bytes("new " + i));
+                two.delete(id(1));
+                List<String> gone = new ArrayList<>();
+                for (int i = 3; i < BLOCKS; i += 2) gone.add(id(i));
+                two.deleteAll(gone);
+                check(two);
+            }
+
+            // every copy is on disk once at most, and the restarted store agrees
+            try (BlockStore raw1 = new FileBlockStore(v1.resolve("blocks").toFile());
+                 BlockStore raw2 = new FileBlockStore(v2.resolve("blocks").toFile())) {
+                for (int i = 0; i < BLOCKS; i++) {
+                    int copies = (raw1.contains(id(i)) ? 1 : 0) + (raw2.contains(id(i)) ? 1 : 0);
+                    TestSupport.checkEquals(i % 2 == 0 ? 1 : 0, copies, "copies of " + id(i));
+                }
+                // a stale copy away from home (a crash before it was dropped) loses to the home one
+                for (int i = 0; i < BLOCKS; i += 2) {
+                    BlockStore away = raw1.contains(id(i)) ? raw2 : raw1;
+                    away.put(id(i), bytes("stale " + i));
+                }
+            }
+            try (ShardedBlockStore restarted = open(v1, v2)) {
+                TestSupport.checkEquals(0, restarted.misplacedCount(), "misplaced after restart");
+                check(restarted);
+            }
+        } finally {
+            TestSupport.deleteTree(root);
+        }
+        TestSupport.passed("TestShardedBlockStore");
+    }
+
+    private static void check(ShardedBlockStore store) throws Exception {
+        for (int i = 0; i < BLOCKS; i++) {
+            if (i % 2 == 0) TestSupport.checkEquals(bytes("new " + i), store.get(id(i)), "overwritten block " + i);
+            else {
+                TestSupport.check(!store.contains(id(i)), "deleted block " + i + " is back");
+                TestSupport.checkEquals(null, store.get(id(i)), "deleted block " + i);
+            }
+        }
+        TestSupport.checkEquals(BLOCKS / 2, store.blockIds().size(), "listed blocks");
+    }
+
+    private static ShardedBlockStore open(Path... dirs) throws Exception {
+        return new ShardedBlockStore(List.of(dirs), 2, dir -> new FileBlockStore(dir.toFile()));
+    }
+
+    private static String id(int i) {
+        return String.format("%032x_block_%d", i * 7919L, i);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF_8);
+    }
+}
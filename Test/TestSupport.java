@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Checks shared by the Test*.java programs (plain main() classes, no test library):
+// a failed check throws AssertionError, so a test exits non-zero at the first failure.
+final class TestSupport {
+    private TestSupport() {}
+
+    interface Body {
+        void run() throws Exception;
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+    }
+
+    static void checkEquals(Object expected, Object actual, String what) {
+        boolean same = expected instanceof byte[] e && actual instanceof byte[] a ? Arrays.equals(e, a)
+                : expected == null ? actual == null : expected.equals(actual);
+        if (!same) throw new AssertionError(what + ": expected " + show(expected) + ", got " + show(actual));
+    }
+
+    // Runs body and checks that it throws type.
+    static void checkThrows(Class<? extends Throwable> type, Body body, String what) {
+        try {
+            body.run();
+        } catch (Throwable t) {
+            if (type.isInstance(t)) return;
+            throw new AssertionError(what + ": expected " + type.getSimpleName() + ", got " + t, t);
+        }
+        throw new AssertionError(what + ": expected " + type.getSimpleName() + ", nothing thrown");
+    }
+
+    static Path tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix);
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+
+    static void passed(String test) {
+        System.out.println(test + ": OK");
+    }
+
+    private static String show(Object o) {
+        return o instanceof byte[] b ? Arrays.toString(b) : String.valueOf(o);
+    }
+}
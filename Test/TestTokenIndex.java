@@ -0,0 +1,93 @@
+import java.nio.file.*;
+import java.util.*;
+
+// TokenIndex: a restart replays the write-ahead log on top of the last snapshot
+// (removes included), a torn last log record is cut off, and concurrent writers
+// sharing log syncs all land in the log.
+public class TestTokenIndex {
+
+    public static void main(String[] args) throws Exception {
+        Path dir = TestSupport.tempDir("token-index-test");
+        try {
+            Path snapshot = dir.resolve("metadata.idx"), wal = dir.resolve("metadata.wal");
+            try (TokenIndex index = open(snapshot, wal)) {
+                index.addAll("f1", List.of("red", "big"));
+                index.addAll("f2", List.of("red"));
+                index.addAll("f3", List.of("big", "old"));
+            }
+            try (TokenIndex index = open(snapshot, wal)) {
+                checkIds(List.of("f1", "f2"), index.get("red"), "red replayed from the log");
+                checkIds(List.of("f1"), index.query(List.of("red", "big", "AND")), "red AND big");
+
+                index.checkpoint(); // f1..f3 into a snapshot, later records into a fresh log
+                index.addAll("f4", List.of("red", "old"));
+                index.removeAll(List.of("f2"));
+                index.removeAll(List.of("nosuch"));
+            }
+            // a crash in the middle of a record: op, token, half a fileId
+            byte[] torn = {1, 0, 3, 'r', 'e', 'd', 0, 5, 'f'};
+            Files.write(wal, torn, StandardOpenOption.APPEND);
+            try (TokenIndex index = open(snapshot, wal)) {
+                checkIds(List.of("f1", "f4"), index.get("red"), "red after snapshot + log");
+                checkIds(List.of("f3", "f4"), index.get("old"), "old after snapshot + log");
+                checkIds(List.of("f1", "f3", "f4"), index.query(List.of("red", "old", "OR")), "red OR old");
+                checkIds(List.of("f3"), index.query(List.of("red", "NOT")), "NOT red skips the deleted f2");
+
+                index.addAll("f2", List.of("new")); // a deleted fileId can come back
+                index.checkpoint();
+            }
+            try (TokenIndex index = open(snapshot, wal)) {
+                checkIds(List.of("f1", "f4"), index.get("red"), "red after a snapshot with a removal");
+                checkIds(List.of("f2"), index.get("new"), "re-added fileId");
+                concurrentWriters(index);
+            }
+            try (TokenIndex index = open(snapshot, wal)) {
+                checkIds(writerIds(), index.get("shared"), "concurrent writes replayed from the log");
+                TestSupport.checkEquals(List.of(), index.get("gone"), "concurrent removes replayed from the log");
+            }
+        } finally {
+            TestSupport.deleteTree(dir);
+        }
+        TestSupport.passed("TestTokenIndex");
+    }
+
+    private static final int WRITERS = 8, FILES_PER_WRITER = 50;
+
+    // Each writer adds its files, and one it removes again right away.
+    private static void concurrentWriters(TokenIndex index) throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < FILES_PER_WRITER; i++) {
+                        index.addAll("w" + writer + "-" + i, List.of("shared"));
+                        index.addAll("x" + writer + "-" + i, List.of("gone"));
+                        index.removeAll(List.of("x" + writer + "-" + i));
+                    }
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        TestSupport.checkEquals(List.of(), errors, "concurrent writer errors");
+    }
+
+    private static List<String> writerIds() {
+        List<String> ids = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) for (int i = 0; i < FILES_PER_WRITER; i++) ids.add("w" + w + "-" + i);
+        return ids;
+    }
+
+    private static TokenIndex open(Path snapshot, Path wal) throws Exception {
+        return new TokenIndex(snapshot, wal, Long.MAX_VALUE, 3600);
+    }
+
+    private static void checkIds(List<String> expected, List<String> actual, String what) {
+        TestSupport.checkEquals(new TreeSet<>(expected), new TreeSet<>(actual), what);
+        TestSupport.checkEquals(expected.size(), actual.size(), what + " (duplicates)");
+    }
+}
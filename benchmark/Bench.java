@@ -0,0 +1,78 @@
+import java.lang.management.*;
+import java.util.*;
+
+// Minimal JMH-style harness (the project has no build module to pull JMH in):
+// time-boxed warmup, then measurement iterations, reporting ops/s, MB/s and the
+// allocation rate / bytes per op taken from the JVM's per-thread allocation
+// counters (the same source as JMH's gc profiler) plus GC counts.
+final class Bench {
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    static int warmupSec = 2;
+    static int iterations = 3;
+    static int iterationSec = 2;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static boolean headerPrinted;
+
+    private Bench() {
+    }
+
+    // bytesPerOp is the payload size used for MB/s (0 to leave it out).
+    static void run(String name, long bytesPerOp, Op op) throws Exception {
+        loop(op, warmupSec * 1_000_000_000L);
+
+        long ops = 0, nanos = 0;
+        long alloc0 = allocatedBytes(), gc0 = gcCount();
+        for (int i = 0; i < iterations; i++) {
+            long t0 = System.nanoTime();
+            ops += loop(op, iterationSec * 1_000_000_000L);
+            nanos += System.nanoTime() - t0;
+        }
+        long alloc = allocatedBytes() - alloc0, gcs = gcCount() - gc0;
+
+        double secs = nanos / 1e9;
+        double opsPerSec = ops / secs;
+        if (!headerPrinted) {
+            System.out.printf("%-44s %12s %10s %12s %12s %6s%n", "Benchmark", "ops/s", "MB/s", "alloc MB/s", "alloc B/op", "gc");
+            headerPrinted = true;
+        }
+        System.out.printf("%-44s %12.1f %10s %12.1f %12.0f %6d%n", name, opsPerSec,
+                bytesPerOp == 0 ? "-" : String.format("%.1f", opsPerSec * bytesPerOp / (1024 * 1024)),
+                alloc / secs / (1024 * 1024), (double) alloc / ops, gcs);
+    }
+
+    private static long loop(Op op, long budgetNanos) throws Exception {
+        long end = System.nanoTime() + budgetNanos, n = 0;
+        do {
+            op.run();
+            n++;
+        } while ((n & 0xF) != 0 || System.nanoTime() < end);
+        return n;
+    }
+
+    // Sum over live threads, so in-process server threads are counted too.
+    private static long allocatedBytes() {
+        long[] ids = THREADS.getAllThreadIds();
+        long total = 0;
+        for (long a : THREADS.getThreadAllocatedBytes(ids)) if (a > 0) total += a;
+        return total;
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) n += Math.max(0, gc.getCollectionCount());
+        return n;
+    }
+
+    static byte[] random(int n) {
+        byte[] b = new byte[n];
+        new Random(n).nextBytes(b);
+        return b;
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.*;
+import java.util.concurrent.Callable;
+
+// Entry point: java BenchmarkRunner [-w warmupSec] [-i iterations] [-t iterationSec] [filter...]
+// Filters are substrings of benchmark names (e.g. "crypto", "AES_GCM.4K", "server.");
+// without filters everything runs.
+public class BenchmarkRunner {
+
+    // setup runs once right before the benchmark and returns the measured operation
+    record Case(String name, long bytesPerOp, Callable<Bench.Op> setup) {}
+
+    public static void main(String[] args) throws Exception {
+        List<String> filters = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-w" -> Bench.warmupSec = Integer.parseInt(args[++i]);
+                case "-i" -> Bench.iterations = Integer.parseInt(args[++i]);
+                case "-t" -> Bench.iterationSec = Integer.parseInt(args[++i]);
+                default -> filters.add(args[i]);
+            }
+        }
+
+        List<Case> cases = new ArrayList<>();
+        CryptoBenchmarks.register(cases);
+        CompressionBenchmarks.register(cases);
+        ServerBenchmarks.register(cases);
+
+        for (Case c : cases) {
+            if (!filters.isEmpty() && filters.stream().noneMatch(c.name()::contains)) continue;
+            Bench.run(c.name(), c.bytesPerOp(), c.setup().call());
+        }
+        // the in-process server's pools are not daemon threads
+        System.exit(0);
+    }
+}
@@ -0,0 +1,96 @@
+import crypto.CryptoSuite;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// The PUT/GET chunk path with and without BlockCodec compression, on 1 MiB of
+// log-like text and of random bytes, cut with the client's Chunker: seal
+// (compress + encrypt), open (decrypt + inflate), and put (seal + STORE_BLOCK to
+// the in-process server, end to end). Each seal case first prints how many bytes
+// the server would store for the sample.
+final class CompressionBenchmarks {
+    static final int SAMPLE = 1 << 20;
+
+    private CompressionBenchmarks() {
+    }
+
+    static void register(List<BenchmarkRunner.Case> cases) {
+        for (String data : new String[]{"text", "random"}) {
+            for (boolean compress : new boolean[]{false, true}) {
+                String prefix = "codec." + data + "." + (compress ? "deflate" : "none") + ".";
+                cases.add(new BenchmarkRunner.Case(prefix + "seal", SAMPLE, () -> {
+                    Sample s = new Sample(data, compress);
+                    long stored = 0;
+                    for (byte[] blob : s.sealAll()) stored += blob.length;
+                    System.out.printf("%-44s stores %d of %d bytes (%.1f%%)%n", prefix + "seal", stored, SAMPLE,
+                            100.0 * stored / SAMPLE);
+                    return s::sealAll;
+                }));
+                cases.add(new BenchmarkRunner.Case(prefix + "open", SAMPLE, () -> {
+                    Sample s = new Sample(data, compress);
+                    List<byte[]> blobs = s.sealAll();
+                    ByteBuffer plain = ByteBuffer.allocate(Chunker.maxChunk(Chunker.DEFAULT_SIZE));
+                    return () -> {
+                        for (int k = 0; k < blobs.size(); k++) {
+                            plain.clear();
+                            BlockCodec.open(s.suite, blobs.get(k), s.aad(k), plain);
+                        }
+                    };
+                }));
+                cases.add(new BenchmarkRunner.Case(prefix + "put", SAMPLE, () -> {
+                    Sample s = new Sample(data, compress);
+                    ServerBenchmarks.Conn c = ServerBenchmarks.connect();
+                    return () -> {
+                        List<byte[]> blobs = s.sealAll();
+                        for (int k = 0; k < blobs.size(); k++) c.store(s.ids.get(k), blobs.get(k), List.of());
+                    };
+                }));
+            }
+        }
+    }
+
+    private static final class Sample {
+        final CryptoSuite suite = CryptoBenchmarks.suite("AES_GCM");
+        final BlockCodec codec;
+        final byte[] bytes;
+        final List<int[]> chunks = new ArrayList<>(); // offset, length
+        final List<String> ids = new ArrayList<>();
+
+        Sample(String data, boolean compress) throws Exception {
+            codec = new BlockCodec(suite, compress);
+            bytes = data.equals("text") ? text() : Bench.random(SAMPLE);
+            Chunker chunker = new Chunker(Bench.random(32));
+            for (int at = 0; at < bytes.length; ) {
+                int n = chunker.cut(bytes, at, bytes.length);
+                chunks.add(new int[]{at, n});
+                ids.add(chunker.fingerprint(bytes, at, n));
+                at += n;
+            }
+        }
+
+        byte[] aad(int k) {
+            return ids.get(k).getBytes();
+        }
+
+        List<byte[]> sealAll() throws Exception {
+            List<byte[]> blobs = new ArrayList<>(chunks.size());
+            for (int k = 0; k < chunks.size(); k++) {
+                int[] c = chunks.get(k);
+                blobs.add(codec.seal(Arrays.copyOfRange(bytes, c[0], c[0] + c[1]), c[1], aad(k)));
+            }
+            return blobs;
+        }
+
+        private static byte[] text() {
+            Random r = new Random(42);
+            String[] levels = {"INFO ", "INFO ", "INFO ", "DEBUG", "WARN ", "ERROR"};
+            StringBuilder sb = new StringBuilder(SAMPLE + 200);
+            for (int line = 0; sb.length() < SAMPLE; line++) {
+                sb.append(String.format("2026-10-18 12:%02d:%02d.%03d %s [worker-%d] GET /api/v1/items/%d -> %d in %d ms%n",
+                        line / 3600 % 60, line / 60 % 60, r.nextInt(1000), levels[r.nextInt(levels.length)],
+                        r.nextInt(16), r.nextInt(100_000), r.nextInt(10) == 0 ? 404 : 200, r.nextInt(250)));
+            }
+            return Arrays.copyOf(sb.toString().getBytes(), SAMPLE);
+        }
+    }
+}
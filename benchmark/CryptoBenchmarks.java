@@ -0,0 +1,84 @@
+import crypto.CryptoFactory;
+import crypto.CryptoSuite;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Every CryptoSuite, encrypt and decrypt, byte[] and ByteBuffer APIs, for block
+// sizes from the client's 4 KiB BLOCK_SIZE up to 1 MiB; plus keyword token HMACs
+// and the PUT chunker (cut points + chunk fingerprints).
+final class CryptoBenchmarks {
+    static final String[] ALGS = {"AES_GCM", "AES_CBC_HMAC", "CHACHA20_POLY1305"};
+    static final int[] BLOCK_SIZES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+
+    private CryptoBenchmarks() {
+    }
+
+    static void register(List<BenchmarkRunner.Case> cases) {
+        for (String alg : ALGS) {
+            for (int size : BLOCK_SIZES) {
+                String prefix = "crypto." + alg + "." + (size / 1024) + "K.";
+                cases.add(new BenchmarkRunner.Case(prefix + "encrypt", size, () -> {
+                    CryptoSuite suite = suite(alg);
+                    byte[] pt = Bench.random(size), aad = "0123456789abcdef0123456789abcdef:7".getBytes();
+                    return () -> suite.encrypt(pt, aad);
+                }));
+                cases.add(new BenchmarkRunner.Case(prefix + "decrypt", size, () -> {
+                    CryptoSuite suite = suite(alg);
+                    byte[] aad = "0123456789abcdef0123456789abcdef:7".getBytes();
+                    byte[] blob = suite.encrypt(Bench.random(size), aad);
+                    return () -> suite.decrypt(blob, aad);
+                }));
+                cases.add(new BenchmarkRunner.Case(prefix + "encryptBuffer", size, () -> {
+                    CryptoSuite suite = suite(alg);
+                    ByteBuffer pt = ByteBuffer.wrap(Bench.random(size));
+                    ByteBuffer aad = ByteBuffer.wrap("0123456789abcdef0123456789abcdef:7".getBytes());
+                    ByteBuffer out = ByteBuffer.allocate(suite.encryptedLength(size));
+                    return () -> {
+                        pt.clear();
+                        aad.clear();
+                        out.clear();
+                        suite.encrypt(pt, aad, out);
+                    };
+                }));
+                cases.add(new BenchmarkRunner.Case(prefix + "decryptBuffer", size, () -> {
+                    CryptoSuite suite = suite(alg);
+                    byte[] aadBytes = "0123456789abcdef0123456789abcdef:7".getBytes();
+                    ByteBuffer blob = ByteBuffer.wrap(suite.encrypt(Bench.random(size), aadBytes));
+                    ByteBuffer aad = ByteBuffer.wrap(aadBytes);
+                    ByteBuffer out = ByteBuffer.allocate(suite.maxDecryptedLength(blob.capacity()));
+                    return () -> {
+                        blob.clear();
+                        aad.clear();
+                        out.clear();
+                        suite.decrypt(blob, aad, out);
+                    };
+                }));
+            }
+        }
+
+        cases.add(new BenchmarkRunner.Case("chunker.cutAndFingerprint.1M", 1 << 20, () -> {
+            Chunker chunker = new Chunker(Bench.random(32));
+            byte[] data = Bench.random(1 << 20);
+            return () -> {
+                for (int at = 0; at < data.length; ) {
+                    int n = chunker.cut(data, at, data.length);
+                    chunker.fingerprint(data, at, n);
+                    at += n;
+                }
+            };
+        }));
+
+        cases.add(new BenchmarkRunner.Case("token.hmac", 0, () -> {
+            byte[] kwKey = Bench.random(32);
+            String[] words = {"alpha", "report", "invoice-2024", "x"};
+            int[] i = {0};
+            return () -> ClientCore.token(kwKey, words[i[0]++ & 3]);
+        }));
+    }
+
+    static CryptoSuite suite(String alg) {
+        CryptoFactory.Config cfg = new CryptoFactory.Config(alg, 256, 256);
+        return CryptoFactory.build(cfg, Bench.random(32), Bench.random(32));
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Protocol paths against an in-process BlockStorageServer on loopback. The server
+// uses the serverconfig.txt / storage directories of the working directory, so run
+// the benchmark from a scratch folder.
+final class ServerBenchmarks {
+    static final int BLOB = 4096 + 64; // a 4 KiB block plus suite overhead
+    static final int KEYS = 4096;      // distinct block ids cycled through
+    static final int BATCH = 256;
+
+    private static int port;
+
+    private ServerBenchmarks() {
+    }
+
+    static void register(List<BenchmarkRunner.Case> cases) {
+        cases.add(new BenchmarkRunner.Case("server.storeBlock", BLOB, () -> {
+            Conn c = connect();
+            byte[] blob = Bench.random(BLOB);
+            int[] i = {0};
+            return () -> c.store("benchstore_block_" + (i[0]++ % KEYS), blob, List.of());
+        }));
+        cases.add(new BenchmarkRunner.Case("server.getBlock", BLOB, () -> {
+            Conn c = connect();
+            preload(c);
+            int[] i = {0};
+            return () -> {
+                c.out.writeUTF("GET_BLOCK");
+                c.out.writeUTF("benchget_block_" + (i[0]++ % KEYS));
+                c.out.flush();
+                c.in.skipNBytes(c.in.readInt());
+            };
+        }));
+        cases.add(new BenchmarkRunner.Case("server.getBlocks" + BATCH, (long) BLOB * BATCH, () -> {
+            Conn c = connect();
+            preload(c);
+            int[] i = {0};
+            return () -> {
+                int start = (i[0]++ * BATCH) % KEYS;
+                c.out.writeUTF("GET_BLOCKS");
+                c.out.writeInt(BATCH);
+                for (int k = 0; k < BATCH; k++) c.out.writeUTF("benchget_block_" + ((start + k) % KEYS));
+                c.out.flush();
+                for (int k = 0; k < BATCH; k++) c.in.skipNBytes(c.in.readInt());
+            };
+        }));
+        cases.add(new BenchmarkRunner.Case("server.searchBlocks", 0, () -> {
+            Conn c = connect();
+            byte[] blob = Bench.random(BLOB);
+            for (int f = 0; f < 100; f++) c.store(String.format("%032x_block_0", f), blob, List.of("benchtoken"));
+            return () -> {
+                c.out.writeUTF("SEARCH");
+                c.out.writeUTF("benchtoken");
+                c.out.flush();
+                int n = c.in.readInt();
+                for (int k = 0; k < n; k++) c.in.readUTF();
+            };
+        }));
+        cases.add(new BenchmarkRunner.Case("server.searchMulti", 0, () -> {
+            // rare AND common: 10 hits out of a 10000-file posting list
+            Conn c = connect();
+            byte[] blob = Bench.random(BLOB);
+            for (int f = 0; f < 10_000; f++) {
+                List<String> toks = f % 1000 == 0 ? List.of("benchcommon", "benchrare") : List.of("benchcommon");
+                c.store(String.format("%032x_block_0", 1_000_000 + f), blob, toks);
+            }
+            List<String> query = List.of("benchcommon", "benchrare", "AND");
+            return () -> {
+                c.out.writeUTF("SEARCH_MULTI");
+                c.out.writeInt(query.size());
+                for (String item : query) c.out.writeUTF(item);
+                c.out.flush();
+                int n = c.in.readInt();
+                for (int k = 0; k < n; k++) c.in.readUTF();
+            };
+        }));
+    }
+
+    static final class Conn {
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Conn(Socket s) throws IOException {
+            s.setTcpNoDelay(true); // as the client's ConnectionPool; blobs over 8 KiB leave in two writes
+            in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        }
+
+        void store(String blockId, byte[] blob, List<String> tokens) throws IOException {
+            out.writeUTF("STORE_BLOCK");
+            out.writeUTF(blockId);
+            out.writeInt(blob.length);
+            out.write(blob);
+            out.writeInt(tokens.size());
+            for (String t : tokens) out.writeUTF(t);
+            out.flush();
+            String resp = in.readUTF();
+            if (!"OK".equals(resp)) throw new IOException("server returned: " + resp);
+        }
+    }
+
+    static synchronized Conn connect() throws Exception {
+        if (port == 0) {
+            port = ServerConfig.load(Paths.get("serverconfig.txt")).port;
+            Thread server = new Thread(() -> {
+                try {
+                    BlockStorageServer.main(new String[0]);
+                } catch (IOException e) {
+                    System.err.println("in-process server failed: " + e.getMessage());
+                }
+            }, "bench-server");
+            server.setDaemon(true);
+            server.start();
+        }
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Conn(new Socket("localhost", port));
+            } catch (IOException e) {
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void preload(Conn c) throws IOException {
+        byte[] blob = Bench.random(BLOB);
+        for (int k = 0; k < KEYS; k++) c.store("benchget_block_" + k, blob, List.of());
+    }
+}
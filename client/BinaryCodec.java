@@ -0,0 +1,151 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Client side of wire protocol version 2 (the server's BinaryProtocol, which
+// documents the format): opcodes, varints and binary block ids. A chunk id or
+// fileId (32 hex) goes out as 16 bytes, <fileId>_block_<i> as 16 bytes and a
+// varint, and erasure shards (<id>_s<j>) add a varint, instead of the 40 to 60
+// bytes of writeUTF.
+final class BinaryCodec {
+    static final int VERSION = 2;
+
+    static final int EXIT = 0;
+    static final int STORE_BLOCK = 1;
+    static final int GET_BLOCKS = 2;
+    static final int HAS_BLOCKS = 3;
+    static final int GET_BLOCK_RANGE = 4;
+    static final int ADD_TOKENS = 5;
+    static final int SEARCH = 6;
+    static final int SEARCH_MULTI = 7;
+    static final int STATS = 8;
+    static final int PROOF = 11;
+    static final int BLOCK_HASHES = 12;
+    static final int DELETE_FILE = 13;
+    static final int DELETE_FILES = 14;
+
+    private static final int ID_HEX = 0;
+    private static final int ID_INDEXED = 1;
+    private static final int ID_TEXT = 2;
+    private static final int SHARD_FLAG = 0x80;
+    private static final String INDEX_SEPARATOR = "_block_";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private BinaryCodec() {}
+
+    static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if (b < 0x80) return value;
+        }
+        throw new IOException("varint too long");
+    }
+
+    static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] b = new byte[readVarint(in)];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, b.length);
+        out.write(b);
+    }
+
+    static void writeStrings(DataOutput out, List<String> items) throws IOException {
+        writeVarint(out, items.size());
+        for (String s : items) writeString(out, s);
+    }
+
+    static void writeBlockIds(DataOutput out, List<String> ids) throws IOException {
+        writeVarint(out, ids.size());
+        for (String id : ids) writeBlockId(out, id);
+    }
+
+    static void writeBlockId(DataOutput out, String id) throws IOException {
+        int shard = -1, end = id.length();
+        int s = id.lastIndexOf("_s");
+        if (s > 0 && isNumber(id, s + 2, id.length())) {
+            shard = Integer.parseInt(id.substring(s + 2));
+            end = s;
+        }
+        int flag = shard >= 0 ? SHARD_FLAG : 0;
+        if (end == 32 && isHex(id, 0, 32)) {
+            out.writeByte(ID_HEX | flag);
+            out.write(HEX.parseHex(id, 0, 32));
+        } else if (end > 32 + INDEX_SEPARATOR.length() && isHex(id, 0, 32) && id.startsWith(INDEX_SEPARATOR, 32)
+                && isNumber(id, 32 + INDEX_SEPARATOR.length(), end)) {
+            out.writeByte(ID_INDEXED | flag);
+            out.write(HEX.parseHex(id, 0, 32));
+            writeVarint(out, Integer.parseInt(id.substring(32 + INDEX_SEPARATOR.length(), end)));
+        } else {
+            out.writeByte(ID_TEXT);
+            writeString(out, id);
+            return;
+        }
+        if (shard >= 0) writeVarint(out, shard);
+    }
+
+    static String readBlockId(DataInput in) throws IOException {
+        int form = in.readUnsignedByte();
+        String id;
+        switch (form & ~SHARD_FLAG) {
+            case ID_HEX:
+                id = HEX.formatHex(readBytes(in, 16));
+                break;
+            case ID_INDEXED:
+                id = HEX.formatHex(readBytes(in, 16)) + INDEX_SEPARATOR + readVarint(in);
+                break;
+            case ID_TEXT:
+                id = readString(in);
+                break;
+            default:
+                throw new IOException("bad block id form " + form);
+        }
+        return (form & SHARD_FLAG) != 0 ? id + "_s" + readVarint(in) : id;
+    }
+
+    // "OK", or the server's error message
+    static String readStatus(DataInput in) throws IOException {
+        return in.readUnsignedByte() == 0 ? "OK" : readString(in);
+    }
+
+    // a reply payload: varint length + 1 and the bytes, null for a missing block
+    static byte[] readPayload(DataInput in) throws IOException {
+        int n = readVarint(in);
+        return n == 0 ? null : readBytes(in, n - 1);
+    }
+
+    private static byte[] readBytes(DataInput in, int n) throws IOException {
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return b;
+    }
+
+    private static boolean isHex(String s, int from, int to) {
+        if (s.length() < to) return false;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) return false;
+        }
+        return true;
+    }
+
+    private static boolean isNumber(String s, int from, int to) {
+        int len = to - from;
+        if (len < 1 || len > 9 || (len > 1 && s.charAt(from) == '0')) return false;
+        for (int i = from; i < to; i++) if (s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+        return true;
+    }
+}
@@ -0,0 +1,130 @@
+import crypto.CryptoSuite;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Optional compress-then-encrypt for PUT chunks. A sealed chunk is one clear
+// header byte naming the codec followed by the suite's blob; the header byte is
+// appended to the AAD, so it cannot be flipped without failing authentication.
+// A chunk is stored DEFLATE only if that saves at least 1/16 of it, else RAW.
+// Whether a file compresses rarely changes from chunk to chunk: after a few
+// chunks in a row that did not shrink, only every SAMPLE_EVERY-th one is tried,
+// and the first one that shrinks again turns compression back on for all.
+final class BlockCodec {
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+
+    private static final int MIN_SAVING = 16;   // compressed must be <= len - len/16
+    private static final int SKIP_AFTER = 4;    // chunks in a row that did not shrink
+    private static final int SAMPLE_EVERY = 32;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[0]);
+
+    private final CryptoSuite suite;
+    private final boolean compress;
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final LongAdder plainBytes = new LongAdder();
+    private final LongAdder packedBytes = new LongAdder();
+
+    BlockCodec(CryptoSuite suite, boolean compress) {
+        this.suite = suite;
+        this.compress = compress;
+    }
+
+    // header || suite blob of plain[0, len); aad is the chunk's AAD without the header
+    byte[] seal(byte[] plain, int len, byte[] aad) throws Exception {
+        byte codec = RAW;
+        byte[] body = plain;
+        int bodyLen = len;
+        if (compress && (misses.get() < SKIP_AFTER || skipped.incrementAndGet() % SAMPLE_EVERY == 0)) {
+            byte[] packed = scratch(len);
+            int n = deflate(plain, len, packed, len - len / MIN_SAVING);
+            if (n >= 0) {
+                codec = DEFLATE;
+                body = packed;
+                bodyLen = n;
+                misses.set(0);
+            } else {
+                misses.incrementAndGet();
+            }
+        }
+        plainBytes.add(len);
+        packedBytes.add(bodyLen);
+
+        byte[] blob = new byte[1 + suite.encryptedLength(bodyLen)];
+        blob[0] = codec;
+        suite.encrypt(ByteBuffer.wrap(body, 0, bodyLen), ByteBuffer.wrap(withHeader(aad, codec)),
+                ByteBuffer.wrap(blob, 1, blob.length - 1));
+        return blob;
+    }
+
+    // Verifies a sealed chunk and writes its plaintext at plain's position
+    // (plain must be array-backed); returns the plaintext length.
+    static int open(CryptoSuite suite, byte[] blob, byte[] aad, ByteBuffer plain) throws Exception {
+        if (blob.length == 0) throw new IOException("empty block");
+        byte codec = blob[0];
+        ByteBuffer ct = ByteBuffer.wrap(blob, 1, blob.length - 1);
+        ByteBuffer ad = ByteBuffer.wrap(withHeader(aad, codec));
+        if (codec == RAW) return suite.decrypt(ct, ad, plain);
+        if (codec != DEFLATE) throw new IOException("unknown block codec " + codec);
+
+        byte[] packed = scratch(suite.maxDecryptedLength(ct.remaining()));
+        int n = suite.decrypt(ct, ad, ByteBuffer.wrap(packed));
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(packed, 0, n);
+        try {
+            int out = inflater.inflate(plain.array(), plain.arrayOffset() + plain.position(), plain.remaining());
+            if (!inflater.finished()) throw new IOException("block inflates past " + plain.remaining() + " bytes");
+            plain.position(plain.position() + out);
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed block", e);
+        }
+    }
+
+    long plainBytes() {
+        return plainBytes.sum();
+    }
+
+    // bytes encrypted after compression (header and suite overhead not counted)
+    long packedBytes() {
+        return packedBytes.sum();
+    }
+
+    // Compressed length, or -1 if the output would not fit in limit bytes.
+    private static int deflate(byte[] in, int len, byte[] out, int limit) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(in, 0, len);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished() && n < limit) {
+            int k = deflater.deflate(out, n, limit - n);
+            if (k == 0) break;
+            n += k;
+        }
+        return deflater.finished() ? n : -1;
+    }
+
+    private static byte[] withHeader(byte[] aad, byte codec) {
+        byte[] ad = new byte[aad.length + 1];
+        System.arraycopy(aad, 0, ad, 0, aad.length);
+        ad[aad.length] = codec;
+        return ad;
+    }
+
+    private static byte[] scratch(int n) {
+        byte[] b = SCRATCH.get();
+        if (b.length < n) SCRATCH.set(b = new byte[n]);
+        return b;
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// How the client reaches its blocks and the keyword index: one server
+// (ServerTransport) or shards spread over several servers (ErasureTransport).
+interface BlockTransport extends Closeable {
+
+    // STORE_BLOCK_ASYNC; completes with the server's status ("OK" or "ERROR: ...")
+    CompletableFuture<String> store(String blockId, byte[] blob);
+
+    // GET_BLOCKS; one blob per id in order, null for every block that is not there
+    CompletableFuture<List<byte[]>> fetch(List<String> ids);
+
+    // Another version of a block whose blob from fetch did not decrypt, none of
+    // those in tried; completes with null if the transport keeps no other.
+    default CompletableFuture<byte[]> fetchOther(String id, List<byte[]> tried) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // HAS_BLOCKS; one answer per id
+    CompletableFuture<boolean[]> has(List<String> ids);
+
+    // ADD_TOKENS on every server, as each keeps the keyword index; one status each.
+    List<CompletableFuture<String>> addTokens(String fileId, List<String> tokens);
+
+    // DELETE_FILE (one file) or DELETE_FILES on every server: drops each fileId from
+    // the keyword index and reclaims the listed blocks; one status each.
+    List<CompletableFuture<String>> delete(Map<String, List<String>> blocksByFile);
+
+    // SEARCH (one token) or SEARCH_MULTI (a postfix query), answered by one server.
+    CompletableFuture<SearchReply> search(List<String> query);
+
+    // STATS of every server, in SERVERS order.
+    List<CompletableFuture<String>> stats();
+
+    // PROOF; the Merkle root of the blocks and each sampled block with its audit path
+    CompletableFuture<Proof> proof(List<String> ids, int[] samples);
+
+    // BLOCK_HASHES; each block's Merkle leaf hash, null for missing blocks
+    CompletableFuture<List<byte[]>> hashes(List<String> ids);
+
+    // whether proof() and hashes() work: a server must hold whole blocks, not shards
+    boolean canProve();
+
+    // the fileIds found, or the server's error message
+    record SearchReply(List<String> ids, String error) {}
+
+    // missing >= 0 is the first block the server does not have, and nothing else is set
+    record Proof(int missing, byte[] root, List<byte[]> blobs, List<List<byte[]>> paths) {}
+
+    @Override
+    void close();
+}
@@ -8,15 +8,24 @@ public class CLTest {
         Usage:
           CLTest PUT <path/dir/file> <keywords>
           CLTest LIST
-          CLTest SEARCH <keywords>
+          CLTest SEARCH <keywords>          e.g. "report 2024" or "invoice AND (paid OR NOT draft)"
           CLTest GET <file> <path/dir>
           CLTest GET <keywords> <path/dir>
-          CLTest GET CHECKINTEGRITY <path/dir/file>
+          CLTest GET CHECKINTEGRITY <path/dir/file>        Merkle proof + sampled blocks
+          CLTest GET CHECKINTEGRITY DEEP <path/dir/file>   download and decrypt every block
+          CLTest DELETE <file> [<file>...]  keywords at once, blocks reclaimed in the background
+          CLTest READ <file> <offset> <length> [outFile]   (bytes to stdout if no outFile)
+          CLTest STATS                      server latencies, traffic and connections
       """);
                 return;
             }
 
-            ClientCore core = new ClientCore("localhost", 5000);
+            try (ClientCore core = new ClientCore("localhost", 5000)) {
+                run(core, args);
+            }
+        }
+
+        static void run(ClientCore core, String[] args) throws Exception {
             String cmd = args[0].toUpperCase();
 
             switch (cmd) {
@@ -24,13 +33,25 @@ public class CLTest {
                 case "LIST" -> core.listLocal();
                 case "SEARCH" -> core.search(args[1]);
                 case "GET" -> {
-                    if ("CHECKINTEGRITY".equalsIgnoreCase(args[1])) core.checkIntegrity(args[2]);
-                    else if (args[2] != null) {
+                    if ("CHECKINTEGRITY".equalsIgnoreCase(args[1])) {
+                        if ("DEEP".equalsIgnoreCase(args[2]) && args.length > 3) core.checkIntegrity(args[3], true);
+                        else core.checkIntegrity(args[2]);
+                    } else if (args[2] != null) {
                         // decide: if args[1] looks like filename -> getToDir, else getByKeywords
                         if (args[1].contains(".") && !args[1].contains(" ")) core.getToDir(args[1], args[2]);
                         else core.getByKeywords(args[1], args[2]);
                     }
                 }
+                case "READ" -> {
+                    byte[] bytes = core.readRange(args[1], Long.parseLong(args[2]), Integer.parseInt(args[3]));
+                    if (args.length > 4) java.nio.file.Files.write(java.nio.file.Paths.get(args[4]), bytes);
+                    else {
+                        System.out.write(bytes);
+                        System.out.flush();
+                    }
+                }
+                case "DELETE" -> core.delete(java.util.Arrays.asList(args).subList(1, args.length));
+                case "STATS" -> System.out.print(core.serverStats());
                 default -> System.out.println("Unknown command");
             }
         }
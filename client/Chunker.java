@@ -0,0 +1,172 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Content-defined chunking (FastCDC-style gear hash with normalized chunk sizes):
+// cut points depend on the bytes around them, not on their offset, so an edit
+// only changes the chunks it touches and the rest of the file keeps its chunk
+// ids. A chunk id is a keyed fingerprint, HMAC-SHA256(chunkKey, format || chunk)
+// cut to 128 bits; the gear table is derived from the same key, so the server can
+// neither predict cut points nor confirm guessed content.
+// Chunks are avg/2 to 4 * avg bytes for a power-of-two average size; the same
+// key gives the same cut points only for the same average, so a file keeps the
+// average it was first uploaded with.
+final class Chunker {
+    static final int DEFAULT_SIZE = 4 * 1024;
+    static final int MIN_AVERAGE = 1024;
+    static final int MAX_AVERAGE = 1024 * 1024;
+    private static final int READ_BUFFER = 1 << 20;
+    private static final byte FRAMED = 1;
+
+    record Chunk(long offset, int length, String id) {}
+
+    private final long[] gear;
+    private final ThreadLocal<Mac> macs;
+    private final int minSize, avgSize, maxSize;
+    // below avgSize a cut needs log2(avg) + 2 zero bits, above it log2(avg) - 2 (top bits carry the longest window)
+    private final long maskSmall, maskLarge;
+
+    Chunker(byte[] key) {
+        this(gearTable(key), macs(key), DEFAULT_SIZE);
+    }
+
+    private Chunker(long[] gear, ThreadLocal<Mac> macs, int avgSize) {
+        if (Integer.bitCount(avgSize) != 1 || avgSize < MIN_AVERAGE || avgSize > MAX_AVERAGE)
+            throw new IllegalArgumentException("chunk size must be a power of two from " + MIN_AVERAGE + " to " + MAX_AVERAGE);
+        this.gear = gear;
+        this.macs = macs;
+        this.avgSize = avgSize;
+        this.minSize = avgSize / 2;
+        this.maxSize = maxChunk(avgSize);
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        this.maskSmall = -1L << (64 - (bits + 2));
+        this.maskLarge = -1L << (64 - (bits - 2));
+    }
+
+    // Same key (ids, gear table), another average chunk size.
+    Chunker withAverage(int avgSize) {
+        return avgSize == this.avgSize ? this : new Chunker(gear, macs, avgSize);
+    }
+
+    int averageSize() {
+        return avgSize;
+    }
+
+    // largest chunk cut with the given average size
+    static int maxChunk(int avgSize) {
+        return 4 * avgSize;
+    }
+
+    private static ThreadLocal<Mac> macs(byte[] key) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static long[] gearTable(byte[] key) {
+        long[] gear = new long[256];
+        Mac mac = macs(key).get();
+        for (int i = 0; i < 256; i++) {
+            byte[] h = mac.doFinal(("gear" + i).getBytes());
+            for (int k = 0; k < 8; k++) gear[i] = gear[i] << 8 | (h[k] & 0xFF);
+        }
+        return gear;
+    }
+
+    // Chunks of the whole file in order. Cut points are found on this thread,
+    // fingerprints by 'threads' workers with at most inFlight chunks buffered.
+    List<Chunk> scan(Path file, int threads, int inFlight) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "put-fingerprint");
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore window = new Semaphore(inFlight);
+        List<Future<Chunk>> chunks = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buf = new byte[Math.max(READ_BUFFER, 2 * maxSize)];
+            int start = 0, end = 0;
+            long offset = 0;
+            boolean eof = false;
+            while (true) {
+                if (!eof && end - start < maxSize) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    int n = in.readNBytes(buf, end, buf.length - end);
+                    end += n;
+                    eof = end < buf.length;
+                }
+                if (start == end) break;
+                int len = cut(buf, start, end);
+                byte[] data = Arrays.copyOfRange(buf, start, start + len);
+                long at = offset;
+                window.acquireUninterruptibly();
+                chunks.add(pool.submit(() -> {
+                    try {
+                        return new Chunk(at, data.length, fingerprint(data, 0, data.length));
+                    } finally {
+                        window.release();
+                    }
+                }));
+                start += len;
+                offset += len;
+            }
+            List<Chunk> out = new ArrayList<>(chunks.size());
+            for (Future<Chunk> f : chunks) out.add(f.get());
+            return out;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Length of the chunk starting at from; to is the end of the data available
+    // (callers pass at least maxChunk(averageSize()) bytes unless the file ends sooner).
+    int cut(byte[] buf, int from, int to) {
+        int n = to - from;
+        if (n <= minSize) return n;
+        int normal = Math.min(n, avgSize), max = Math.min(n, maxSize);
+        long fp = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + gear[buf[from + i] & 0xFF];
+            if ((fp & maskSmall) == 0) return i + 1;
+        }
+        for (; i < max; i++) {
+            fp = (fp << 1) + gear[buf[from + i] & 0xFF];
+            if ((fp & maskLarge) == 0) return i + 1;
+        }
+        return max;
+    }
+
+    // Id of a chunk stored sealed by BlockCodec. The MAC input starts with a
+    // format byte, so these ids never name a blob of the older unframed format.
+    String fingerprint(byte[] data, int off, int len) {
+        Mac mac = macs.get();
+        mac.update(FRAMED);
+        mac.update(data, off, len);
+        return HexFormat.of().formatHex(mac.doFinal(), 0, 16);
+    }
+
+    // Id the same chunk had in uploads made before BlockCodec framing.
+    String unframedFingerprint(byte[] data, int off, int len) {
+        Mac mac = macs.get();
+        mac.update(data, off, len);
+        return HexFormat.of().formatHex(mac.doFinal(), 0, 16);
+    }
+}
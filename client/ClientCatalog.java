@@ -0,0 +1,520 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.*;
+
+// Everything the client knows about its uploads (filename <-> fileId, blocks,
+// keywords) in one append-only file read through a memory map. Opening only walks
+// the records to fill two open-addressing tables of record offsets, one keyed by
+// filename and one by fileId; names and keywords are decoded when asked for.
+// A newer record for the same filename replaces the older one.
+//
+// Record: int length, int crc32 of the payload, then the payload:
+//   byte type, 16 bytes fileId, int blockCount, filename, short keyword count, keywords
+// with every string as an unsigned short length + UTF-8 bytes. FILE records
+// (fixed-size uploads) derive their block ids from the fileId; CHUNKED, FRAMED
+// and SIZED records end with the 16-byte id of every content-defined chunk,
+// FRAMED and SIZED ones for chunks stored with a BlockCodec header. SIZED records
+// then give each chunk's end offset in the file (long), so any block can be
+// placed without the ones before it. TUNED records are SIZED ones followed by the
+// int average chunk size the file was cut with, for sizes other than the default
+// (every other type implies 4096). ROOTED records are TUNED ones (the chunk size
+// always written) followed by the 32-byte Merkle root of the stored blocks
+// (MerkleTree), which CHECKINTEGRITY proves against the server. DELETED records
+// (fileId, blockCount 0, filename, no keywords) hide both the filename and the
+// fileId of a deleted upload until a later upload reuses the name. A torn or corrupt
+// tail fails its CRC; the scan stops there and the next append overwrites it.
+//
+// Every CHECKPOINT_EVERY bytes of appends, the end of the last record (with its
+// offset and CRC, to recognize it) goes to <catalog>.end; opening only CRC-checks
+// the records past it. Once replaced and deleted records take more room than the
+// current ones, the current ones are copied to <catalog>.compact, which is then
+// renamed over the catalog.
+final class ClientCatalog implements Closeable {
+    private static final byte FILE = 1;
+    private static final byte CHUNKED = 2;
+    private static final byte FRAMED = 3;
+    private static final byte SIZED = 4;
+    private static final byte TUNED = 5;
+    private static final byte ROOTED = 6;
+    private static final byte DELETED = 7;
+    private static final int HEADER = 8;                  // length + crc
+    private static final int FILE_ID = HEADER + 1;
+    private static final int BLOCK_COUNT = FILE_ID + 16;
+    private static final int NAME = BLOCK_COUNT + 4;
+    private static final int MIN_PAYLOAD = NAME + 2 + 2 - HEADER;
+    private static final int CHECKPOINT_EVERY = 1 << 20; // bytes appended past the last checkpoint
+    private static final int COMPACT_MIN = 1 << 20;      // smaller catalogs are never compacted
+    private static final HexFormat HEX = HexFormat.of();
+
+    // chunkIds is null for files uploaded in fixed-size blocks before chunking;
+    // framed chunks are sealed by BlockCodec (codec header, maybe compressed);
+    // chunkEnds (end offset of each chunk) is null for uploads that did not record it;
+    // chunkSize is the average chunk size, or the block size of fixed-size uploads;
+    // merkleRoot is null for uploads that did not record one
+    record Entry(String filename, String fileId, int blockCount, List<String> keywords, List<String> chunkIds,
+                 boolean framed, List<Long> chunkEnds, int chunkSize, byte[] merkleRoot) {
+        Entry(String filename, String fileId, int blockCount, List<String> keywords) {
+            this(filename, fileId, blockCount, keywords, null, false, null, ClientCore.BLOCK_SIZE, null);
+        }
+
+        // Block ids in file order: the chunk ids, or fileId_block_0 ... fileId_block_(n-1)
+        List<String> blockIds() {
+            if (chunkIds != null) return chunkIds;
+            return new AbstractList<>() {
+                @Override
+                public String get(int i) {
+                    return blockId(fileId, Objects.checkIndex(i, blockCount));
+                }
+
+                @Override
+                public int size() {
+                    return blockCount;
+                }
+            };
+        }
+
+        // Offset of block i in the file (i == blockCount: the file size), or -1 if
+        // unknown: chunked uploads without chunkEnds, and the size of FILE uploads.
+        long offset(int i) {
+            Objects.checkIndex(i, blockCount + 1);
+            if (chunkEnds != null) return i == 0 ? 0 : chunkEnds.get(i - 1);
+            if (chunkIds == null && i < blockCount) return (long) i * chunkSize;
+            return i == 0 ? 0 : -1;
+        }
+
+        // Block holding byte pos of the file (pos < size), or -1 without a block index.
+        // FILE uploads answer for any pos; whether it is past the end shows in the last block.
+        int blockAt(long pos) {
+            if (chunkEnds != null) {
+                int lo = 0, hi = blockCount - 1;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (chunkEnds.get(mid) <= pos) lo = mid + 1;
+                    else hi = mid;
+                }
+                return lo;
+            }
+            if (chunkIds == null) return (int) Math.min(pos / chunkSize, blockCount - 1);
+            return -1;
+        }
+
+        // AAD the i-th block was encrypted with (before BlockCodec's header byte)
+        byte[] aad(int i) {
+            return chunkIds != null ? chunkIds.get(i).getBytes() : (fileId + ":" + i).getBytes();
+        }
+    }
+
+    private final Path file, checkpoint, compacted;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int end;                         // end of the last good record
+    private int last;                        // offset of the last good record
+    private int checked;                     // end written to the checkpoint
+    private int live;                        // bytes of the records neither replaced nor deleted
+    private int[] byName = new int[1024];    // record offset + 1, 0 = free
+    private int[] byId = new int[1024];
+    private int nameSlots, idSlots;
+    private int names;                       // filenames not deleted
+
+    ClientCatalog(Path file) throws IOException {
+        this.file = file;
+        this.checkpoint = file.resolveSibling(file.getFileName() + ".end");
+        this.compacted = file.resolveSibling(file.getFileName() + ".compact");
+        Files.deleteIfExists(compacted); // a compaction that did not get to the rename
+        open();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, READ, WRITE, CREATE);
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) throw new IOException("catalog over 2 GB: " + file); // appends compact first
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        clear();
+        checked = checkpointed((int) size);
+        if (!walk(checked)) { // the checkpoint was for another file
+            Files.deleteIfExists(checkpoint);
+            clear();
+            checked = 0;
+        }
+        while (valid(end, (int) size)) {
+            index(end);
+            end += HEADER + map.getInt(end);
+        }
+        if (end - checked >= CHECKPOINT_EVERY) checkpoint();
+    }
+
+    private void clear() {
+        byName = new int[1024];
+        byId = new int[1024];
+        nameSlots = idSlots = names = live = end = last = 0;
+    }
+
+    // Indexes the records before to without checking their CRCs; false if their
+    // lengths do not end there.
+    private boolean walk(int to) {
+        while (end < to) {
+            int len = map.getInt(end);
+            if (len < MIN_PAYLOAD || len > to - end - HEADER) return false;
+            index(end);
+            end += HEADER + len;
+        }
+        return true;
+    }
+
+    // The end offset in the checkpoint if its last record is there as recorded, else 0.
+    private int checkpointed(int size) throws IOException {
+        ByteBuffer c;
+        try {
+            c = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        if (c.remaining() != 12) return 0;
+        int lastOff = c.getInt(), to = c.getInt(), crc = c.getInt();
+        if (lastOff < 0 || to > size || to - lastOff < HEADER + MIN_PAYLOAD) return 0;
+        return map.getInt(lastOff) == to - lastOff - HEADER && map.getInt(lastOff + 4) == crc ? to : 0;
+    }
+
+    // Written after the records it covers are forced, so it never names an end
+    // that is not on disk; a lost or torn one only means more CRCs at the next open.
+    private void checkpoint() throws IOException {
+        if (end == 0) return;
+        ByteBuffer c = ByteBuffer.allocate(12).putInt(last).putInt(end).putInt(map.getInt(last + 4));
+        Files.write(checkpoint, c.array());
+        checked = end;
+    }
+
+    static String blockId(String fileId, int index) {
+        return fileId + "_block_" + index;
+    }
+
+    void add(Entry entry) throws IOException {
+        addAll(List.of(entry));
+    }
+
+    synchronized void addAll(List<Entry> entries) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(entries.size());
+        for (Entry e : entries) payloads.add(payload(e));
+        append(payloads);
+    }
+
+    // Marks the uploads deleted; names not in the catalog are skipped.
+    synchronized void remove(List<String> filenames) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(filenames.size());
+        for (String name : filenames) {
+            Entry e = byName(name);
+            if (e == null) continue;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(DELETED);
+            out.write(HEX.parseHex(e.fileId()));
+            out.writeInt(0);
+            writeString(out, name);
+            out.writeShort(0);
+            payloads.add(bytes.toByteArray());
+        }
+        if (!payloads.isEmpty()) append(payloads);
+    }
+
+    // One write, one fsync and one remap for the whole batch.
+    private void append(List<byte[]> payloads) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (byte[] body : payloads) {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            out.writeInt(body.length);
+            out.writeInt((int) crc.getValue());
+            out.write(body);
+        }
+        if ((long) end + bytes.size() > Integer.MAX_VALUE) compact();
+        if ((long) end + bytes.size() > Integer.MAX_VALUE) throw new IOException("catalog full: 2 GB of current records");
+        ByteBuffer records = ByteBuffer.wrap(bytes.toByteArray());
+        for (long pos = end; records.hasRemaining(); ) pos += channel.write(records, pos);
+        channel.force(false);
+
+        int off = end;
+        end += bytes.size();
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        for (; off < end; off += HEADER + map.getInt(off)) index(off);
+        if (end >= COMPACT_MIN && end - live > live) {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("Could not compact " + file + ": " + e.getMessage());
+            }
+        }
+        if (end - checked >= CHECKPOINT_EVERY) checkpoint();
+    }
+
+    // Current records, in catalog order, into a new file renamed over this one.
+    // Entries handed out before keep reading the old mapping.
+    private void compact() throws IOException {
+        try (FileChannel out = FileChannel.open(compacted, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            long pos = 0;
+            for (int off = 0; off < end; off += HEADER + map.getInt(off)) {
+                if (!current(off) || deleted(off)) continue;
+                ByteBuffer record = map.slice(off, HEADER + map.getInt(off));
+                while (record.hasRemaining()) pos += out.write(record, pos);
+            }
+            out.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+        Files.deleteIfExists(checkpoint); // its offsets are for the old layout
+        Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel.close();
+        open();
+        checkpoint();
+    }
+
+    synchronized Entry byName(String filename) {
+        int off = byName[find(byName, filename.getBytes(StandardCharsets.UTF_8), false)] - 1;
+        return off < 0 || deleted(off) ? null : entry(off);
+    }
+
+    // null for unknown ids and for uploads later replaced under the same filename or deleted
+    synchronized Entry byFileId(String fileId) {
+        byte[] id;
+        try {
+            id = HEX.parseHex(fileId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (id.length != 16) return null;
+        int off = byId[find(byId, id, true)] - 1;
+        return off >= 0 && current(off) && !deleted(off) ? entry(off) : null;
+    }
+
+    // current filenames in upload order
+    synchronized List<String> filenames() {
+        List<String> out = new ArrayList<>();
+        for (int off = 0; off < end; off += HEADER + map.getInt(off)) {
+            if (current(off) && !deleted(off)) out.add(string(off + NAME));
+        }
+        return out;
+    }
+
+    synchronized boolean isEmpty() {
+        return names == 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private boolean valid(int off, int size) {
+        if (size - off < HEADER) return false;
+        int len = map.getInt(off);
+        if (len < MIN_PAYLOAD || len > size - off - HEADER) return false;
+        CRC32 crc = new CRC32();
+        crc.update(map.slice(off + HEADER, len));
+        return (int) crc.getValue() == map.getInt(off + 4);
+    }
+
+    private void index(int off) {
+        int slot = find(byName, off, false);
+        if (byName[slot] == 0) {
+            nameSlots++;
+        } else if (!deleted(byName[slot] - 1)) {
+            names--;
+            live -= HEADER + map.getInt(byName[slot] - 1);
+        }
+        if (!deleted(off)) {
+            names++;
+            live += HEADER + map.getInt(off);
+        }
+        last = off;
+        byName[slot] = off + 1;
+        slot = find(byId, off, true);
+        if (byId[slot] == 0) idSlots++;
+        byId[slot] = off + 1;
+        if (nameSlots * 2 > byName.length) byName = rehash(byName, false);
+        if (idSlots * 2 > byId.length) byId = rehash(byId, true);
+    }
+
+    private boolean deleted(int off) {
+        return map.get(off + HEADER) == DELETED;
+    }
+
+    private boolean current(int off) {
+        return byName[find(byName, off, false)] - 1 == off;
+    }
+
+    // Linear probing: the slot holding key, or the free slot where it would go.
+    private int find(int[] table, byte[] key, boolean id) {
+        int mask = table.length - 1;
+        for (int i = spread(Arrays.hashCode(key)) & mask; ; i = (i + 1) & mask) {
+            if (table[i] == 0 || keyEquals(table[i] - 1, id, key)) return i;
+        }
+    }
+
+    // Same, for the key of the record at off; reads the map without copying the key out.
+    private int find(int[] table, int off, boolean id) {
+        int mask = table.length - 1;
+        for (int i = hash(off, id) & mask; ; i = (i + 1) & mask) {
+            if (table[i] == 0 || sameKey(table[i] - 1, off, id)) return i;
+        }
+    }
+
+    private int[] rehash(int[] table, boolean id) {
+        int[] bigger = new int[table.length * 2];
+        for (int v : table) {
+            if (v != 0) bigger[findFree(bigger, hash(v - 1, id))] = v;
+        }
+        return bigger;
+    }
+
+    private static int findFree(int[] table, int hash) {
+        int mask = table.length - 1, i = hash & mask;
+        while (table[i] != 0) i = (i + 1) & mask;
+        return i;
+    }
+
+    private int keyPos(int off, boolean id) {
+        return id ? off + FILE_ID : off + NAME + 2;
+    }
+
+    private int keyLen(int off, boolean id) {
+        return id ? 16 : map.getShort(off + NAME) & 0xFFFF;
+    }
+
+    private boolean keyEquals(int off, boolean id, byte[] key) {
+        int pos = keyPos(off, id);
+        if (keyLen(off, id) != key.length) return false;
+        for (int i = 0; i < key.length; i++) if (map.get(pos + i) != key[i]) return false;
+        return true;
+    }
+
+    private boolean sameKey(int a, int b, boolean id) {
+        int len = keyLen(a, id), pa = keyPos(a, id), pb = keyPos(b, id);
+        if (keyLen(b, id) != len) return false;
+        for (int i = 0; i < len; i++) if (map.get(pa + i) != map.get(pb + i)) return false;
+        return true;
+    }
+
+    // spread(Arrays.hashCode(key)) computed in place, so both find()s agree
+    private int hash(int off, boolean id) {
+        int pos = keyPos(off, id), len = keyLen(off, id), h = 1;
+        for (int i = 0; i < len; i++) h = 31 * h + map.get(pos + i);
+        return spread(h);
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Entry entry(int off) {
+        byte[] id = new byte[16];
+        map.get(off + FILE_ID, id);
+        int pos = off + NAME;
+        String name = string(pos);
+        pos += 2 + (map.getShort(pos) & 0xFFFF);
+        int count = map.getShort(pos) & 0xFFFF;
+        pos += 2;
+        List<String> keywords = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keywords.add(string(pos));
+            pos += 2 + (map.getShort(pos) & 0xFFFF);
+        }
+        int blocks = map.getInt(off + BLOCK_COUNT);
+        byte type = map.get(off + HEADER);
+        List<String> chunkIds = null;
+        List<Long> chunkEnds = null;
+        if (type >= SIZED) {
+            ByteBuffer ends = map.slice(pos + blocks * 16, blocks * 8);
+            chunkEnds = new AbstractList<>() {
+                @Override
+                public Long get(int i) {
+                    return ends.getLong(Objects.checkIndex(i, blocks) * 8);
+                }
+
+                @Override
+                public int size() {
+                    return blocks;
+                }
+            };
+        }
+        if (type != FILE) {
+            ByteBuffer ids = map.slice(pos, blocks * 16); // stays valid after a remap
+            chunkIds = new AbstractList<>() {
+                @Override
+                public String get(int i) {
+                    byte[] b = new byte[16];
+                    ids.get(Objects.checkIndex(i, blocks) * 16, b);
+                    return HEX.formatHex(b);
+                }
+
+                @Override
+                public int size() {
+                    return blocks;
+                }
+            };
+        }
+        int chunkSize = type >= TUNED ? map.getInt(pos + blocks * 24) : ClientCore.BLOCK_SIZE;
+        byte[] root = null;
+        if (type == ROOTED) {
+            root = new byte[MerkleTree.HASH];
+            map.get(pos + blocks * 24 + 4, root);
+        }
+        return new Entry(name, HEX.formatHex(id), blocks, keywords, chunkIds, type >= FRAMED, chunkEnds, chunkSize, root);
+    }
+
+    private String string(int pos) {
+        byte[] b = new byte[map.getShort(pos) & 0xFFFF];
+        map.get(pos + 2, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] payload(Entry e) throws IOException {
+        byte[] id = HEX.parseHex(e.fileId());
+        if (id.length != 16) throw new IllegalArgumentException("fileId is not 32 hex digits: " + e.fileId());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (e.chunkEnds() != null && (e.chunkIds() == null || !e.framed()))
+            throw new IllegalArgumentException("chunk ends are only recorded for framed chunks");
+        boolean rooted = e.merkleRoot() != null;
+        boolean tuned = rooted || e.chunkSize() != ClientCore.BLOCK_SIZE;
+        if (tuned && e.chunkEnds() == null) throw new IllegalArgumentException("chunk size and root are only recorded with chunk ends");
+        if (rooted && e.merkleRoot().length != MerkleTree.HASH) throw new IllegalArgumentException("Merkle root is not 32 bytes");
+        out.writeByte(e.chunkIds() == null ? FILE : rooted ? ROOTED : tuned ? TUNED : e.chunkEnds() != null ? SIZED
+                : e.framed() ? FRAMED : CHUNKED);
+        out.write(id);
+        out.writeInt(e.blockCount());
+        writeString(out, e.filename());
+        out.writeShort(checkShort(e.keywords().size()));
+        for (String kw : e.keywords()) writeString(out, kw);
+        if (e.chunkIds() != null) {
+            if (e.chunkIds().size() != e.blockCount()) throw new IllegalArgumentException("blockCount != chunk count");
+            for (String chunk : e.chunkIds()) out.write(HEX.parseHex(chunk));
+        }
+        if (e.chunkEnds() != null) {
+            if (e.chunkEnds().size() != e.blockCount()) throw new IllegalArgumentException("blockCount != chunk end count");
+            for (long end : e.chunkEnds()) out.writeLong(end);
+        }
+        if (tuned) out.writeInt(e.chunkSize());
+        if (rooted) out.write(e.merkleRoot());
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(checkShort(b.length));
+        out.write(b);
+    }
+
+    private static int checkShort(int n) {
+        if (n > 0xFFFF) throw new IllegalArgumentException("too long for the catalog: " + n);
+        return n;
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.*;
+import java.util.*;
+
+// Non-crypto client settings; they live in cryptoconfig.txt next to ALG so the
+// client keeps a single configuration file. Every key is optional.
+public class ClientConfig {
+    public final int uploadWindow;  // STORE_BLOCKs in flight during PUT (1 = wait for each OK)
+    public final int encryptThreads;    // PUT encryption workers
+    public final int pipelineBlocks;    // blocks read/encrypted ahead of the sender (memory bound)
+    public final int connections;       // pooled keep-alive connections to the server
+    public final int protocol;          // highest wire protocol offered to servers: 2 = binary frames, 1 = text
+    public final int downloadWindow;    // GET_BLOCKS batches in flight during GET
+    public final int decryptThreads;    // GET decryption workers
+    public final int readAhead;         // blocks fetched per miss by range reads
+    public final int proofSamples;      // blocks CHECKINTEGRITY has the server prove and decrypts
+    public final boolean timings;       // print where each PUT / GET spent its time
+    public final boolean compress;      // DEFLATE chunks before encrypting them (COMPRESSION = DEFLATE)
+    public final int blockSize;         // average chunk size of new uploads; 0 = AUTO (from the file size)
+    public final List<InetSocketAddress> servers; // SERVERS; empty = the host and port the client is given
+    public final int dataShards;        // ERASURE = k+m: k data and m parity shards per block, 0 = off
+    public final int parityShards;
+
+    private ClientConfig(Properties p) {
+        this.uploadWindow = Math.max(1, Integer.parseInt(p.getProperty("UPLOAD_WINDOW", "16").trim()));
+        this.encryptThreads = Math.max(1, Integer.parseInt(p.getProperty("ENCRYPT_THREADS",
+                String.valueOf(Runtime.getRuntime().availableProcessors())).trim()));
+        this.pipelineBlocks = Math.max(1, Integer.parseInt(p.getProperty("PIPELINE_BLOCKS", "64").trim()));
+        this.connections = Math.max(1, Integer.parseInt(p.getProperty("CONNECTIONS", "4").trim()));
+        this.protocol = Integer.parseInt(p.getProperty("PROTOCOL", "2").trim());
+        if (protocol != 1 && protocol != 2) throw new IllegalArgumentException("PROTOCOL must be 1 or 2, not " + protocol);
+        this.downloadWindow = Math.max(1, Integer.parseInt(p.getProperty("DOWNLOAD_WINDOW", "4").trim()));
+        this.decryptThreads = Math.max(1, Integer.parseInt(p.getProperty("DECRYPT_THREADS",
+                String.valueOf(Runtime.getRuntime().availableProcessors())).trim()));
+        this.readAhead = Math.max(1, Integer.parseInt(p.getProperty("READ_AHEAD", "8").trim()));
+        this.proofSamples = Math.max(0, Integer.parseInt(p.getProperty("PROOF_SAMPLES", "16").trim()));
+        this.timings = Boolean.parseBoolean(p.getProperty("TIMINGS", "false").trim());
+        String compression = p.getProperty("COMPRESSION", "NONE").trim().toUpperCase();
+        if (!compression.equals("NONE") && !compression.equals("DEFLATE"))
+            throw new IllegalArgumentException("COMPRESSION must be NONE or DEFLATE, not " + compression);
+        this.compress = compression.equals("DEFLATE");
+        String blockSize = p.getProperty("BLOCK_SIZE", "AUTO").trim();
+        if (blockSize.equalsIgnoreCase("AUTO")) {
+            this.blockSize = 0;
+        } else {
+            this.blockSize = Integer.parseInt(blockSize);
+            if (Integer.bitCount(this.blockSize) != 1 || this.blockSize < Chunker.MIN_AVERAGE || this.blockSize > Chunker.MAX_AVERAGE)
+                throw new IllegalArgumentException("BLOCK_SIZE must be AUTO or a power of two from "
+                        + Chunker.MIN_AVERAGE + " to " + Chunker.MAX_AVERAGE + ", not " + blockSize);
+        }
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (String s : p.getProperty("SERVERS", "").split(",")) {
+            if (s.isBlank()) continue;
+            int colon = s.lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("SERVERS entries are host:port, not " + s.trim());
+            servers.add(InetSocketAddress.createUnresolved(s.substring(0, colon).trim(), Integer.parseInt(s.substring(colon + 1).trim())));
+        }
+        this.servers = List.copyOf(servers);
+        String erasure = p.getProperty("ERASURE", "").trim();
+        if (erasure.isEmpty()) {
+            this.dataShards = 0;
+            this.parityShards = 0;
+            if (servers.size() > 1) throw new IllegalArgumentException("several SERVERS need ERASURE = k+m");
+        } else {
+            String[] km = erasure.split("\\+");
+            if (km.length != 2) throw new IllegalArgumentException("ERASURE must be k+m (e.g. 4+2), not " + erasure);
+            this.dataShards = Integer.parseInt(km[0].trim());
+            this.parityShards = Integer.parseInt(km[1].trim());
+            if (dataShards < 1 || parityShards < 0 || servers.size() < dataShards + parityShards)
+                throw new IllegalArgumentException("ERASURE = " + erasure + " needs k >= 1 and at least k+m SERVERS");
+        }
+    }
+
+    public static ClientConfig load(Path path) throws IOException {
+        Properties p = new Properties();
+        if (Files.exists(path)) {
+            try (Reader r = Files.newBufferedReader(path)) {
+                p.load(r);
+            }
+        }
+        return new ClientConfig(p);
+    }
+}
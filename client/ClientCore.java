@@ -2,51 +2,73 @@ import crypto.CryptoFactory;
 import crypto.CryptoSuite;
 
 import java.io.*;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 
-public class ClientCore {
+public class ClientCore implements Closeable {
 
          final String host;
          final int port;
+         final BlockTransport transport; // keep-alive connections shared by every call on this instance
 
 
     static CryptoSuite SUITE;
+    static ClientConfig CONFIG;
 
-    static final String INDEX_FILE = "client_index.ser";      // filename -> blockIds
-        static final String KW_INDEX_FILE = "client_keywords.ser";// filename -> keywords
+    static final String CATALOG_FILE = "client_catalog.bin";  // filename <-> fileId, block count, keywords
         static final String KEYS_FILE = "client_keys.properties"; // AES/HMAC keys
+        // older clients kept the catalog in these three files; imported once, then renamed *.migrated
+        static final String INDEX_FILE = "client_index.ser";      // filename -> blockIds
+        static final String KW_INDEX_FILE = "client_keywords.ser";// filename -> keywords
         static final String FILEID_FILE = "client_fileids.ser";//filename->fileid
 
 
-        static final int BLOCK_SIZE = 4096;
+        static final int BLOCK_SIZE = 4096; // fixed block size of uploads made before content-defined chunking
+        static final int HAS_BATCH = 1024; // chunk ids per HAS_BLOCKS request
+        static final int GET_BATCH = 256; // block ids per GET_BLOCKS request
+        static final int GET_BATCH_BYTES = 1 << 20; // fewer ids per GET_BLOCKS / range-read miss for larger chunks
+        static final int PUT_BUFFER_BYTES = 64 << 20; // chunks read and encrypted ahead of the sender
+        static final int AUTO_CHUNKS = 4096; // BLOCK_SIZE = AUTO aims for about this many chunks per file
+        static final int PROOF_MAX_BLOCKS = 1 << 20; // larger files get no Merkle root (the server's PROOF limit)
+        static final int DELETE_BATCH = 65536; // block ids per DELETE_FILE(S) request
 
         static final class Keys {
             byte[] dataKey;
             byte[] kwKey;
             byte[] macKey;
+            byte[] chunkKey; // chunk fingerprints and cut points
 
         }
         static Keys KEYS;
-        //file->blockids
-        static Map<String, List<String>> fileIndex = new HashMap<>();
-        //file->keywords
-        static Map<String, List<String>> fileKeywords = new HashMap<>();
-        //filename->fileid //para nao mandar filename para o servidor e mandar fileid
-        static Map<String, String> fileIds = new HashMap<>();
+        static Chunker CHUNKER;
+        //filename <-> fileid (para nao mandar filename para o servidor), blocks, keywords
+        static ClientCatalog CATALOG;
 
     public ClientCore(String host, int port) {
         this.host = host;
         this.port = port;
-        loadIndex();
-        loadKeywords();
-        loadFileIds();
+        try {
+            if (CATALOG == null) {
+                CATALOG = new ClientCatalog(Paths.get(CATALOG_FILE));
+                if (CATALOG.isEmpty()) importLegacyIndex();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open client catalog", e);
+        }
         try {
             var cfg = CryptoFactory.Config.load(Paths.get("cryptoconfig.txt"));
+            CONFIG = ClientConfig.load(Paths.get("cryptoconfig.txt"));
             KEYS = loadOrCreateKeys();
+            CHUNKER = new Chunker(KEYS.chunkKey);
             if ("AES_CBC_HMAC".equalsIgnoreCase(cfg.alg))
                 SUITE = CryptoFactory.build(cfg, KEYS.dataKey, KEYS.macKey);
             else
@@ -54,18 +76,24 @@ public class ClientCore {
         } catch (Exception e) {
             throw new RuntimeException("Failed to initialize crypto suite", e);
         }
+        transport = openTransport(host, port);
+    }
+
+    // One server (host:port, or the only SERVERS entry), or every SERVERS entry with ERASURE.
+    private static BlockTransport openTransport(String host, int port) {
+        if (CONFIG.dataShards == 0) {
+            if (CONFIG.servers.isEmpty()) return new ServerTransport(host, port, CONFIG.connections, CONFIG.protocol);
+            return new ServerTransport(CONFIG.servers.get(0).getHostString(), CONFIG.servers.get(0).getPort(), CONFIG.connections, CONFIG.protocol);
+        }
+        List<ServerTransport> servers = new ArrayList<>();
+        for (var s : CONFIG.servers) servers.add(new ServerTransport(s.getHostString(), s.getPort(), CONFIG.connections, CONFIG.protocol));
+        return new ErasureTransport(servers, CONFIG.dataShards, CONFIG.parityShards);
     }
 
 
   //
     public void put(Path filePath, List<String> keywords) throws Exception {
-        try (Socket s = new Socket(host, port);
-             DataInputStream in = new DataInputStream(s.getInputStream());
-             DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
-            putFile_impl(filePath.toFile(), keywords, out, in);            // reuse your existing logic
-            fileKeywords.put(filePath.getFileName().toString(), keywords);
-            saveKeywords();
-        }
+        putFile_impl(filePath.toFile(), keywords, transport);            // reuse your existing logic
     }
 
     public void listLocal() {
@@ -73,208 +101,469 @@ public class ClientCore {
     }
 
     public void search(String keywords) throws Exception {
-        try (Socket s = new Socket(host, port);
-             DataInputStream in = new DataInputStream(s.getInputStream());
-             DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
-            searchFiles_impl(keywords, out, in);
-        }
+        searchFiles_impl(keywords, transport);
     }
 
     public void getToDir(String filename, String outDir) throws Exception {
-        try (Socket s = new Socket(host, port);
-             DataInputStream in = new DataInputStream(s.getInputStream());
-             DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
-            getFileToDir_impl(filename, outDir, out, in);
-        }
+        getFileToDir_impl(filename, outDir, transport);
     }
 
     public void getByKeywords(String keywords, String outDir) throws Exception {
-        try (Socket s = new Socket(host, port);
-             DataInputStream in = new DataInputStream(s.getInputStream());
-             DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
-            getByKeywords_impl(keywords, outDir, out, in);            // see rename below
-        }
+        getByKeywords_impl(keywords, outDir, transport);            // see rename below
     }
 
     public void checkIntegrity(String pathToLocalOriginal) throws Exception {
-        try (Socket s = new Socket(host, port);
-             DataInputStream in = new DataInputStream(s.getInputStream());
-             DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
-            checkIntegrity_impl(pathToLocalOriginal, out, in);        // see rename below
+        checkIntegrity(pathToLocalOriginal, false);
+    }
+
+    // deep: download and decrypt every block instead of asking for a Merkle proof
+    public void checkIntegrity(String pathToLocalOriginal, boolean deep) throws Exception {
+        checkIntegrity_impl(pathToLocalOriginal, deep, transport);  // see rename below
+    }
+
+    // Deletes the files from the server (keywords now, blocks in the background) and the catalog.
+    public void delete(List<String> filenames) throws Exception {
+        delete_impl(filenames, transport);
+    }
+
+    // Up to length bytes of a stored file from offset (fewer at its end); only the
+    // blocks covering the range are downloaded.
+    public byte[] readRange(String filename, long offset, int length) throws IOException {
+        try (SeekableByteChannel ch = open(filename)) {
+            ch.position(offset);
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.max(0, Math.min(length, ch.size() - offset)));
+            while (buf.hasRemaining() && ch.read(buf) > 0) { }
+            return buf.array();
         }
     }
+
+    // Read-only seekable view of a stored file, fetched block by block as it is read.
+    public SeekableByteChannel open(String filename) throws IOException {
+        ClientCatalog.Entry entry = CATALOG.byName(filename);
+        if (entry == null) throw new FileNotFoundException("not in local index: " + filename);
+        return new RemoteFileChannel(entry, transport, (i, blob, plain) -> openBlock(entry, i, blob, plain),
+                plaintextBuffer(entry.chunkSize()).capacity(), blocksPer(CONFIG.readAhead, entry.chunkSize()));
+    }
+
+    public InputStream openStream(String filename) throws IOException {
+        return Channels.newInputStream(open(filename));
+    }
+
+    // The server's STATS report: command latencies, traffic, connections (each
+    // server's in turn with ERASURE).
+    public String serverStats() throws IOException {
+        List<CompletableFuture<String>> reports = transport.stats();
+        if (reports.size() == 1) return ConnectionPool.await(reports.get(0));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < reports.size(); i++) {
+            sb.append("== ").append(CONFIG.servers.get(i).getHostString()).append(':').append(CONFIG.servers.get(i).getPort()).append(" ==\n");
+            try {
+                sb.append(ConnectionPool.await(reports.get(i)));
+            } catch (IOException e) {
+                sb.append("unreachable: ").append(e.getMessage()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // Ends the server sessions (EXIT) once outstanding replies are in.
+    @Override
+    public void close() {
+        transport.close();
+    }
 //
 
-    private static void putFile_impl(File file, List<String> keywords, DataOutputStream out, DataInputStream in) throws Exception {
+    // PUT in two passes: cut the file into content-defined chunks and fingerprint
+    // them, ask the server which chunks it already holds, then read, encrypt and
+    // send only the missing ones. A re-upload of a mostly unchanged file sends
+    // just the chunks around the edits. The catalog entry records the Merkle root
+    // of the file's stored blocks, for CHECKINTEGRITY.
+    private static void putFile_impl(File file, List<String> keywords, BlockTransport transport) throws Exception {
             String filename = file.getName();
-            List<String> blocks = new ArrayList<>();
-            String fileId = UUID.randomUUID().toString().replace("-", "");
-            fileIds.put(filename, fileId);
-            saveFileIds();
-            try (InputStream fis = Files.newInputStream(file.toPath())) {
-                byte[] buf = new byte[BLOCK_SIZE];
-                int n, idx = 0;
-                while ((n = fis.read(buf)) > 0) {
-                    byte[] plaintext = Arrays.copyOf(buf, n);
-
-                    byte[] aad = (fileId + ":" + idx).getBytes(); //idx e o block number
-                    String blockId = fileId + "_block_" + idx;
-                    byte[] blob = SUITE.encrypt(plaintext, aad); // suite returns iv||ct||tag por exemplo para aes gcm(or suite-specific)
-                    out.writeUTF("STORE_BLOCK");
-                    out.writeUTF(blockId);
-                    out.writeInt(blob.length);
-                    out.write(blob);
-                    // se block for 0 entao envia os tokens
-                    if (idx == 0) {
-                        List<String> toks = new ArrayList<>();
-                        for (String kw : keywords) if (!kw.isBlank()) toks.add(token(KEYS.kwKey, kw));
-                        out.writeInt(toks.size());
-                        for (String t : toks) out.writeUTF(t);
-                    } else {
-                        out.writeInt(0);
+            ClientCatalog.Entry previous = CATALOG.byName(filename);
+            // a re-upload keeps its fileId, so keyword search keeps finding one file
+            String fileId = previous != null ? previous.fileId() : UUID.randomUUID().toString().replace("-", "");
+
+            int chunkSize = chunkSize(file, previous);
+            Chunker chunker = CHUNKER.withAverage(chunkSize);
+            int inFlight = Math.max(2, Math.min(CONFIG.pipelineBlocks, PUT_BUFFER_BYTES / Chunker.maxChunk(chunkSize)));
+
+            PhaseTimer timer = new PhaseTimer();
+            long t = System.nanoTime();
+            List<Chunker.Chunk> chunks = chunker.scan(file.toPath(), CONFIG.encryptThreads, inFlight);
+            timer.add(PhaseTimer.Phase.CHUNK, t);
+            t = System.nanoTime();
+            List<Chunker.Chunk> missing = missingChunks(chunks, transport);
+            timer.add(PhaseTimer.Phase.NETWORK_WAIT, t);
+
+            UploadWindow window = new UploadWindow(CONFIG.uploadWindow);
+            Map<String, byte[]> leaves = new HashMap<>(); // Merkle leaves of the chunks sent
+            BlockCodec codec = new BlockCodec(SUITE, CONFIG.compress);
+            // read -> parallel compress + encrypt (aad = chunk id) -> this thread sends in chunk order
+            try (EncryptPipeline pipeline = new EncryptPipeline(file.toPath(), missing, chunker, codec, timer,
+                    CONFIG.encryptThreads, inFlight)) {
+                EncryptPipeline.Block block;
+                while ((block = pipeline.next()) != null) {
+                    String blockId = block.chunk().id();
+                    byte[] blob = block.blob(); // suite returns iv||ct||tag por exemplo para aes gcm(or suite-specific)
+
+                    t = System.nanoTime();
+                    window.acquire();
+                    timer.add(PhaseTimer.Phase.NETWORK_WAIT, t);
+                    window.sent(block.index(), transport.store(blockId, blob)); // tokens go with ADD_TOKENS below
+                    leaves.put(blockId, MerkleTree.leaf(blob));
+                    System.out.print(".");
+                }
+                t = System.nanoTime();
+                window.finish();
+                timer.add(PhaseTimer.Phase.NETWORK_WAIT, t);
+
+                // keywords are linked once every chunk is on the server
+                List<String> toks = new ArrayList<>();
+                for (String kw : keywords) if (!kw.isBlank()) toks.add(token(KEYS.kwKey, kw));
+                if (!toks.isEmpty()) {
+                    t = System.nanoTime();
+                    // every server keeps the keyword index when blocks are spread over several
+                    for (CompletableFuture<String> reply : transport.addTokens(fileId, toks)) {
+                        String status = ConnectionPool.await(reply);
+                        if (!"OK".equals(status)) die("server returned: " + status);
                     }
+                    timer.add(PhaseTimer.Phase.NETWORK_WAIT, t);
+                }
+            } catch (IOException e) {
+                die("PUT aborted: " + e.getMessage());
+            }
+            t = System.nanoTime();
+            byte[] root = merkleRoot(chunks, leaves, transport);
+            timer.add(PhaseTimer.Phase.NETWORK_WAIT, t);
+            List<String> chunkIds = new ArrayList<>(chunks.size());
+            List<Long> chunkEnds = new ArrayList<>(chunks.size());
+            for (Chunker.Chunk c : chunks) {
+                chunkIds.add(c.id());
+                chunkEnds.add(c.offset() + c.length());
+            }
+            CATALOG.add(new ClientCatalog.Entry(filename, fileId, chunks.size(), keywords, chunkIds, true, chunkEnds, chunkSize, root));
 
-                    out.flush();
-                    String resp = in.readUTF();
-                    if (!"OK".equals(resp)) die("server returned: " + resp);
 
-                    blocks.add(blockId);
-                    System.out.print(".");
-                    idx++;
+            System.out.println("\nPUT: stored " + filename + " (" + chunks.size() + " chunks of ~" + chunkSize / 1024 + " KiB, "
+                    + missing.size() + " uploaded, " + (chunks.size() - missing.size()) + " already on the server)");
+            if (CONFIG.compress && codec.plainBytes() > 0)
+                System.out.printf("PUT: compressed %d bytes to %d (%.1f%%)%n", codec.plainBytes(), codec.packedBytes(),
+                        100.0 * codec.packedBytes() / codec.plainBytes());
+            if (CONFIG.timings) System.out.println(timer.report("PUT"));
+        }
+
+        // Average chunk size for a PUT: BLOCK_SIZE, or with AUTO about AUTO_CHUNKS
+        // chunks per file (4 KiB to 1 MiB). An AUTO re-upload keeps the size the file
+        // had, since other cut points would share no chunks with the copy on the server.
+        private static int chunkSize(File file, ClientCatalog.Entry previous) {
+            if (CONFIG.blockSize > 0) return CONFIG.blockSize;
+            if (previous != null && previous.chunkIds() != null) return previous.chunkSize();
+            long target = Long.highestOneBit(Math.max(1, file.length() / AUTO_CHUNKS));
+            return (int) Math.max(BLOCK_SIZE, Math.min(Chunker.MAX_AVERAGE, target));
+        }
+
+        // Distinct chunks the server does not have yet, first occurrence order.
+        // All HAS_BLOCKS batches are sent before the first answer is read.
+        private static List<Chunker.Chunk> missingChunks(List<Chunker.Chunk> chunks, BlockTransport transport) throws IOException {
+            Map<String, Chunker.Chunk> distinct = new LinkedHashMap<>();
+            for (Chunker.Chunk c : chunks) distinct.putIfAbsent(c.id(), c);
+            List<Chunker.Chunk> unique = new ArrayList<>(distinct.values());
+
+            List<CompletableFuture<boolean[]>> answers = new ArrayList<>();
+            for (int from = 0; from < unique.size(); from += HAS_BATCH) {
+                List<Chunker.Chunk> batch = unique.subList(from, Math.min(unique.size(), from + HAS_BATCH));
+                List<String> ids = new ArrayList<>(batch.size());
+                for (Chunker.Chunk c : batch) ids.add(c.id());
+                answers.add(transport.has(ids));
+            }
+            List<Chunker.Chunk> missing = new ArrayList<>();
+            for (int b = 0; b < answers.size(); b++) {
+                boolean[] has = ConnectionPool.await(answers.get(b));
+                for (int i = 0; i < has.length; i++) if (!has[i]) missing.add(unique.get(b * HAS_BATCH + i));
+            }
+            return missing;
+        }
+
+        // Merkle root over the file's chunks in order: leaves of the chunks just sent,
+        // and BLOCK_HASHES for the ones the server already had (taken on trust, as
+        // their bytes are not at hand). null where the server cannot prove blocks
+        // (erasure shards, or a server without PROOF) or one went missing meanwhile.
+        private static byte[] merkleRoot(List<Chunker.Chunk> chunks, Map<String, byte[]> leaves, BlockTransport transport) {
+            if (!transport.canProve() || chunks.size() > PROOF_MAX_BLOCKS) return null;
+            Set<String> distinct = new LinkedHashSet<>();
+            for (Chunker.Chunk c : chunks) if (!leaves.containsKey(c.id())) distinct.add(c.id());
+            List<String> known = new ArrayList<>(distinct);
+            try {
+                List<CompletableFuture<List<byte[]>>> answers = new ArrayList<>();
+                for (int from = 0; from < known.size(); from += HAS_BATCH)
+                    answers.add(transport.hashes(known.subList(from, Math.min(known.size(), from + HAS_BATCH))));
+                for (int b = 0; b < answers.size(); b++) {
+                    List<byte[]> hashes = ConnectionPool.await(answers.get(b));
+                    for (int i = 0; i < hashes.size(); i++) {
+                        if (hashes.get(i) == null) throw new IOException("chunk " + known.get(b * HAS_BATCH + i) + " is gone");
+                        leaves.put(known.get(b * HAS_BATCH + i), hashes.get(i));
+                    }
                 }
+            } catch (IOException e) {
+                System.out.println("\nPUT: no Merkle root recorded (" + e.getMessage() + "); CHECKINTEGRITY will download the file");
+                return null;
+            }
+            List<byte[]> ordered = new ArrayList<>(chunks.size());
+            for (Chunker.Chunk c : chunks) ordered.add(leaves.get(c.id()));
+            return MerkleTree.root(ordered);
+        }
+
+        // Chunks are shared between files with equal content, so only the blocks no
+        // other file in the catalog uses are reclaimed. Files go to the server in
+        // DELETE_FILES batches of about DELETE_BATCH block ids; a file is dropped
+        // from the catalog once every server has answered OK for it.
+        private static void delete_impl(List<String> filenames, BlockTransport transport) throws Exception {
+            Map<String, ClientCatalog.Entry> doomed = new LinkedHashMap<>();
+            for (String name : filenames) {
+                ClientCatalog.Entry e = CATALOG.byName(name);
+                if (e == null) System.out.println("DELETE: not in local index: " + name);
+                else doomed.put(name, e);
+            }
+            if (doomed.isEmpty()) return;
+            Set<String> kept = new HashSet<>();
+            for (String name : CATALOG.filenames()) {
+                ClientCatalog.Entry e = doomed.containsKey(name) ? null : CATALOG.byName(name);
+                if (e != null && e.chunkIds() != null) kept.addAll(e.chunkIds());
             }
-            fileIndex.put(filename, blocks);
-            saveIndex();
 
+            List<String> done = new ArrayList<>();
+            Map<String, List<String>> batch = new LinkedHashMap<>();
+            List<String> names = new ArrayList<>();
+            int ids = 0, reclaimed = 0;
+            for (Map.Entry<String, ClientCatalog.Entry> d : doomed.entrySet()) {
+                List<String> blocks = new ArrayList<>();
+                for (String id : d.getValue().blockIds()) {
+                    if (kept.add(id)) blocks.add(id); // also once per file for chunks repeated inside it
+                }
+                batch.put(d.getValue().fileId(), blocks);
+                names.add(d.getKey());
+                ids += blocks.size();
+                reclaimed += blocks.size();
+                if (ids >= DELETE_BATCH) {
+                    sendDelete(batch, names, done, transport);
+                    ids = 0;
+                }
+            }
+            if (!batch.isEmpty()) sendDelete(batch, names, done, transport);
+            CATALOG.remove(done);
+            System.out.println("DELETE: removed " + done.size() + " file(s), " + reclaimed + " block(s) to reclaim");
+        }
 
-            System.out.println("\nPUT: stored " + filename + " (" + blocks.size() + " blocks)");
+        private static void sendDelete(Map<String, List<String>> batch, List<String> names, List<String> done,
+                                       BlockTransport transport) throws IOException {
+            for (CompletableFuture<String> reply : transport.delete(batch)) {
+                String status = ConnectionPool.await(reply);
+                if (!"OK".equals(status)) {
+                    CATALOG.remove(done); // the ones before stay deleted
+                    die("server returned: " + status);
+                }
+            }
+            done.addAll(names);
+            batch.clear();
+            names.clear();
         }
 
        private static void listLocal_impl() {
-            if (fileIndex.isEmpty()) { System.out.println("No files in local index."); return; }
+            if (CATALOG.isEmpty()) { System.out.println("No files in local index."); return; }
             System.out.println("LIST:");
-            fileIndex.keySet().forEach(f -> System.out.println(" - " + f));
+            CATALOG.filenames().forEach(f -> System.out.println(" - " + f));
         }
 
-       private static void searchFiles_impl(String keywords, DataOutputStream out, DataInputStream in) throws Exception {
-            String tok = token(KEYS.kwKey, keywords);
-            out.writeUTF("SEARCH");
-            out.writeUTF(tok);
-            out.flush();
-            int count = in.readInt();
+       private static void searchFiles_impl(String keywords, BlockTransport transport) throws Exception {
+            List<String> ids = searchFileIds(keywords, transport);
             System.out.println("SEARCH results:");
-            for (int i=0;i<count;i++) {
-                String filename=findFileNameById(in.readUTF());
+            for (String id : ids) {
+                String filename=findFileNameById(id);
+                if (filename == null) continue; // another client's file, or an upload since replaced
 
                 System.out.println(" - " + filename);
             }
 
         }
-    private static String findFileNameById(String fileId) {
-        for (Map.Entry<String,String> e : fileIds.entrySet()) {
-            if (e.getValue().equals(fileId)){
-                return e.getKey(); // filename
+
+        // One bare keyword goes out as SEARCH; anything else (several keywords,
+        // AND / OR / NOT, parentheses) is evaluated by the server with SEARCH_MULTI.
+        private static List<String> searchFileIds(String keywords, BlockTransport transport) throws Exception {
+            List<String> query;
+            try {
+                query = KeywordQuery.toPostfix(keywords, kw -> token(KEYS.kwKey, kw));
+            } catch (IllegalArgumentException e) {
+                die("bad search \"" + keywords + "\": " + e.getMessage());
+                return List.of();
             }
+            BlockTransport.SearchReply reply = ConnectionPool.await(transport.search(query));
+            if (reply.error() != null) die("SEARCH failed: " + reply.error());
+            return reply.ids();
         }
-        return null;
+    private static String findFileNameById(String fileId) {
+        ClientCatalog.Entry e = CATALOG.byFileId(fileId);
+        return e == null ? null : e.filename();
     }
 
-       private static void getFileToDir_impl(String filename, String outDir, DataOutputStream out, DataInputStream in) throws Exception {
-            String fileid=fileIds.get(filename);
-            List<String> blocks = fileIndex.get(filename);
-            if (blocks == null) die("not in local index: " + filename);
+       private static void getFileToDir_impl(String filename, String outDir, BlockTransport transport) throws Exception {
+            ClientCatalog.Entry entry = CATALOG.byName(filename);
+            if (entry == null) die("not in local index: " + filename);
             Path dir = Paths.get(outDir); Files.createDirectories(dir);
             Path outFile = dir.resolve(filename);
 
-            try (OutputStream fos = Files.newOutputStream(outFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                int i = 0;
-                for (String blockId : blocks) {
-                    out.writeUTF("GET_BLOCK");
-                    out.writeUTF(blockId);
-                    out.flush();
-                    int len = in.readInt();
-                    if (len == -1) die("missing block on server: " + blockId);
-                    byte[] blob = in.readNBytes(len); //blob e o bloco encriptado
-                    byte[] aad = (fileid + ":" + i).getBytes();
-                    byte[] plain = SUITE.decrypt(blob, aad);
-                    fos.write(plain);
-                    System.out.print(".");
-                    i++;
-                }
+            // blocks are fetched, decrypted and written at their offsets in parallel
+            PhaseTimer timer = new PhaseTimer();
+            try (FileChannel out = FileChannel.open(outFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING);
+                 DownloadPipeline pipeline = downloadPipeline(transport, entry)) {
+                pipeline.run(entry, (i, blob, plain) -> openBlock(entry, i, blob, plain), out, timer);
+            } catch (IOException e) {
+                Files.deleteIfExists(outFile); // never leave a partial or unverified restore behind
+                die("GET aborted: " + e.getMessage());
             }
-            System.out.println("\nGET: reconstructed to " + outFile.toAbsolutePath());
+            System.out.println("GET: reconstructed to " + outFile.toAbsolutePath());
+            if (CONFIG.timings) System.out.println(timer.report("GET"));
         }
 
-        private static void getByKeywords_impl(String keywords, String outDir, DataOutputStream out, DataInputStream in) throws Exception {
-            String tok = token(KEYS.kwKey, keywords);
-            out.writeUTF("SEARCH");
-            out.writeUTF(tok);
-            out.flush();
-            int count = in.readInt();
-            if (count == 0) { System.out.println("No matches."); return; }
+        private static void getByKeywords_impl(String keywords, String outDir, BlockTransport transport) throws Exception {
+            List<String> ids = searchFileIds(keywords, transport);
+            if (ids.isEmpty()) { System.out.println("No matches."); return; }
             List<String> names = new ArrayList<>();
-            for (int i=0;i<count;i++){
-                String filename=findFileNameById(in.readUTF());
-                names.add(filename);
+            for (String id : ids){
+                String filename=findFileNameById(id);
+                if (filename != null) names.add(filename);
             }
 
             for (String name : names) {
                 System.out.println("Downloading " + name);
-                getFileToDir_impl(name, outDir, out, in);
+                getFileToDir_impl(name, outDir, transport);
             }
         }
 
-       private static void checkIntegrity_impl(String pathToFile, DataOutputStream out, DataInputStream in) throws Exception {
+       private static void checkIntegrity_impl(String pathToFile, boolean deep, BlockTransport transport) throws Exception {
 
             Path p = Paths.get(pathToFile);
             String filename = p.getFileName().toString();
-            List<String> blocks = fileIndex.get(filename);
-            String fileid=fileIds.get(filename);
-            if (blocks == null) die("not in local index: " + filename);
-
-            // 1) verify every block via GCM tag
-            for (int i=0;i<blocks.size();i++) {
-                String blockId = blocks.get(i);
-                out.writeUTF("GET_BLOCK");
-                out.writeUTF(blockId);
-                out.flush();
-                int len = in.readInt();
-                if (len == -1) die("missing block: " + blockId);
-                byte[] blob = in.readNBytes(len); //blob e o bloco encriptado
-                byte[] aad = (fileid + ":" + i).getBytes();
-
-                try {
-                    SUITE.decrypt(blob, aad);
-                }
-                catch (Exception ex) {
-                    die("Integrity FAIL on block " + i);
+            ClientCatalog.Entry entry = CATALOG.byName(filename);
+            if (entry == null) die("not in local index: " + filename);
+            String fileid=entry.fileId();
+
+            // 1) verify the blocks: Merkle proof against the root recorded at PUT, or
+            //    (DEEP, and uploads without a root) every block via its GCM tag
+            PhaseTimer timer = new PhaseTimer();
+            if (deep || entry.merkleRoot() == null || !transport.canProve() || !proveBlocks(entry, transport)) {
+                try (DownloadPipeline pipeline = downloadPipeline(transport, entry)) {
+                    pipeline.run(entry, (i, blob, plain) -> {
+                        int n = openBlock(entry, i, blob, plain);
+                        checkFingerprint(entry, i, plain, n);
+                        return n;
+                    }, null, timer);
+                } catch (IOException e) {
+                    die(e.getMessage());
                 }
+                System.out.println("Blocks OK (" + SUITE.getClass().getSimpleName().replace("Suite", "") + ").");
+                if (CONFIG.timings) System.out.println(timer.report("CHECKINTEGRITY"));
             }
-           System.out.println("Blocks OK (" + SUITE.getClass().getSimpleName().replace("Suite", "") + ").");
 
 
            // 2) verify keyword linkage still returns this file
-            List<String> kws = fileKeywords.getOrDefault(filename, List.of());
-            for (String kw : kws) {
-                String tok = token(KEYS.kwKey, kw);
-                out.writeUTF("SEARCH");
-                out.writeUTF(tok);
-                out.flush();
-                int n = in.readInt();
-                boolean found = false;
-                for (int i=0;i<n;i++) {
-                    if (fileid.equals(in.readUTF())){
-                        found = true;
-                    }
-                }
-                if (!found) die("Keyword link missing: \"" + kw + "\"");
+            List<String> kws = entry.keywords();
+            List<CompletableFuture<BlockTransport.SearchReply>> links = new ArrayList<>(); // all sent before the first answer is read
+            for (String kw : kws) links.add(transport.search(List.of(token(KEYS.kwKey, kw))));
+            for (int k = 0; k < kws.size(); k++) {
+                boolean found = ConnectionPool.await(links.get(k)).ids().contains(fileid);
+                if (!found) die("Keyword link missing: \"" + kws.get(k) + "\"");
             }
             System.out.println("Keywords OK (" + kws.size() + ").");
             System.out.println("CHECKINTEGRITY: PASS for " + filename);
         }
 
+        // PROOF: the server's root over the file's blocks must be the one recorded at
+        // PUT, which covers every stored byte without downloading it; PROOF_SAMPLES
+        // random blocks come back with their audit paths, are checked against the
+        // root and decrypted, so the server must still hold (and read) real blocks.
+        // false when the server cannot answer PROOF.
+        private static boolean proveBlocks(ClientCatalog.Entry entry, BlockTransport transport) throws Exception {
+            int count = entry.blockCount();
+            int[] samples = sample(count, CONFIG.proofSamples);
+            BlockTransport.Proof proof;
+            try {
+                proof = ConnectionPool.await(transport.proof(entry.blockIds(), samples));
+            } catch (IOException e) {
+                System.out.println("PROOF unavailable (" + e.getMessage() + "), checking every block instead");
+                return false;
+            }
+            if (proof.missing() >= 0) die("block " + proof.missing() + " is missing on the server");
+            if (!MessageDigest.isEqual(proof.root(), entry.merkleRoot()))
+                die("Merkle root mismatch: the server's blocks are not the ones uploaded");
+            ByteBuffer plain = plaintextBuffer(entry.chunkSize());
+            for (int k = 0; k < samples.length; k++) {
+                int i = samples[k];
+                byte[] blob = proof.blobs().get(k);
+                if (!MerkleTree.verify(MerkleTree.leaf(blob), i, count, proof.paths().get(k), entry.merkleRoot()))
+                    die("block " + i + " does not match the Merkle root");
+                try {
+                    checkFingerprint(entry, i, plain, openBlock(entry, i, blob, plain));
+                } catch (Exception e) {
+                    die("block " + i + " failed to decrypt: " + e.getMessage());
+                }
+            }
+            System.out.println("Blocks OK (Merkle root of " + count + " blocks, " + samples.length + " sampled and decrypted, "
+                    + SUITE.getClass().getSimpleName().replace("Suite", "") + ").");
+            return true;
+        }
+
+        // n distinct block indexes out of count, in order (all of them when n >= count)
+        private static int[] sample(int count, int n) {
+            if (n >= count) {
+                int[] all = new int[count];
+                for (int i = 0; i < count; i++) all[i] = i;
+                return all;
+            }
+            SecureRandom rnd = new SecureRandom();
+            TreeSet<Integer> picked = new TreeSet<>();
+            while (picked.size() < n) picked.add(rnd.nextInt(count));
+            int[] out = new int[n];
+            int k = 0;
+            for (int i : picked) out[k++] = i;
+            return out;
+        }
+
+        // a chunk id is also the keyed fingerprint of its plaintext
+        private static void checkFingerprint(ClientCatalog.Entry entry, int i, ByteBuffer plain, int n) throws IOException {
+            if (entry.chunkIds() == null) return;
+            String fp = entry.framed() ? CHUNKER.fingerprint(plain.array(), 0, n)
+                    : CHUNKER.unframedFingerprint(plain.array(), 0, n);
+            if (!fp.equals(entry.chunkIds().get(i))) throw new IOException("fingerprint mismatch");
+        }
+
         // ====== funcoes para ajudar ======
 
+        // Decrypts block i of entry into plain (cleared first); framed chunks are
+        // also decompressed. Returns the plaintext length.
+        private static int openBlock(ClientCatalog.Entry entry, int i, byte[] blob, ByteBuffer plain) throws Exception {
+            plain.clear();
+            if (entry.framed()) return BlockCodec.open(SUITE, blob, entry.aad(i), plain);
+            return SUITE.decrypt(ByteBuffer.wrap(blob), ByteBuffer.wrap(entry.aad(i)), plain);
+        }
+
+        // Scratch space big enough for any decrypted block or chunk of a file with this chunk size.
+        private static ByteBuffer plaintextBuffer(int chunkSize) {
+            return ByteBuffer.allocate(SUITE.maxDecryptedLength(SUITE.encryptedLength(Math.max(BLOCK_SIZE, Chunker.maxChunk(chunkSize)))));
+        }
+
+        // blocks per request: at most max, and at most about GET_BATCH_BYTES of plaintext
+        private static int blocksPer(int max, int chunkSize) {
+            return Math.max(1, Math.min(max, GET_BATCH_BYTES / chunkSize));
+        }
+
+        // GET_BATCH ids per GET_BLOCKS request (fewer for large chunks), DOWNLOAD_WINDOW requests in flight
+        private static DownloadPipeline downloadPipeline(BlockTransport transport, ClientCatalog.Entry entry) {
+            return new DownloadPipeline(transport, blocksPer(GET_BATCH, entry.chunkSize()), CONFIG.downloadWindow,
+                    CONFIG.decryptThreads, plaintextBuffer(entry.chunkSize()).capacity());
+        }
+
        private static List<String> parseKeywords(String s) {
             List<String> res = new ArrayList<>();
             for (String w : s.split("[,\\s]+")) if (!w.isBlank()) res.add(w.trim().toLowerCase());
@@ -284,45 +573,40 @@ public class ClientCore {
 
       private  static void die(String msg) { System.out.println(msg); System.exit(1); }
 
-       private static void loadIndex() {
+       // One-time import of the three .ser files older clients wrote. Only uploads
+       // that finished (present in client_index.ser) are carried over.
+       @SuppressWarnings("unchecked")
+       private static void importLegacyIndex() throws IOException {
             File f = new File(INDEX_FILE);
-
             if (!f.exists()) return;
-
+            Map<String, List<String>> fileIndex, fileKeywords = new HashMap<>();
+            Map<String, String> fileIds;
             try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f))) {
-                //noinspection unchecked
                 fileIndex = (Map<String, List<String>>) ois.readObject();
-            } catch (Exception e) { System.err.println("loadIndex: " + e.getMessage()); }
-        }
-      private  static void saveIndex() {
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(INDEX_FILE))) {
-                oos.writeObject(fileIndex);
-            } catch (IOException e) { System.err.println("saveIndex: " + e.getMessage()); }
-        }
-      private  static void loadKeywords() {
-            File f = new File(KW_INDEX_FILE); if (!f.exists()) return;
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f))) {
-                //noinspection unchecked
-                fileKeywords = (Map<String, List<String>>) ois.readObject();
-            } catch (Exception e) { System.err.println("loadKeywords: " + e.getMessage()); }
-        }
-       private static void saveKeywords() {
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(KW_INDEX_FILE))) {
-                oos.writeObject(fileKeywords);
-            } catch (IOException e) { System.err.println("saveKeywords: " + e.getMessage()); }
+            } catch (ClassNotFoundException e) { throw new IOException(e); }
+            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(FILEID_FILE))) {
+                fileIds = (Map<String, String>) ois.readObject();
+            } catch (ClassNotFoundException e) { throw new IOException(e); }
+            if (new File(KW_INDEX_FILE).exists()) {
+                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(KW_INDEX_FILE))) {
+                    fileKeywords = (Map<String, List<String>>) ois.readObject();
+                } catch (ClassNotFoundException e) { throw new IOException(e); }
+            }
+
+            List<ClientCatalog.Entry> entries = new ArrayList<>();
+            for (Map.Entry<String, List<String>> e : fileIndex.entrySet()) {
+                String fileId = fileIds.get(e.getKey());
+                if (fileId == null) continue;
+                entries.add(new ClientCatalog.Entry(e.getKey(), fileId, e.getValue().size(),
+                        fileKeywords.getOrDefault(e.getKey(), List.of())));
+            }
+            CATALOG.addAll(entries);
+            for (String name : List.of(INDEX_FILE, KW_INDEX_FILE, FILEID_FILE)) {
+                Path p = Paths.get(name);
+                if (Files.exists(p)) Files.move(p, p.resolveSibling(name + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            System.out.println("Imported " + entries.size() + " files into " + CATALOG_FILE);
         }
-    private  static void loadFileIds() {
-        File f = new File(FILEID_FILE); if (!f.exists()) return;
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f))) {
-            //noinspection unchecked
-            fileIds = (Map<String, String>) ois.readObject();
-        } catch (Exception e) { System.err.println("loadFilesIds: " + e.getMessage()); }
-    }
-    private static void saveFileIds() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(FILEID_FILE))) {
-            oos.writeObject(fileIds);
-        } catch (IOException e) { System.err.println("saveFilesIds: " + e.getMessage()); }
-    }
 
 
     private static Keys loadOrCreateKeys() {
@@ -355,6 +639,14 @@ public class ClientCore {
                 p.setProperty("KWKEY", Base64.getEncoder().encodeToString(k.kwKey));
             }
 
+            // === CHUNK KEY ===
+            if (p.containsKey("CHUNKKEY")) {
+                k.chunkKey = Base64.getDecoder().decode(p.getProperty("CHUNKKEY"));
+            } else {
+                k.chunkKey = random(32);
+                p.setProperty("CHUNKKEY", Base64.getEncoder().encodeToString(k.chunkKey));
+            }
+
             // === MAC KEY (only for AES_CBC_HMAC) ===
             if ("AES_CBC_HMAC".equalsIgnoreCase(cfg.alg)) {
                 if (p.containsKey("MACKEY")) {
@@ -382,7 +674,7 @@ public class ClientCore {
         }
 
 
-       private static String token(byte[] kwKey, String kw) {
+       static String token(byte[] kwKey, String kw) {
             try {
                 Mac mac = Mac.getInstance("HmacSHA256");
                 mac.init(new SecretKeySpec(kwKey,"HmacSHA256"));
@@ -0,0 +1,250 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A few keep-alive connections shared by every operation of the client. Each
+// request goes out as REQ <id> <command ...> on the least busy connection and many
+// requests, from any number of threads, can be outstanding on the same socket.
+// The server answers a connection's requests in order, prefixing each reply with
+// its id; one reader thread per connection checks the id against the oldest
+// pending request and parses the reply into that request's future.
+// Connections are opened on first use (up to size), outside the pool's lock so
+// requests keep flowing on the open ones meanwhile, and closed with EXIT.
+// A new connection offers protocol 2 with HELLO; where the server takes it the
+// requests go out as BinaryCodec frames ([varint id][opcode][body]), so every
+// request is given in both forms and the connection it lands on picks one.
+final class ConnectionPool implements Closeable {
+
+    interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    interface Response<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private static final int CONNECT_TIMEOUT_MS = 5_000; // also bounds the wait for the HELLO reply
+
+    private final String host;
+    private final int port;
+    private final int size;
+    private final int protocol; // highest version offered; 1 = text commands only
+    private final List<Conn> conns = new ArrayList<>(); // guarded by this
+    private int connecting;                             // slots taken by connections being opened; guarded by this
+    private boolean closed;
+
+    ConnectionPool(String host, int port, int size, int protocol) {
+        this.host = host;
+        this.port = port;
+        this.size = size;
+        this.protocol = protocol;
+    }
+
+    <T> CompletableFuture<T> send(Request text, Response<T> textReply, Request binary, Response<T> binaryReply) {
+        try {
+            Conn c = pick();
+            return c.binary ? c.send(binary, binaryReply) : c.send(text, textReply);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Conn c : conns) c.close();
+        conns.clear();
+        notifyAll(); // callers waiting for a connection being opened
+    }
+
+    // An idle connection if there is one, else a new one while under size, else the least loaded.
+    private Conn pick() throws IOException {
+        synchronized (this) {
+            while (true) {
+                if (closed) throw new IOException("connection pool closed");
+                conns.removeIf(c -> c.broken);
+                Conn best = null;
+                for (Conn c : conns) {
+                    if (best == null || c.outstanding.get() < best.outstanding.get()) best = c;
+                }
+                boolean full = conns.size() + connecting >= size;
+                if (best != null && (best.outstanding.get() == 0 || full)) return best;
+                if (!full) break;
+                try {
+                    wait(); // every slot is a connection still being opened
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            connecting++;
+        }
+        Conn conn = null;
+        boolean added = false;
+        try {
+            conn = new Conn(connect(), protocol);
+        } finally {
+            synchronized (this) {
+                connecting--;
+                if (conn != null && !closed) added = conns.add(conn);
+                notifyAll();
+            }
+        }
+        if (!added) {
+            conn.close(); // the pool was closed while it connected
+            throw new IOException("connection pool closed");
+        }
+        return conn;
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    private static final class Conn {
+        private record Pending<T>(int id, Response<T> response, CompletableFuture<T> future) {
+            void complete(DataInputStream in) throws IOException {
+                future.complete(response.read(in));
+            }
+        }
+
+        private static final long CLOSE_WAIT_MS = 10_000;
+        private static final Pending<Void> STOP = new Pending<>(-1, in -> null, new CompletableFuture<>());
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final BlockingQueue<Pending<?>> pending = new LinkedBlockingQueue<>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final Thread reader;
+        private final boolean binary;
+        private int nextId; // guarded by this
+        private volatile boolean broken;
+
+        Conn(Socket socket, int protocol) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            binary = protocol >= 2 && hello(protocol) >= 2;
+            socket.setSoTimeout(0);
+            reader = new Thread(this::readReplies, "conn-reader-" + socket.getLocalPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // servers from between REQ and HELLO answer "ERROR: Unknown command" and keep the text protocol
+        private int hello(int protocol) throws IOException {
+            try {
+                out.writeUTF("HELLO " + Math.min(protocol, BinaryCodec.VERSION));
+                out.flush();
+                return in.readUTF().equals("VERSION") ? in.readUnsignedByte() : 1;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        <T> CompletableFuture<T> send(Request request, Response<T> response) throws IOException {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            synchronized (this) {
+                if (broken) throw new IOException("connection closed");
+                int id = nextId++;
+                outstanding.incrementAndGet();
+                // queued before the bytes leave, so the reader always knows the next reply
+                pending.add(new Pending<>(id, response, future));
+                try {
+                    if (binary) {
+                        BinaryCodec.writeVarint(out, id);
+                    } else {
+                        out.writeUTF("REQ");
+                        out.writeInt(id);
+                    }
+                    request.write(out);
+                    out.flush();
+                } catch (IOException e) {
+                    fail(e);
+                    throw e;
+                }
+            }
+            return future;
+        }
+
+        private void readReplies() {
+            Pending<?> p = null;
+            try {
+                while (true) {
+                    p = pending.take();
+                    if (p == STOP) return;
+                    int id = binary ? BinaryCodec.readVarint(in) : in.readInt();
+                    if (id != p.id()) throw new IOException("reply " + id + " while waiting for " + p.id());
+                    p.complete(in);
+                    p = null;
+                    outstanding.decrementAndGet();
+                }
+            } catch (IOException | RuntimeException | InterruptedException e) {
+                IOException failure = e instanceof IOException io ? io : new IOException(e);
+                if (p != null) p.future().completeExceptionally(failure);
+                fail(failure);
+            }
+        }
+
+        private void fail(IOException e) {
+            broken = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            for (Pending<?> p; (p = pending.poll()) != null; ) p.future().completeExceptionally(e);
+        }
+
+        // Sends EXIT once the outstanding replies are in, so the server ends the session cleanly.
+        void close() {
+            synchronized (this) {
+                if (broken) return;
+                broken = true; // no new requests
+                pending.add(STOP);
+            }
+            try {
+                reader.join(CLOSE_WAIT_MS);
+                if (binary) {
+                    BinaryCodec.writeVarint(out, nextId);
+                    out.writeByte(BinaryCodec.EXIT);
+                } else {
+                    out.writeUTF("EXIT");
+                }
+                out.flush();
+            } catch (IOException | InterruptedException ignored) {
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
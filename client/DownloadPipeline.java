@@ -0,0 +1,157 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Parallel GET: up to window GET_BLOCKS batches are on the wire at once (the
+// connection pool spreads them over its connections), every block is decoded by a worker pool as
+// soon as its batch arrives, and workers write the plaintext straight to its
+// offset with positional FileChannel writes. Blocks whose offset the catalog does
+// not know are written by the caller's thread in block order instead. The first
+// block that fails to decode or has the wrong size aborts the whole restore.
+final class DownloadPipeline implements AutoCloseable {
+
+    interface Decoder {
+        // verifies blob (block index of the file) and writes its plaintext at
+        // plain's position; returns the plaintext length
+        int decode(int index, byte[] blob, ByteBuffer plain) throws Exception;
+    }
+
+    // plain is null if a worker already wrote the block
+    private record Decoded(int length, byte[] plain) {}
+
+    private final BlockTransport transport;
+    private final int batchSize;
+    private final int window;
+    private final ExecutorService workers;
+    private final ThreadLocal<ByteBuffer> buffers;
+    private volatile Exception failure;
+
+    DownloadPipeline(BlockTransport transport, int batchSize, int window, int threads, int plainCapacity) {
+        this.transport = transport;
+        this.batchSize = batchSize;
+        this.window = window;
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "get-decrypt");
+            t.setDaemon(true);
+            return t;
+        });
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(plainCapacity));
+    }
+
+    // Fetches and decodes every block of entry; with out == null blocks are only
+    // verified. Returns the number of plaintext bytes.
+    long run(ClientCatalog.Entry entry, Decoder decoder, FileChannel out, PhaseTimer timer) throws IOException {
+        List<String> blocks = entry.blockIds();
+        int batches = (blocks.size() + batchSize - 1) / batchSize;
+        Deque<CompletableFuture<List<byte[]>>> fetches = new ArrayDeque<>();
+        Deque<Future<Decoded>> decoding = new ArrayDeque<>();
+        int requested = 0;
+        long written = 0;
+        try {
+            for (int b = 0; b < batches; b++) {
+                while (requested < batches && requested < b + window) fetches.add(request(blocks, requested++));
+                long t = System.nanoTime();
+                List<byte[]> blobs = ConnectionPool.await(fetches.poll());
+                timer.add(PhaseTimer.Phase.NETWORK_WAIT, t);
+                for (int i = 0; i < blobs.size(); i++) {
+                    int index = b * batchSize + i;
+                    byte[] blob = blobs.get(i);
+                    if (blob == null) throw new IOException("missing block on server: " + blocks.get(index));
+                    decoding.add(workers.submit(() -> decode(entry, index, blob, decoder, out, timer)));
+                }
+                while (decoding.size() > window * batchSize) written += place(decoding.poll(), written, out, timer);
+                if (failure != null) throw failure;
+            }
+            while (!decoding.isEmpty()) written += place(decoding.poll(), written, out, timer);
+            return written;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            for (Future<Decoded> f : decoding) f.cancel(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    private Decoded decode(ClientCatalog.Entry entry, int index, byte[] blob, Decoder decoder, FileChannel out,
+                           PhaseTimer timer) throws Exception {
+        if (failure != null) throw failure;
+        try {
+            ByteBuffer plain = buffers.get();
+            plain.clear();
+            int n;
+            long t = System.nanoTime();
+            try {
+                n = decode(transport, decoder, entry.blockIds().get(index), index, blob, plain);
+            } catch (Exception e) {
+                throw new IOException("Integrity FAIL on block " + index, e);
+            }
+            timer.add(PhaseTimer.Phase.DECRYPT, t);
+            long at = entry.offset(index), next = entry.offset(index + 1);
+            if (next >= 0 && at + n != next) throw new IOException("Integrity FAIL on block " + index + ": wrong size");
+            if (at < 0) return new Decoded(n, Arrays.copyOf(plain.array(), n));
+            if (out != null) {
+                long t0 = System.nanoTime();
+                ByteBuffer buf = ByteBuffer.wrap(plain.array(), 0, n);
+                while (buf.hasRemaining()) out.write(buf, at + buf.position());
+                timer.add(PhaseTimer.Phase.WRITE, t0);
+            }
+            return new Decoded(n, null);
+        } catch (Exception e) {
+            if (failure == null) failure = e;
+            throw e;
+        }
+    }
+
+    // decoder.decode of blob, else of the other versions of the block the transport
+    // still has (erasure shards left over from an earlier write of the block id)
+    static int decode(BlockTransport transport, Decoder decoder, String blockId, int index, byte[] blob,
+                      ByteBuffer plain) throws Exception {
+        try {
+            return decoder.decode(index, blob, plain);
+        } catch (Exception e) {
+            List<byte[]> tried = new ArrayList<>(List.of(blob));
+            try {
+                for (byte[] other; (other = ConnectionPool.await(transport.fetchOther(blockId, tried))) != null; tried.add(other)) {
+                    plain.clear();
+                    try {
+                        return decoder.decode(index, other, plain);
+                    } catch (Exception again) {
+                        e.addSuppressed(again);
+                    }
+                }
+            } catch (IOException unreadable) {
+                e.addSuppressed(unreadable);
+            }
+            throw e;
+        }
+    }
+
+    // Waits for the oldest block; writes it here if no worker could place it.
+    private static long place(Future<Decoded> f, long written, FileChannel out, PhaseTimer timer) throws Exception {
+        Decoded d;
+        try {
+            d = f.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ex ? ex : e;
+        }
+        if (d.plain() != null && out != null) {
+            long t = System.nanoTime();
+            ByteBuffer buf = ByteBuffer.wrap(d.plain());
+            while (buf.hasRemaining()) out.write(buf, written + buf.position());
+            timer.add(PhaseTimer.Phase.WRITE, t);
+        }
+        return d.length();
+    }
+
+    private CompletableFuture<List<byte[]>> request(List<String> blocks, int batch) {
+        return transport.fetch(blocks.subList(batch * batchSize, Math.min(blocks.size(), (batch + 1) * batchSize)));
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+// Staged PUT pipeline: a reader thread reads the given chunks of the file (only
+// the ones the server lacks), a worker pool seals them in parallel with the
+// BlockCodec (AAD is the chunk id) and next() hands the blobs to the network
+// sender strictly in list order. At most inFlight chunks are read ahead of the
+// sender, which bounds memory.
+final class EncryptPipeline implements AutoCloseable {
+
+    // index is the chunk's position in the list given to the constructor
+    record Block(int index, Chunker.Chunk chunk, byte[] blob) {}
+
+    private static final Future<Block> END = CompletableFuture.completedFuture(null);
+
+    private final BlockingQueue<Future<Block>> queue;
+    private final ExecutorService encryptors;
+    private final Thread reader;
+
+    EncryptPipeline(Path file, List<Chunker.Chunk> chunks, Chunker chunker, BlockCodec codec, PhaseTimer timer,
+                    int threads, int inFlight) {
+        this.queue = new ArrayBlockingQueue<>(inFlight);
+        this.encryptors = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "put-encrypt");
+            t.setDaemon(true);
+            return t;
+        });
+        this.reader = new Thread(() -> read(file, chunks, chunker, codec, timer), "put-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    // Next encrypted block in order, or null after the last one.
+    Block next() throws Exception {
+        Future<Block> f = queue.take();
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    @Override
+    public void close() {
+        reader.interrupt();
+        encryptors.shutdownNow();
+    }
+
+    private void read(Path file, List<Chunker.Chunk> chunks, Chunker chunker, BlockCodec codec, PhaseTimer timer) {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int idx = 0; idx < chunks.size(); idx++) {
+                final int i = idx;
+                Chunker.Chunk c = chunks.get(i);
+                ByteBuffer pt = ByteBuffer.allocate(c.length());
+                long t = System.nanoTime();
+                while (pt.hasRemaining()) {
+                    if (ch.read(pt, c.offset() + pt.position()) < 0) throw new EOFException("file changed during PUT");
+                }
+                timer.add(PhaseTimer.Phase.READ, t);
+                queue.put(encryptors.submit(() -> {
+                    long t0 = System.nanoTime();
+                    // the id came from the scan pass; a chunk edited since must not be stored under it
+                    if (!chunker.fingerprint(pt.array(), 0, c.length()).equals(c.id())) throw new IOException("file changed during PUT");
+                    Block b = new Block(i, c, codec.seal(pt.array(), c.length(), c.id().getBytes()));
+                    timer.add(PhaseTimer.Phase.ENCRYPT, t0);
+                    return b;
+                }));
+            }
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // closed by the sender
+        } catch (IOException e) {
+            try {
+                queue.put(CompletableFuture.failedFuture(e)); // blocks like the chunks, so next() always gets it
+            } catch (InterruptedException closed) {
+                // closed by the sender
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+// Erasure-coded placement over several servers: every sealed block is cut into
+// k data shards plus m Reed-Solomon parity shards, stored as <blockId>_s<j> on
+// k + m different servers, so the data survives losing any m of them at 1 + m/k
+// times the upload size. Shard j of a block goes to server (start + j) mod
+// servers, start taken from a hash of the block id, which spreads the shards
+// when there are more servers than k + m. A shard is [int blob length]
+// [int crc32c of the blob][int crc32 of the bytes][bytes]; one that fails its
+// CRC counts as missing. Blob length and CRC-32C name the version of the block a
+// shard belongs to: a write that missed a server leaves that server's shard of
+// the block as it was, so shards are grouped by version and a blob is decoded
+// only from k shards of one version, then checked against its CRC-32C.
+// Reads ask each block's k fastest servers (moving average of their GET_BLOCKS
+// replies; data shards first when tied, as those need no decoding), then the
+// remaining servers for blocks still short of k shards of one version; the
+// version with the most shards wins, and fetchOther hands out the others for a
+// blob that does not decrypt. Writes wait for every
+// shard and HAS_BLOCKS only counts a block whose shards are all there, so
+// uploading a file again repairs shards lost with a server. Keyword updates go
+// to every server, searches to the first one that answers. Blocks cannot be
+// proven (PROOF) as no server holds a whole one.
+final class ErasureTransport implements BlockTransport {
+    private static final long DOWN_NANOS = 5_000_000_000L; // a failed server is asked last for this long
+    private static final int HEADER = 12;
+
+    private final List<BlockTransport> servers;
+    private final ReedSolomon rs;
+    private final int shards;
+    private final AtomicLongArray latency;   // moving average of reply times, nanos
+    private final AtomicLongArray downUntil; // System.nanoTime() before which a server counts as down
+    private final ExecutorService readers;
+
+    ErasureTransport(List<? extends BlockTransport> servers, int dataShards, int parityShards) {
+        if (servers.size() < dataShards + parityShards)
+            throw new IllegalArgumentException("ERASURE " + dataShards + "+" + parityShards + " needs at least "
+                    + (dataShards + parityShards) + " SERVERS, not " + servers.size());
+        this.servers = List.copyOf(servers);
+        this.rs = new ReedSolomon(dataShards, parityShards);
+        this.shards = dataShards + parityShards;
+        this.latency = new AtomicLongArray(servers.size());
+        this.downUntil = new AtomicLongArray(servers.size());
+        this.readers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "erasure-read");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> store(String blockId, byte[] blob) {
+        int k = rs.dataShards, size = Math.max(1, (blob.length + k - 1) / k);
+        byte[][] data = new byte[shards][size];
+        for (int j = 0; j < k; j++) {
+            int from = j * size;
+            if (from < blob.length) System.arraycopy(blob, from, data[j], 0, Math.min(size, blob.length - from));
+        }
+        rs.encode(data, size);
+        CRC32C crc = new CRC32C();
+        crc.update(blob);
+        int blobCrc = (int) crc.getValue(), start = start(blockId);
+        List<CompletableFuture<String>> acks = new ArrayList<>(shards);
+        for (int j = 0; j < shards; j++) {
+            int s = (start + j) % servers.size();
+            acks.add(servers.get(s).store(shardId(blockId, j), frame(blob.length, blobCrc, data[j]))
+                    .handle((status, e) -> e == null ? status : "ERROR: " + servers.get(s) + ": " + e.getMessage()));
+        }
+        return CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            for (CompletableFuture<String> ack : acks) if (!"OK".equals(ack.join())) return ack.join();
+            return "OK";
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> fetch(List<String> ids) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetchNow(ids);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, readers);
+    }
+
+    // Every shard of the block, for the versions not among tried.
+    @Override
+    public CompletableFuture<byte[]> fetchOther(String id, List<byte[]> tried) {
+        return CompletableFuture.supplyAsync(() -> {
+            Set<Long> skip = new HashSet<>();
+            for (byte[] blob : tried) skip.add(version(blob));
+            Map<Integer, List<int[]>> plan = new HashMap<>();
+            boolean[][] asked = new boolean[1][shards];
+            int start = start(id);
+            for (int j = 0; j < shards; j++) plan(plan, 0, j, start, asked);
+            Versions[] got = {new Versions()};
+            try {
+                read(List.of(id), plan, got, new HashSet<>());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return got[0].blob(skip);
+        }, readers);
+    }
+
+    @Override
+    public CompletableFuture<boolean[]> has(List<String> ids) {
+        Map<Integer, List<int[]>> plan = new HashMap<>(); // server -> (block, shard)
+        for (int b = 0; b < ids.size(); b++) {
+            int start = start(ids.get(b));
+            for (int j = 0; j < shards; j++) plan.computeIfAbsent((start + j) % servers.size(), s -> new ArrayList<>()).add(new int[]{b, j});
+        }
+        Map<Integer, CompletableFuture<boolean[]>> answers = new HashMap<>();
+        plan.forEach((s, refs) -> answers.put(s, servers.get(s).has(shardIds(ids, refs))));
+        return CompletableFuture.allOf(answers.values().toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            boolean[] all = new boolean[ids.size()];
+            Arrays.fill(all, true);
+            plan.forEach((s, refs) -> {
+                boolean[] has = answers.get(s).join();
+                for (int i = 0; i < refs.size(); i++) if (!has[i]) all[refs.get(i)[0]] = false;
+            });
+            return all;
+        });
+    }
+
+    @Override
+    public List<CompletableFuture<String>> addTokens(String fileId, List<String> tokens) {
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (BlockTransport s : servers) replies.addAll(s.addTokens(fileId, tokens));
+        return replies;
+    }
+
+    // Each server gets every fileId (all keep the index) and the shards it holds.
+    @Override
+    public List<CompletableFuture<String>> delete(Map<String, List<String>> blocksByFile) {
+        List<Map<String, List<String>>> perServer = new ArrayList<>();
+        for (int s = 0; s < servers.size(); s++) perServer.add(new LinkedHashMap<>());
+        blocksByFile.forEach((fileId, ids) -> {
+            for (Map<String, List<String>> m : perServer) m.put(fileId, new ArrayList<>());
+            for (String id : ids) {
+                int start = start(id);
+                for (int j = 0; j < shards; j++) perServer.get((start + j) % servers.size()).get(fileId).add(shardId(id, j));
+            }
+        });
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (int s = 0; s < servers.size(); s++) replies.addAll(servers.get(s).delete(perServer.get(s)));
+        return replies;
+    }
+
+    @Override
+    public CompletableFuture<SearchReply> search(List<String> query) {
+        return searchFrom(0, query);
+    }
+
+    @Override
+    public List<CompletableFuture<String>> stats() {
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (BlockTransport s : servers) replies.addAll(s.stats());
+        return replies;
+    }
+
+    // No server holds a whole block to hash; files stored this way are checked by download.
+    @Override
+    public CompletableFuture<Proof> proof(List<String> ids, int[] samples) {
+        return CompletableFuture.failedFuture(new IOException("PROOF needs whole blocks on one server, not shards"));
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> hashes(List<String> ids) {
+        return CompletableFuture.failedFuture(new IOException("BLOCK_HASHES needs whole blocks on one server, not shards"));
+    }
+
+    @Override
+    public boolean canProve() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        readers.shutdownNow();
+        for (BlockTransport s : servers) s.close();
+    }
+
+    // the next server takes over when one cannot be reached
+    private CompletableFuture<SearchReply> searchFrom(int i, List<String> query) {
+        return servers.get(i).search(query).exceptionallyCompose(e ->
+                i + 1 < servers.size() ? searchFrom(i + 1, query) : CompletableFuture.failedFuture(e));
+    }
+
+    private List<byte[]> fetchNow(List<String> ids) throws IOException {
+        int n = ids.size();
+        Versions[] got = new Versions[n];
+        for (int b = 0; b < n; b++) got[b] = new Versions();
+        boolean[][] asked = new boolean[n][shards];
+        Set<Integer> failed = new HashSet<>();
+
+        // first round: each block's k fastest servers
+        Map<Integer, List<int[]>> plan = new HashMap<>();
+        long now = System.nanoTime();
+        for (int b = 0; b < n; b++) {
+            int start = start(ids.get(b));
+            Integer[] order = new Integer[shards];
+            for (int j = 0; j < shards; j++) order[j] = j;
+            Arrays.sort(order, Comparator.comparingLong((Integer j) -> score((start + j) % servers.size(), now))
+                    .thenComparingInt(j -> j));
+            for (int i = 0; i < rs.dataShards; i++) plan(plan, b, order[i], start, asked);
+        }
+        read(ids, plan, got, failed);
+
+        // second round: every shard not asked for yet, for blocks still short
+        plan = new HashMap<>();
+        for (int b = 0; b < n; b++) {
+            if (got[b].most >= rs.dataShards) continue;
+            int start = start(ids.get(b));
+            for (int j = 0; j < shards; j++) if (!asked[b][j]) plan(plan, b, j, start, asked);
+        }
+        if (!plan.isEmpty()) read(ids, plan, got, failed);
+
+        List<byte[]> blobs = new ArrayList<>(n);
+        for (int b = 0; b < n; b++) {
+            if (got[b].byVersion.isEmpty() && failed.isEmpty()) {
+                blobs.add(null); // not stored anywhere
+                continue;
+            }
+            if (got[b].most < rs.dataShards) {
+                throw new IOException("only " + got[b].most + " of the " + rs.dataShards + " shards needed for block "
+                        + ids.get(b) + " could be read" + (got[b].byVersion.size() > 1 ? " from one version of it" : "")
+                        + (failed.isEmpty() ? "" : " (unreachable: " + names(failed) + ")"));
+            }
+            byte[] blob = got[b].blob(Set.of());
+            if (blob == null) throw new IOException("the shards of block " + ids.get(b) + " do not decode to the blob they name");
+            blobs.add(blob);
+        }
+        return blobs;
+    }
+
+    // One block's shards as read, by the version in their header.
+    private final class Versions {
+        final Map<Long, byte[][]> byVersion = new HashMap<>();
+        final Map<Long, Integer> counts = new HashMap<>();
+        int most; // shards of the version with the most
+
+        void add(long version, int shard, byte[] payload) {
+            byte[][] data = byVersion.computeIfAbsent(version, v -> new byte[shards][]);
+            if (data[shard] != null) return;
+            data[shard] = payload;
+            most = Math.max(most, counts.merge(version, 1, Integer::sum));
+        }
+
+        // The blob of the version with the most shards (k at least) that decodes to
+        // its CRC-32C, leaving out those in skip; null if there is none.
+        byte[] blob(Set<Long> skip) {
+            List<Long> order = new ArrayList<>(counts.keySet());
+            order.sort(Comparator.comparing(counts::get).reversed());
+            for (long version : order) {
+                if (counts.get(version) < rs.dataShards || skip.contains(version)) continue;
+                byte[] blob = join(byVersion.get(version), (int) (version >>> 32));
+                if (version(blob) == version) return blob;
+            }
+            return null;
+        }
+    }
+
+    private void plan(Map<Integer, List<int[]>> plan, int block, int shard, int start, boolean[][] asked) {
+        asked[block][shard] = true;
+        plan.computeIfAbsent((start + shard) % servers.size(), s -> new ArrayList<>()).add(new int[]{block, shard});
+    }
+
+    // One GET_BLOCKS per server in the plan, all in flight at once.
+    private void read(List<String> ids, Map<Integer, List<int[]>> plan, Versions[] got, Set<Integer> failed)
+            throws IOException {
+        Map<Integer, CompletableFuture<List<byte[]>>> replies = new HashMap<>();
+        for (int s = 0; s < servers.size(); s++) {
+            List<int[]> refs = plan.get(s);
+            if (refs == null) {
+                long l = latency.get(s);
+                latency.compareAndSet(s, l, l - l / 8); // not asked: drift back so it is tried again
+                continue;
+            }
+            int server = s;
+            long t = System.nanoTime();
+            replies.put(s, servers.get(s).fetch(shardIds(ids, refs)).whenComplete((r, e) -> {
+                if (e != null) {
+                    downUntil.set(server, System.nanoTime() + DOWN_NANOS);
+                } else {
+                    long l = latency.get(server), sample = System.nanoTime() - t;
+                    latency.compareAndSet(server, l, l == 0 ? sample : l + (sample - l) / 4);
+                }
+            }));
+        }
+        for (Map.Entry<Integer, CompletableFuture<List<byte[]>>> e : replies.entrySet()) {
+            List<byte[]> shardBlobs;
+            try {
+                shardBlobs = ConnectionPool.await(e.getValue());
+            } catch (IOException ex) {
+                failed.add(e.getKey());
+                continue;
+            }
+            List<int[]> refs = plan.get(e.getKey());
+            for (int i = 0; i < refs.size(); i++) {
+                int b = refs.get(i)[0], j = refs.get(i)[1];
+                byte[] payload = unframe(shardBlobs.get(i));
+                if (payload != null) got[b].add(ByteBuffer.wrap(shardBlobs.get(i)).getLong(), j, payload);
+            }
+        }
+    }
+
+    private byte[] join(byte[][] shardData, int blobLength) {
+        int size = Math.max(1, (blobLength + rs.dataShards - 1) / rs.dataShards);
+        boolean[] present = new boolean[shards];
+        for (int j = 0; j < shards; j++) present[j] = shardData[j] != null;
+        rs.decode(shardData, present, size);
+        byte[] blob = new byte[blobLength];
+        for (int j = 0; j < rs.dataShards; j++) {
+            int from = j * size;
+            if (from < blobLength) System.arraycopy(shardData[j], 0, blob, from, Math.min(size, blobLength - from));
+        }
+        return blob;
+    }
+
+    private static byte[] frame(int blobLength, int blobCrc, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return ByteBuffer.allocate(HEADER + data.length).putInt(blobLength).putInt(blobCrc).putInt((int) crc.getValue())
+                .put(data).array();
+    }
+
+    // blob length and CRC-32C, as in a shard header
+    private static long version(byte[] blob) {
+        CRC32C crc = new CRC32C();
+        crc.update(blob);
+        return (long) blob.length << 32 | crc.getValue();
+    }
+
+    // shard bytes, or null when the shard is missing, truncated or fails its CRC
+    private byte[] unframe(byte[] shard) {
+        if (shard == null || shard.length < HEADER) return null;
+        ByteBuffer buf = ByteBuffer.wrap(shard);
+        int blobLength = buf.getInt();
+        buf.getInt(); // crc32c of the blob, checked once it is decoded
+        int expected = buf.getInt();
+        if (blobLength < 0 || shard.length != HEADER + Math.max(1, (blobLength + rs.dataShards - 1) / rs.dataShards)) return null;
+        CRC32 crc = new CRC32();
+        crc.update(shard, HEADER, shard.length - HEADER);
+        return (int) crc.getValue() == expected ? Arrays.copyOfRange(shard, HEADER, shard.length) : null;
+    }
+
+    private long score(int server, long now) {
+        return downUntil.get(server) - now > 0 ? Long.MAX_VALUE : latency.get(server);
+    }
+
+    private int start(String blockId) {
+        return Math.floorMod(blockId.hashCode() * 0x9E3779B9, servers.size());
+    }
+
+    private static String shardId(String blockId, int shard) {
+        return blockId + "_s" + shard;
+    }
+
+    private static List<String> shardIds(List<String> ids, List<int[]> refs) {
+        List<String> out = new ArrayList<>(refs.size());
+        for (int[] r : refs) out.add(shardId(ids.get(r[0]), r[1]));
+        return out;
+    }
+
+    private String names(Set<Integer> failed) {
+        StringJoiner j = new StringJoiner(", ");
+        for (int s : failed) j.add(servers.get(s).toString());
+        return j.toString();
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.*;
+import java.util.function.Function;
+
+// Turns a keyword search such as  report 2024  or  invoice AND (paid OR NOT draft)
+// into the postfix form SEARCH_MULTI expects. Words next to each other (spaces or
+// commas) are ANDed; NOT binds tighter than AND, AND tighter than OR. Only the
+// upper-case words AND / OR / NOT are operators, since stored keywords are lower case.
+final class KeywordQuery {
+    private final List<String> words = new ArrayList<>();
+    private final Function<String, String> tokenFor;
+    private final List<String> postfix = new ArrayList<>();
+    private int pos;
+
+    private KeywordQuery(String query, Function<String, String> tokenFor) {
+        for (String w : query.replace("(", " ( ").replace(")", " ) ").split("[,\\s]+")) {
+            if (!w.isBlank()) words.add(w);
+        }
+        this.tokenFor = tokenFor;
+    }
+
+    // Keywords are mapped through tokenFor; throws IllegalArgumentException on a malformed query.
+    static List<String> toPostfix(String query, Function<String, String> tokenFor) {
+        KeywordQuery q = new KeywordQuery(query, tokenFor);
+        if (q.words.isEmpty()) throw new IllegalArgumentException("empty search");
+        q.or();
+        if (q.pos < q.words.size()) throw new IllegalArgumentException("unexpected \"" + q.words.get(q.pos) + "\"");
+        return q.postfix;
+    }
+
+    private void or() {
+        and();
+        while (accept("OR")) {
+            and();
+            postfix.add("OR");
+        }
+    }
+
+    private void and() {
+        not();
+        while (pos < words.size() && !peek("OR") && !peek(")")) {
+            accept("AND");
+            not();
+            postfix.add("AND");
+        }
+    }
+
+    private void not() {
+        if (accept("NOT")) {
+            not();
+            postfix.add("NOT");
+        } else if (accept("(")) {
+            or();
+            if (!accept(")")) throw new IllegalArgumentException("missing )");
+        } else {
+            if (pos == words.size() || isOperator(words.get(pos))) throw new IllegalArgumentException("keyword expected");
+            postfix.add(tokenFor.apply(words.get(pos++)));
+        }
+    }
+
+    private boolean peek(String w) {
+        return pos < words.size() && words.get(pos).equals(w);
+    }
+
+    private boolean accept(String w) {
+        if (!peek(w)) return false;
+        pos++;
+        return true;
+    }
+
+    private static boolean isOperator(String w) {
+        return w.equals("AND") || w.equals("OR") || w.equals("NOT") || w.equals("(") || w.equals(")");
+    }
+}
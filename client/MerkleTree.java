@@ -0,0 +1,64 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// The Merkle tree the server's BlockHashes builds over a file's stored blocks
+// (ciphertext as sent): leaf SHA-256(0x00 || block), node SHA-256(0x01 || left ||
+// right), the odd node at the end of a level moved up as is, SHA-256 of nothing
+// for no blocks. PUT records the root; CHECKINTEGRITY compares it with the
+// server's and checks sampled blocks against it through their audit paths.
+final class MerkleTree {
+    static final int HASH = 32;
+
+    private MerkleTree() {}
+
+    static byte[] leaf(byte[] block) {
+        MessageDigest sha = sha256();
+        sha.update((byte) 0);
+        sha.update(block);
+        return sha.digest();
+    }
+
+    static byte[] root(List<byte[]> leaves) {
+        if (leaves.isEmpty()) return sha256().digest();
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i + 1 < level.size(); i += 2) next.add(node(level.get(i), level.get(i + 1)));
+            if (level.size() % 2 == 1) next.add(level.get(level.size() - 1));
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    // Whether leaf is block index of count under root, given the sibling hashes
+    // from the leaf up (none for levels where the node has no sibling).
+    static boolean verify(byte[] leaf, int index, int count, List<byte[]> path, byte[] root) {
+        if (index < 0 || index >= count) return false;
+        byte[] hash = leaf;
+        int used = 0;
+        for (int n = count; n > 1; n = (n + 1) / 2, index >>= 1) {
+            if ((index ^ 1) >= n) continue; // moved up unchanged
+            if (used == path.size()) return false;
+            byte[] sibling = path.get(used++);
+            hash = (index & 1) == 0 ? node(hash, sibling) : node(sibling, hash);
+        }
+        return used == path.size() && MessageDigest.isEqual(hash, root);
+    }
+
+    private static byte[] node(byte[] left, byte[] right) {
+        MessageDigest sha = sha256();
+        sha.update((byte) 1);
+        sha.update(left);
+        sha.update(right);
+        return sha.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Where one PUT or GET spends its time. Each phase sums the nanoseconds of every
+// thread doing it, so with parallel workers the phases can add up to more than
+// the wall-clock time; network wait is time a thread sat blocked on the server.
+final class PhaseTimer {
+    enum Phase {
+        CHUNK("chunk"), READ("read"), ENCRYPT("encrypt"), NETWORK_WAIT("network wait"),
+        DECRYPT("decrypt"), WRITE("write");
+
+        final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private final long start = System.nanoTime();
+    private final LongAdder[] nanos = new LongAdder[Phase.values().length];
+
+    PhaseTimer() {
+        for (int i = 0; i < nanos.length; i++) nanos[i] = new LongAdder();
+    }
+
+    // adds the time since startNanos (a System.nanoTime() value) to phase
+    void add(Phase phase, long startNanos) {
+        nanos[phase.ordinal()].add(System.nanoTime() - startNanos);
+    }
+
+    long nanos(Phase phase) {
+        return nanos[phase.ordinal()].sum();
+    }
+
+    // e.g. "PUT timings: 812 ms wall; chunk 95 ms, read 40 ms, encrypt 1210 ms, network wait 180 ms"
+    String report(String operation) {
+        StringBuilder sb = new StringBuilder(operation).append(" timings: ")
+                .append((System.nanoTime() - start) / 1_000_000).append(" ms wall");
+        String sep = "; ";
+        for (Phase p : Phase.values()) {
+            long n = nanos(p);
+            if (n == 0) continue;
+            sb.append(sep).append(p.label).append(' ').append(n / 1_000_000).append(" ms");
+            sep = ", ";
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+// Systematic Reed-Solomon code over GF(2^8) (polynomial 0x11D): k data shards
+// and m parity shards, any k of which give back the data. The encoding matrix is
+// a (k + m) x k Vandermonde matrix times the inverse of its top k x k square, so
+// the first k rows are the identity and data shards are stored as they are;
+// reading the k data shards needs no decoding at all.
+final class ReedSolomon {
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256]; // MUL[a][b] = a * b
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= 0x11D;
+        }
+        for (int i = 255; i < EXP.length; i++) EXP[i] = EXP[i - 255];
+        for (int a = 1; a < 256; a++)
+            for (int b = 1; b < 256; b++) MUL[a][b] = EXP[LOG[a] + LOG[b]];
+    }
+
+    final int dataShards;
+    final int parityShards;
+    private final byte[][] matrix; // rows k .. k + m - 1 are the parity coefficients
+
+    ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 255)
+            throw new IllegalArgumentException("bad Reed-Solomon shape " + dataShards + "+" + parityShards);
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        int n = dataShards + parityShards;
+        byte[][] vandermonde = new byte[n][dataShards];
+        for (int r = 0; r < n; r++)
+            for (int c = 0; c < dataShards; c++) vandermonde[r][c] = pow(r, c);
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    // Fills shards[k .. k + m - 1] (size bytes each) from shards[0 .. k - 1].
+    void encode(byte[][] shards, int size) {
+        for (int p = 0; p < parityShards; p++) {
+            byte[] out = shards[dataShards + p];
+            Arrays.fill(out, 0, size, (byte) 0);
+            for (int c = 0; c < dataShards; c++) mulAdd(matrix[dataShards + p][c], shards[c], out, size);
+        }
+    }
+
+    // Rebuilds the missing data shards (new arrays in their slots) from any k
+    // present ones; present[i] tells whether shards[i] holds size valid bytes.
+    void decode(byte[][] shards, boolean[] present, int size) {
+        int[] rows = new int[dataShards];
+        int have = 0;
+        for (int i = 0; i < shards.length && have < dataShards; i++) if (present[i]) rows[have++] = i;
+        if (have < dataShards) throw new IllegalArgumentException("need " + dataShards + " shards, have " + have);
+        boolean dataComplete = true;
+        for (int i = 0; i < dataShards; i++) dataComplete &= present[i];
+        if (dataComplete) return;
+
+        byte[][] sub = new byte[dataShards][];
+        for (int r = 0; r < dataShards; r++) sub[r] = matrix[rows[r]].clone();
+        byte[][] inverse = invert(sub);
+        byte[][] inputs = new byte[dataShards][];
+        for (int r = 0; r < dataShards; r++) inputs[r] = shards[rows[r]];
+        for (int d = 0; d < dataShards; d++) {
+            if (present[d]) continue;
+            byte[] out = new byte[size];
+            for (int c = 0; c < dataShards; c++) mulAdd(inverse[d][c], inputs[c], out, size);
+            shards[d] = out;
+        }
+    }
+
+    private static void mulAdd(byte coef, byte[] in, byte[] out, int size) {
+        if (coef == 0) return;
+        byte[] row = MUL[coef & 0xFF];
+        for (int i = 0; i < size; i++) out[i] ^= row[in[i] & 0xFF];
+    }
+
+    private static byte mul(byte a, byte b) {
+        return MUL[a & 0xFF][b & 0xFF];
+    }
+
+    private static byte pow(int a, int n) {
+        if (n == 0) return 1;
+        if (a == 0) return 0;
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] out = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++)
+            for (int c = 0; c < b[0].length; c++) {
+                byte v = 0;
+                for (int i = 0; i < b.length; i++) v ^= mul(a[r][i], b[i][c]);
+                out[r][c] = v;
+            }
+        return out;
+    }
+
+    // Gauss-Jordan elimination; every k x k submatrix of the encoding matrix is invertible.
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] a = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(m[r], 0, a[r], 0, n);
+            a[r][n + r] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            while (pivot < n && a[pivot][c] == 0) pivot++;
+            if (pivot == n) throw new IllegalArgumentException("singular matrix");
+            byte[] t = a[c];
+            a[c] = a[pivot];
+            a[pivot] = t;
+            byte scale = EXP[255 - LOG[a[c][c] & 0xFF]]; // inverse of the pivot
+            for (int i = 0; i < 2 * n; i++) a[c][i] = mul(a[c][i], scale);
+            for (int r = 0; r < n; r++) {
+                if (r == c || a[r][c] == 0) continue;
+                byte f = a[r][c];
+                for (int i = 0; i < 2 * n; i++) a[r][i] ^= mul(f, a[c][i]);
+            }
+        }
+        byte[][] out = new byte[n][];
+        for (int r = 0; r < n; r++) out[r] = Arrays.copyOfRange(a[r], n, 2 * n);
+        return out;
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// Read-only random access to a stored file: a read fetches and decrypts only the
+// blocks under it, found through the catalog's block index. A miss loads
+// readAhead blocks from that point in one GET_BLOCKS; decrypted blocks stay in a
+// small LRU cache, and reads that go forward through the file get the next run
+// requested before they reach it. Not thread-safe, like most channels' position.
+final class RemoteFileChannel implements SeekableByteChannel {
+    private final ClientCatalog.Entry entry;
+    private final BlockTransport transport;
+    private final DownloadPipeline.Decoder decoder;
+    private final ByteBuffer plain;
+    private final int readAhead;
+    private final LinkedHashMap<Integer, byte[]> cache;
+    private long position;
+    private long size = -1;
+    private int lastBlock = -1;
+    private int loadedEnd;                                // end of the last run fetched
+    private int aheadFrom = -1;                           // first block of the run in flight
+    private CompletableFuture<List<byte[]>> ahead;
+    private boolean open = true;
+
+    RemoteFileChannel(ClientCatalog.Entry entry, BlockTransport transport, DownloadPipeline.Decoder decoder,
+                      int plainCapacity, int readAhead) throws IOException {
+        if (entry.blockCount() > 0 && entry.blockAt(0) < 0)
+            throw new IOException(entry.filename() + " has no block index (uploaded by an older client); PUT it again for range reads");
+        this.entry = entry;
+        this.transport = transport;
+        this.decoder = decoder;
+        this.plain = ByteBuffer.allocate(plainCapacity);
+        this.readAhead = Math.max(1, readAhead);
+        int capacity = 2 * this.readAhead;
+        this.cache = new LinkedHashMap<>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size()) return -1;
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            int b = entry.blockAt(position);
+            byte[] block = block(b);
+            int from = (int) (position - entry.offset(b));
+            int n = Math.min(dst.remaining(), block.length - from);
+            dst.put(block, from, n);
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) throw new IllegalArgumentException("negative position");
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        if (size < 0) {
+            if (entry.blockCount() == 0) size = 0;
+            else if (entry.offset(entry.blockCount()) >= 0) size = entry.offset(entry.blockCount());
+            else size = entry.offset(entry.blockCount() - 1) + block(entry.blockCount() - 1).length; // FILE upload
+        }
+        return size;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        cache.clear();
+        if (ahead != null) ahead.cancel(false);
+    }
+
+    private byte[] block(int b) throws IOException {
+        boolean sequential = b == lastBlock + 1;
+        lastBlock = b;
+        byte[] block = cache.get(b);
+        if (block == null) {
+            if (ahead != null && b >= aheadFrom && b < aheadFrom + readAhead) {
+                decodeRun(aheadFrom, ConnectionPool.await(ahead));
+                ahead = null;
+            } else {
+                if (ahead != null) ahead.cancel(false); // a seek elsewhere; its reply is dropped
+                ahead = null;
+                int to = Math.min(entry.blockCount(), b + readAhead);
+                decodeRun(b, ConnectionPool.await(transport.fetch(entry.blockIds().subList(b, to))));
+            }
+            block = cache.get(b);
+        }
+        // reading forward: ask for the next run while this one is consumed
+        if (sequential && ahead == null && loadedEnd < entry.blockCount() && b + readAhead / 2 >= loadedEnd) {
+            aheadFrom = loadedEnd;
+            int to = Math.min(entry.blockCount(), aheadFrom + readAhead);
+            ahead = transport.fetch(entry.blockIds().subList(aheadFrom, to));
+        }
+        return block;
+    }
+
+    private void decodeRun(int from, List<byte[]> blobs) throws IOException {
+        for (int i = 0; i < blobs.size(); i++) {
+            int b = from + i;
+            if (blobs.get(i) == null) throw new IOException("missing block on server: " + entry.blockIds().get(b));
+            plain.clear();
+            int n;
+            try {
+                n = DownloadPipeline.decode(transport, decoder, entry.blockIds().get(b), b, blobs.get(i), plain);
+            } catch (Exception e) {
+                throw new IOException("Integrity FAIL on block " + b, e);
+            }
+            long next = entry.offset(b + 1);
+            if (next >= 0 && entry.offset(b) + n != next) throw new IOException("Integrity FAIL on block " + b + ": wrong size");
+            cache.put(b, Arrays.copyOf(plain.array(), n));
+        }
+        loadedEnd = from + blobs.size();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) throw new ClosedChannelException();
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// Blocks on a single BlockStorageServer, over its connection pool. Every request
+// is written both ways: the text commands, and the binary frames of protocol 2
+// for connections whose server agreed to it.
+final class ServerTransport implements BlockTransport {
+    private final ConnectionPool pool;
+    private final String name;
+
+    ServerTransport(String host, int port, int connections, int protocol) {
+        this.pool = new ConnectionPool(host, port, connections, protocol);
+        this.name = host + ":" + port;
+    }
+
+    @Override
+    public CompletableFuture<String> store(String blockId, byte[] blob) {
+        return pool.send(out -> {
+            out.writeUTF("STORE_BLOCK_ASYNC");
+            out.writeUTF(blockId);
+            out.writeInt(blob.length);
+            out.write(blob);
+            out.writeInt(0); // tokens go with ADD_TOKENS
+        }, in -> {
+            String status = in.readUTF();
+            in.readUTF(); // blockId, already known from the request id
+            return status;
+        }, out -> {
+            out.writeByte(BinaryCodec.STORE_BLOCK);
+            BinaryCodec.writeBlockId(out, blockId);
+            BinaryCodec.writeVarint(out, blob.length);
+            out.write(blob);
+            BinaryCodec.writeVarint(out, 0);
+        }, BinaryCodec::readStatus);
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> fetch(List<String> ids) {
+        return pool.send(out -> {
+            out.writeUTF("GET_BLOCKS");
+            out.writeInt(ids.size());
+            for (String id : ids) out.writeUTF(id);
+        }, in -> {
+            List<byte[]> blobs = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                int len = in.readInt();
+                blobs.add(len == -1 ? null : in.readNBytes(len));
+            }
+            return blobs;
+        }, out -> {
+            out.writeByte(BinaryCodec.GET_BLOCKS);
+            BinaryCodec.writeBlockIds(out, ids);
+        }, in -> {
+            List<byte[]> blobs = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) blobs.add(BinaryCodec.readPayload(in));
+            return blobs;
+        });
+    }
+
+    @Override
+    public CompletableFuture<boolean[]> has(List<String> ids) {
+        return pool.send(out -> {
+            out.writeUTF("HAS_BLOCKS");
+            out.writeInt(ids.size());
+            for (String id : ids) out.writeUTF(id);
+        }, in -> {
+            boolean[] has = new boolean[ids.size()];
+            for (int i = 0; i < has.length; i++) has[i] = in.readBoolean();
+            return has;
+        }, out -> {
+            out.writeByte(BinaryCodec.HAS_BLOCKS);
+            BinaryCodec.writeBlockIds(out, ids);
+        }, in -> {
+            byte[] bits = in.readNBytes((ids.size() + 7) / 8);
+            boolean[] has = new boolean[ids.size()];
+            for (int i = 0; i < has.length; i++) has[i] = (bits[i >> 3] & (1 << (i & 7))) != 0;
+            return has;
+        });
+    }
+
+    @Override
+    public List<CompletableFuture<String>> addTokens(String fileId, List<String> tokens) {
+        return List.of(pool.send(out -> {
+            out.writeUTF("ADD_TOKENS");
+            out.writeUTF(fileId);
+            out.writeInt(tokens.size());
+            for (String tok : tokens) out.writeUTF(tok);
+        }, in -> in.readUTF(), out -> {
+            out.writeByte(BinaryCodec.ADD_TOKENS);
+            BinaryCodec.writeBlockId(out, fileId);
+            BinaryCodec.writeStrings(out, tokens);
+        }, BinaryCodec::readStatus));
+    }
+
+    @Override
+    public List<CompletableFuture<String>> delete(Map<String, List<String>> blocksByFile) {
+        boolean one = blocksByFile.size() == 1;
+        return List.of(pool.send(out -> {
+            out.writeUTF(one ? "DELETE_FILE" : "DELETE_FILES");
+            if (!one) out.writeInt(blocksByFile.size());
+            for (Map.Entry<String, List<String>> e : blocksByFile.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (String id : e.getValue()) out.writeUTF(id);
+            }
+        }, in -> in.readUTF(), out -> {
+            out.writeByte(one ? BinaryCodec.DELETE_FILE : BinaryCodec.DELETE_FILES);
+            if (!one) BinaryCodec.writeVarint(out, blocksByFile.size());
+            for (Map.Entry<String, List<String>> e : blocksByFile.entrySet()) {
+                BinaryCodec.writeBlockId(out, e.getKey());
+                BinaryCodec.writeBlockIds(out, e.getValue());
+            }
+        }, BinaryCodec::readStatus));
+    }
+
+    @Override
+    public CompletableFuture<SearchReply> search(List<String> query) {
+        return pool.send(out -> {
+            if (query.size() == 1) {
+                out.writeUTF("SEARCH");
+                out.writeUTF(query.get(0));
+            } else {
+                out.writeUTF("SEARCH_MULTI");
+                out.writeInt(query.size());
+                for (String item : query) out.writeUTF(item);
+            }
+        }, in -> {
+            // count + fileIds, or -1 + error message (SEARCH_MULTI)
+            int count = in.readInt();
+            if (count < 0) return new SearchReply(List.of(), in.readUTF());
+            List<String> ids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) ids.add(in.readUTF());
+            return new SearchReply(ids, null);
+        }, out -> {
+            if (query.size() == 1) {
+                out.writeByte(BinaryCodec.SEARCH);
+                BinaryCodec.writeString(out, query.get(0));
+            } else {
+                out.writeByte(BinaryCodec.SEARCH_MULTI);
+                BinaryCodec.writeStrings(out, query);
+            }
+        }, in -> {
+            String status = BinaryCodec.readStatus(in);
+            if (!status.equals("OK")) return new SearchReply(List.of(), status);
+            int count = BinaryCodec.readVarint(in);
+            List<String> ids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) ids.add(BinaryCodec.readBlockId(in));
+            return new SearchReply(ids, null);
+        });
+    }
+
+    @Override
+    public List<CompletableFuture<String>> stats() {
+        return List.of(pool.send(out -> out.writeUTF("STATS"), in -> in.readUTF(),
+                out -> out.writeByte(BinaryCodec.STATS), BinaryCodec::readString));
+    }
+
+    @Override
+    public CompletableFuture<Proof> proof(List<String> ids, int[] samples) {
+        return pool.send(out -> {
+            out.writeUTF("PROOF");
+            out.writeInt(ids.size());
+            for (String id : ids) out.writeUTF(id);
+            out.writeInt(samples.length);
+            for (int index : samples) out.writeInt(index);
+        }, in -> {
+            String status = in.readUTF();
+            if (status.equals("MISSING")) return new Proof(in.readInt(), null, null, null);
+            if (!status.equals("OK")) throw new IOException("PROOF: " + status);
+            byte[] root = in.readNBytes(MerkleTree.HASH);
+            List<byte[]> blobs = new ArrayList<>(samples.length);
+            List<List<byte[]>> paths = new ArrayList<>(samples.length);
+            for (int i = 0; i < samples.length; i++) {
+                blobs.add(in.readNBytes(in.readInt()));
+                paths.add(readHashes(in, in.readInt()));
+            }
+            return new Proof(-1, root, blobs, paths);
+        }, out -> {
+            out.writeByte(BinaryCodec.PROOF);
+            BinaryCodec.writeBlockIds(out, ids);
+            BinaryCodec.writeVarint(out, samples.length);
+            for (int index : samples) BinaryCodec.writeVarint(out, index);
+        }, in -> {
+            int missing = BinaryCodec.readVarint(in) - 1;
+            if (missing >= 0) return new Proof(missing, null, null, null);
+            byte[] root = in.readNBytes(MerkleTree.HASH);
+            List<byte[]> blobs = new ArrayList<>(samples.length);
+            List<List<byte[]>> paths = new ArrayList<>(samples.length);
+            for (int i = 0; i < samples.length; i++) {
+                blobs.add(BinaryCodec.readPayload(in));
+                paths.add(readHashes(in, BinaryCodec.readVarint(in)));
+            }
+            return new Proof(-1, root, blobs, paths);
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> hashes(List<String> ids) {
+        return pool.send(out -> {
+            out.writeUTF("BLOCK_HASHES");
+            out.writeInt(ids.size());
+            for (String id : ids) out.writeUTF(id);
+        }, in -> {
+            String status = in.readUTF();
+            if (!status.equals("OK")) throw new IOException("BLOCK_HASHES: " + status);
+            List<byte[]> leaves = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) leaves.add(in.readBoolean() ? in.readNBytes(MerkleTree.HASH) : null);
+            return leaves;
+        }, out -> {
+            out.writeByte(BinaryCodec.BLOCK_HASHES);
+            BinaryCodec.writeBlockIds(out, ids);
+        }, in -> {
+            List<byte[]> leaves = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) leaves.add(in.readUnsignedByte() != 0 ? in.readNBytes(MerkleTree.HASH) : null);
+            return leaves;
+        });
+    }
+
+    @Override
+    public boolean canProve() {
+        return true;
+    }
+
+    private static List<byte[]> readHashes(DataInputStream in, int count) throws IOException {
+        List<byte[]> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) hashes.add(in.readNBytes(MerkleTree.HASH));
+        return hashes;
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Sliding window for pipelined STORE_BLOCK_ASYNC uploads. The sender takes a
+// permit before each block and hands over the future of its (status, blockId)
+// ack; when the ack arrives the block is marked and the permit comes back.
+// The first failed ack (or a broken connection) stops the window.
+final class UploadWindow {
+    private final Semaphore permits;
+    private final int size;
+    private final BitSet acked = new BitSet();
+    private final List<CompletableFuture<Void>> inFlight = new ArrayList<>(); // ack handled
+    private int sent;
+    private volatile String failure;
+
+    UploadWindow(int size) {
+        this.size = size;
+        this.permits = new Semaphore(size);
+    }
+
+    // Blocks until there is room in the window; throws once an ack has failed.
+    void acquire() throws IOException {
+        permits.acquireUninterruptibly();
+        if (failure != null) throw new IOException(failure);
+    }
+
+    // ack completes with the status the server returned for block idx
+    synchronized void sent(int idx, CompletableFuture<String> ack) {
+        sent++;
+        inFlight.removeIf(CompletableFuture::isDone);
+        inFlight.add(ack.handle((status, e) -> {
+            if (e != null) {
+                fail("upload ack failed: " + e.getMessage());
+            } else if (!"OK".equals(status)) {
+                fail("server returned: " + status + " (block " + idx + ")");
+            } else {
+                synchronized (this) {
+                    acked.set(idx);
+                }
+                permits.release();
+            }
+            return null;
+        }));
+    }
+
+    // Waits for the outstanding acks and returns how many blocks were confirmed.
+    int finish() throws IOException {
+        CompletableFuture<?>[] pending;
+        synchronized (this) {
+            pending = inFlight.toArray(new CompletableFuture<?>[0]);
+        }
+        try {
+            CompletableFuture.allOf(pending).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (failure != null) throw new IOException(failure);
+        synchronized (this) {
+            if (acked.cardinality() != sent) throw new IOException("missing acks: " + acked.cardinality() + "/" + sent);
+            return sent;
+        }
+    }
+
+    private void fail(String msg) {
+        failure = msg;
+        permits.release(size); // wake the sender so it can stop
+    }
+}
@@ -4,81 +4,111 @@ package crypto;
 
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import java.nio.ByteBuffer;
 import java.security.*;
-import java.util.*;
-import java.io.*;
 
 public class AesCbcHmacSuite implements CryptoSuite {
 
     private static final int IV_LEN = 16; // AES block size (CBC)
-    private final byte[] encKey;
-    private final byte[] macKey;
+    private static final int TAG_LEN = 32; // HMAC-SHA256
+    private final SecretKeySpec encKey;
+    private final SecretKeySpec macKey;
+    private final SecureRandom rnd = new SecureRandom();
+
+    // Cipher, Mac (already keyed) and scratch buffers confined to the calling thread.
+    private final ThreadLocal<State> state = ThreadLocal.withInitial(this::newState);
+
+    private static final class State {
+        Cipher cipher;
+        Mac mac;
+        final byte[] iv = new byte[IV_LEN];
+        final byte[] tag = new byte[TAG_LEN];
+        final byte[] expected = new byte[TAG_LEN];
+    }
 
     public AesCbcHmacSuite(byte[] encKey, byte[] macKey) {
-        this.encKey = Arrays.copyOf(encKey, encKey.length);
-        this.macKey = Arrays.copyOf(macKey, macKey.length);
+        this.encKey = new SecretKeySpec(encKey, "AES");
+        this.macKey = new SecretKeySpec(macKey, "HmacSHA256");
+    }
+
+    private State newState() {
+        try {
+            State st = new State();
+            st.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            st.mac = Mac.getInstance("HmacSHA256");
+            st.mac.init(macKey);
+            return st;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     @Override
-    public byte[] encrypt(byte[] plaintext, byte[] aad) {
+    public int encrypt(ByteBuffer plaintext, ByteBuffer aad, ByteBuffer out) {
         try {
+            State st = state.get();
+            int start = out.position();
+
             // 1. Generate IV
-            byte[] iv = new byte[IV_LEN];
-            new SecureRandom().nextBytes(iv);
+            rnd.nextBytes(st.iv);
+            out.put(st.iv);
 
             // 2. Encrypt using AES/CBC/PKCS5Padding
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            SecretKeySpec aesKey = new SecretKeySpec(encKey, "AES");
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey, new IvParameterSpec(iv));
-            byte[] ciphertext = cipher.doFinal(plaintext);
+            st.cipher.init(Cipher.ENCRYPT_MODE, encKey, new IvParameterSpec(st.iv));
+            int ctStart = out.position();
+            int ctLen = st.cipher.doFinal(plaintext, out);
 
             // 3. Compute HMAC over (AAD || IV || ciphertext)
-            Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-            mac.update(aad);
-            mac.update(iv);
-            mac.update(ciphertext);
-            byte[] tag = mac.doFinal();
-
-            // 4. Return iv || ciphertext || tag
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            out.write(iv);
-            out.write(ciphertext);
-            out.write(tag);
-            return out.toByteArray();
+            Mac mac = st.mac;
+            if (aad != null) mac.update(aad);
+            mac.update(st.iv);
+            mac.update(out.duplicate().position(ctStart).limit(ctStart + ctLen));
+            mac.doFinal(st.tag, 0);
+
+            // 4. out holds iv || ciphertext || tag
+            out.put(st.tag);
+            return out.position() - start;
         } catch (Exception e) {
             throw new RuntimeException("AES-CBC-HMAC encrypt failed", e);
         }
     }
 
     @Override
-    public byte[] decrypt(byte[] blob, byte[] aad) {
+    public int decrypt(ByteBuffer blob, ByteBuffer aad, ByteBuffer out) {
         try {
             // Split blob: iv || ciphertext || tag
-            if (blob.length < IV_LEN + 32) throw new IllegalArgumentException("Ciphertext too short");
-            int tagPos = blob.length - 32;
-            byte[] iv = Arrays.copyOfRange(blob, 0, IV_LEN);
-            byte[] ciphertext = Arrays.copyOfRange(blob, IV_LEN, tagPos);
-            byte[] tag = Arrays.copyOfRange(blob, tagPos, blob.length);
+            if (blob.remaining() < IV_LEN + TAG_LEN) throw new IllegalArgumentException("Ciphertext too short");
+            State st = state.get();
+            blob.get(st.iv);
+            int ctLen = blob.remaining() - TAG_LEN;
+            ByteBuffer ciphertext = blob.slice().limit(ctLen);
+            blob.position(blob.position() + ctLen);
+            blob.get(st.tag);
 
             // Verify HMAC
-            Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-            mac.update(aad);
-            mac.update(iv);
-            mac.update(ciphertext);
-            byte[] expected = mac.doFinal();
-            if (!MessageDigest.isEqual(tag, expected))
+            Mac mac = st.mac;
+            if (aad != null) mac.update(aad);
+            mac.update(st.iv);
+            mac.update(ciphertext.duplicate());
+            mac.doFinal(st.expected, 0);
+            if (!MessageDigest.isEqual(st.tag, st.expected))
                 throw new SecurityException("HMAC verification failed");
 
             // Decrypt
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            SecretKeySpec aesKey = new SecretKeySpec(encKey, "AES");
-            cipher.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(iv));
-            return cipher.doFinal(ciphertext);
+            st.cipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(st.iv));
+            return st.cipher.doFinal(ciphertext, out);
         } catch (Exception e) {
             throw new RuntimeException("AES-CBC-HMAC decrypt failed", e);
         }
     }
-}
 
+    @Override
+    public int encryptedLength(int plaintextLength) {
+        return IV_LEN + (plaintextLength / 16 + 1) * 16 + TAG_LEN; // PKCS5 always adds 1..16 bytes
+    }
+
+    @Override
+    public int maxDecryptedLength(int blobLength) {
+        return blobLength - IV_LEN - TAG_LEN;
+    }
+}
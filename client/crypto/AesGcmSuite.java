@@ -3,37 +3,63 @@ package crypto;
 import javax.crypto.Cipher;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-import java.util.Arrays;
 
 public class AesGcmSuite implements CryptoSuite {
-    private final byte[] dataKey;
+    private static final int IV_LEN = 12;
+    private static final int TAG_LEN = 16;
+
+    private final SecretKeySpec key;
     private final SecureRandom rnd = new SecureRandom();
 
+    // Cipher and IV scratch confined to the calling thread, reused for every block.
+    private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+    private static final class State {
+        final Cipher cipher;
+        final byte[] iv = new byte[IV_LEN];
+
+        State() {
+            try {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
     public AesGcmSuite(byte[] dataKey) {
-        this.dataKey = dataKey;
+        this.key = new SecretKeySpec(dataKey, "AES");
     }
 
-    @Override public byte[] encrypt(byte[] plaintext, byte[] aad) throws Exception {
-        byte[] iv = new byte[12];
-        rnd.nextBytes(iv);
-        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
-        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(dataKey, "AES"), new GCMParameterSpec(128, iv));
+    @Override public int encrypt(ByteBuffer plaintext, ByteBuffer aad, ByteBuffer out) throws Exception {
+        State st = state.get();
+        rnd.nextBytes(st.iv);
+        Cipher c = st.cipher;
+        c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LEN * 8, st.iv));
         if (aad != null) c.updateAAD(aad);
-        byte[] ctTag = c.doFinal(plaintext);              // ciphertext || 16B tag
-        byte[] out = new byte[iv.length + ctTag.length];  // iv || ctTag
-        System.arraycopy(iv, 0, out, 0, iv.length);
-        System.arraycopy(ctTag, 0, out, iv.length, ctTag.length);
-        return out;
+        int start = out.position();
+        out.put(st.iv);                                   // iv || ct || 16B tag
+        c.doFinal(plaintext, out);
+        return out.position() - start;
     }
 
-    @Override public byte[] decrypt(byte[] blob, byte[] aad) throws Exception {
-        byte[] iv = Arrays.copyOfRange(blob, 0, 12);
-        byte[] ctTag = Arrays.copyOfRange(blob, 12, blob.length);
-        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
-        c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(dataKey, "AES"), new GCMParameterSpec(128, iv));
+    @Override public int decrypt(ByteBuffer blob, ByteBuffer aad, ByteBuffer out) throws Exception {
+        if (blob.remaining() < IV_LEN + TAG_LEN) throw new IllegalArgumentException("Ciphertext too short");
+        State st = state.get();
+        blob.get(st.iv);
+        Cipher c = st.cipher;
+        c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LEN * 8, st.iv));
         if (aad != null) c.updateAAD(aad);
-        return c.doFinal(ctTag);                           // throws on tamper
+        return c.doFinal(blob, out);                       // throws on tamper
+    }
+
+    @Override public int encryptedLength(int plaintextLength) {
+        return IV_LEN + plaintextLength + TAG_LEN;
     }
-}
 
+    @Override public int maxDecryptedLength(int blobLength) {
+        return blobLength - IV_LEN - TAG_LEN;
+    }
+}
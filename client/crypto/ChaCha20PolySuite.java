@@ -2,61 +2,103 @@ package crypto;
 
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import java.nio.ByteBuffer;
 import java.security.*;
-import java.util.*;
-import java.io.*;
 
 public class ChaCha20PolySuite implements CryptoSuite {
 
     private static final int NONCE_LEN = 12; // Standard for ChaCha20-Poly1305
-    private final byte[] key;
+    private static final int TAG_LEN = 16;   // Poly1305
+    private final SecretKeySpec key;
+    private final SecureRandom rnd = new SecureRandom();
+
+    // Cipher and nonce scratch confined to the calling thread, reused for every block.
+    private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+    private static final class State {
+        Cipher cipher;
+        final byte[] nonce = new byte[NONCE_LEN];
+
+        State() {
+            try {
+                cipher = Cipher.getInstance("ChaCha20-Poly1305");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
 
     public ChaCha20PolySuite(byte[] key) {
-        this.key = Arrays.copyOf(key, key.length);
+        this.key = new SecretKeySpec(key, "ChaCha20");
     }
 
     @Override
-    public byte[] encrypt(byte[] plaintext, byte[] aad) {
+    public int encrypt(ByteBuffer plaintext, ByteBuffer aad, ByteBuffer out) {
         try {
-            byte[] nonce = new byte[NONCE_LEN];
-            new SecureRandom().nextBytes(nonce);
-
-            Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305");
-            SecretKeySpec keySpec = new SecretKeySpec(key, "ChaCha20");
-            ChaCha20ParameterSpec paramSpec = new ChaCha20ParameterSpec(nonce, 1);
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec, paramSpec);
-            cipher.updateAAD(aad);
-
-            byte[] ciphertext = cipher.doFinal(plaintext);
-
-            // Return nonce || ciphertext (ciphertext already includes the 16-byte Poly1305 tag)
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            out.write(nonce);
-            out.write(ciphertext);
-            return out.toByteArray();
+            State st = state.get();
+            rnd.nextBytes(st.nonce);
+
+            // the AEAD form takes the nonce as an IvParameterSpec (ChaCha20ParameterSpec is rejected)
+            Cipher cipher = st.cipher;
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(st.nonce));
+            if (aad != null) updateAAD(cipher, aad);
+
+            // out holds nonce || ciphertext (ciphertext already includes the 16-byte Poly1305 tag)
+            int start = out.position();
+            out.put(st.nonce);
+            cipher.doFinal(plaintext, out);
+            return out.position() - start;
         } catch (Exception e) {
             throw new RuntimeException("ChaCha20-Poly1305 encrypt failed", e);
         }
     }
 
     @Override
-    public byte[] decrypt(byte[] blob, byte[] aad) {
+    public int decrypt(ByteBuffer blob, ByteBuffer aad, ByteBuffer out) {
         try {
-            if (blob.length < NONCE_LEN + 16)
+            if (blob.remaining() < NONCE_LEN + TAG_LEN)
                 throw new IllegalArgumentException("Ciphertext too short");
 
-            byte[] nonce = Arrays.copyOfRange(blob, 0, NONCE_LEN);
-            byte[] ciphertext = Arrays.copyOfRange(blob, NONCE_LEN, blob.length);
+            State st = state.get();
+            blob.get(st.nonce);
 
-            Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305");
-            SecretKeySpec keySpec = new SecretKeySpec(key, "ChaCha20");
-            ChaCha20ParameterSpec paramSpec = new ChaCha20ParameterSpec(nonce, 1);
-            cipher.init(Cipher.DECRYPT_MODE, keySpec, paramSpec);
-            cipher.updateAAD(aad);
+            Cipher cipher = st.cipher;
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(st.nonce));
+            } catch (InvalidKeyException sameNonce) {
+                // the JDK refuses to re-init with the key+nonce of the previous init
+                // (same block decrypted twice on this thread): take a fresh instance
+                cipher = st.cipher = Cipher.getInstance("ChaCha20-Poly1305");
+                cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(st.nonce));
+            }
+            if (aad != null) updateAAD(cipher, aad);
 
-            return cipher.doFinal(ciphertext);
+            return cipher.doFinal(blob, out);
         } catch (Exception e) {
             throw new RuntimeException("ChaCha20-Poly1305 decrypt failed", e);
         }
     }
+
+    @Override
+    public int encryptedLength(int plaintextLength) {
+        return NONCE_LEN + plaintextLength + TAG_LEN;
+    }
+
+    @Override
+    public int maxDecryptedLength(int blobLength) {
+        return blobLength - NONCE_LEN - TAG_LEN;
+    }
+
+    // The JDK's ChaCha20-Poly1305 gets the tag wrong for an AAD ByteBuffer of 16
+    // bytes or more (JDK 17), so the AAD always goes in as an array.
+    private static void updateAAD(Cipher cipher, ByteBuffer aad) {
+        if (aad.hasArray()) {
+            cipher.updateAAD(aad.array(), aad.arrayOffset() + aad.position(), aad.remaining());
+            aad.position(aad.limit());
+        } else {
+            byte[] copy = new byte[aad.remaining()];
+            aad.get(copy);
+            cipher.updateAAD(copy);
+        }
+    }
 }
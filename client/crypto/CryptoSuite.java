@@ -1,7 +1,29 @@
 package crypto;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 public interface CryptoSuite {
-        byte[] encrypt(byte[] plaintext, byte[] aad) throws Exception; // returns blob to store (nonce/iv||ct||tag/mac)
-        byte[] decrypt(byte[] blob, byte[] aad) throws Exception;      // verifies & returns plaintext
-    }
 
+        // Buffer API: reads plaintext/blob from position to limit, writes the result
+        // at out's position and returns the bytes written. aad may be null.
+        // Implementations keep Cipher/Mac per thread, so nothing is allocated per block
+        // beyond what the JCE itself needs.
+        int encrypt(ByteBuffer plaintext, ByteBuffer aad, ByteBuffer out) throws Exception; // out gets nonce/iv||ct||tag/mac
+        int decrypt(ByteBuffer blob, ByteBuffer aad, ByteBuffer out) throws Exception;      // verifies, out gets plaintext
+
+        int encryptedLength(int plaintextLength);   // exact blob size for a plaintext size
+        int maxDecryptedLength(int blobLength);     // room decrypt() may need in out
+
+        default byte[] encrypt(byte[] plaintext, byte[] aad) throws Exception { // returns blob to store (nonce/iv||ct||tag/mac)
+            byte[] out = new byte[encryptedLength(plaintext.length)];
+            encrypt(ByteBuffer.wrap(plaintext), aad == null ? null : ByteBuffer.wrap(aad), ByteBuffer.wrap(out));
+            return out;
+        }
+
+        default byte[] decrypt(byte[] blob, byte[] aad) throws Exception {      // verifies & returns plaintext
+            byte[] out = new byte[Math.max(0, maxDecryptedLength(blob.length))];
+            int n = decrypt(ByteBuffer.wrap(blob), aad == null ? null : ByteBuffer.wrap(aad), ByteBuffer.wrap(out));
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        }
+    }
@@ -0,0 +1,174 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+// Wire format of protocol version 2, agreed per connection with "HELLO <version>"
+// (answered "VERSION" + the version both sides speak). A server that takes
+// REQ-tagged text commands but not HELLO answers "ERROR: Unknown command", and
+// the client stays on REQ <id> <command>; servers from before REQ cannot serve it.
+// A request is [varint request id][opcode byte][body], a reply [varint request id]
+// [body]; counts, indexes and lengths are unsigned varints (7 bits a byte, low
+// bits first), strings a varint length and UTF-8, block payloads a varint length
+// and the bytes (length + 1 in replies, where 0 is a missing block). Block ids
+// travel as a form byte:
+//   ID_HEX        16 bytes             <32 hex>
+//   ID_INDEXED    16 bytes + varint i  <32 hex fileId>_block_<i>
+//   ID_TEXT       string               anything else
+// with SHARD_FLAG set when a varint j follows for an erasure shard (<id>_s<j>).
+// The client's BinaryCodec writes the same format.
+final class BinaryProtocol {
+    static final int VERSION = 2;
+
+    static final int EXIT = 0;
+    static final int STORE_BLOCK = 1;     // id, payload, tokens -> status
+    static final int GET_BLOCKS = 2;      // count, ids -> one payload per id
+    static final int HAS_BLOCKS = 3;      // count, ids -> bitmap, (count + 7) / 8 bytes
+    static final int GET_BLOCK_RANGE = 4; // fileId (16 bytes), start, count -> payloads
+    static final int ADD_TOKENS = 5;      // fileId, tokens -> status
+    static final int SEARCH = 6;          // token -> results
+    static final int SEARCH_MULTI = 7;    // count, postfix items -> results
+    static final int STATS = 8;           // -> string
+    static final int LIST_BLOCKS = 9;     // -> count, ids
+    static final int CACHE_STATS = 10;    // -> string
+    static final int PROOF = 11;          // count, ids, count, sample indexes -> proof (below)
+    static final int BLOCK_HASHES = 12;   // count, ids -> per id 0, or 1 + 32-byte leaf hash
+    static final int DELETE_FILE = 13;    // fileId, count, ids -> status
+    static final int DELETE_FILES = 14;   // count, then per file: fileId, count, ids -> status
+    // status: 0 = OK, else 1 + error string; results: status, then count and fileIds;
+    // proof: varint first missing index + 1 (0 = none missing, and then) the 32-byte
+    // root and per sample a payload, a varint path length and the path hashes
+
+    // metric names, so STATS reports both protocols under the same command words
+    static final String[] NAMES = {"EXIT", "STORE_BLOCK_ASYNC", "GET_BLOCKS", "HAS_BLOCKS", "GET_BLOCK_RANGE",
+            "ADD_TOKENS", "SEARCH", "SEARCH_MULTI", "STATS", "LIST_BLOCKS", "CACHE_STATS",
+            "PROOF", "BLOCK_HASHES", "DELETE_FILE", "DELETE_FILES"};
+
+    static final int ID_HEX = 0;
+    static final int ID_INDEXED = 1;
+    static final int ID_TEXT = 2;
+    static final int SHARD_FLAG = 0x80;
+
+    private static final String INDEX_SEPARATOR = "_block_";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private BinaryProtocol() {}
+
+    static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if (b < 0x80) return value;
+        }
+        throw new IOException("varint too long");
+    }
+
+    static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    // a count or length that must fit under limit
+    static int readCount(DataInput in, int limit) throws IOException {
+        int n = readVarint(in);
+        if (n < 0 || n > limit) throw new IOException("bad count " + Integer.toUnsignedString(n));
+        return n;
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] b = new byte[readCount(in, 1 << 20)];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, b.length);
+        out.write(b);
+    }
+
+    static byte[] readFileId(DataInput in) throws IOException {
+        byte[] id = new byte[16];
+        in.readFully(id);
+        return id;
+    }
+
+    static String fileIdText(byte[] id) {
+        return HEX.formatHex(id);
+    }
+
+    // The store key for a block id on the wire; fileIdOut (16 bytes, or null)
+    // gets the fileId part, so tokens need no parsing of the key.
+    static String readBlockId(DataInput in, byte[][] fileIdOut) throws IOException {
+        int form = in.readUnsignedByte();
+        String id;
+        switch (form & ~SHARD_FLAG) {
+            case ID_HEX: {
+                byte[] fileId = readFileId(in);
+                if (fileIdOut != null) fileIdOut[0] = fileId;
+                id = fileIdText(fileId);
+                break;
+            }
+            case ID_INDEXED: {
+                byte[] fileId = readFileId(in);
+                if (fileIdOut != null) fileIdOut[0] = fileId;
+                id = fileIdText(fileId) + INDEX_SEPARATOR + readVarint(in);
+                break;
+            }
+            case ID_TEXT:
+                if (fileIdOut != null) fileIdOut[0] = null;
+                id = readString(in);
+                break;
+            default:
+                throw new IOException("bad block id form " + form);
+        }
+        return (form & SHARD_FLAG) != 0 ? id + "_s" + readVarint(in) : id;
+    }
+
+    // Block ids the server sends back (fileIds in SEARCH results, LIST_BLOCKS)
+    // use the same forms.
+    static void writeBlockId(DataOutput out, String id) throws IOException {
+        int shard = -1, end = id.length();
+        int s = id.lastIndexOf("_s");
+        if (s > 0 && isNumber(id, s + 2, id.length())) {
+            shard = Integer.parseInt(id.substring(s + 2));
+            end = s;
+        }
+        int flag = shard >= 0 ? SHARD_FLAG : 0;
+        if (end == 32 && isHex(id, 0, 32)) {
+            out.writeByte(ID_HEX | flag);
+            out.write(HEX.parseHex(id, 0, 32));
+        } else if (end > 32 + INDEX_SEPARATOR.length() && isHex(id, 0, 32) && id.startsWith(INDEX_SEPARATOR, 32)
+                && isNumber(id, 32 + INDEX_SEPARATOR.length(), end)) {
+            out.writeByte(ID_INDEXED | flag);
+            out.write(HEX.parseHex(id, 0, 32));
+            writeVarint(out, Integer.parseInt(id.substring(32 + INDEX_SEPARATOR.length(), end)));
+        } else {
+            out.writeByte(ID_TEXT);
+            writeString(out, id);
+            return;
+        }
+        if (shard >= 0) writeVarint(out, shard);
+    }
+
+    // lowercase hex, as written by HexFormat, so the id reads back unchanged
+    private static boolean isHex(String s, int from, int to) {
+        if (s.length() < to) return false;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) return false;
+        }
+        return true;
+    }
+
+    // a non-negative int without leading zeros
+    private static boolean isNumber(String s, int from, int to) {
+        int len = to - from;
+        if (len < 1 || len > 9 || (len > 1 && s.charAt(from) == '0')) return false;
+        for (int i = from; i < to; i++) if (s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+        return true;
+    }
+}
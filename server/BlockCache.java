@@ -0,0 +1,125 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// In-memory cache of encrypted blocks bounded by a byte budget. Segmented LRU:
+// new blocks enter a probation segment and are promoted to the protected segment
+// (80% of the budget) on their second hit, so a one-off scan over many blocks
+// only churns probation and never flushes the hot set.
+// Overwrites call invalidate(); a fill that raced with an overwrite of the same
+// block is dropped thanks to per-stripe generation counters.
+public class BlockCache {
+    private static final int ENTRY_OVERHEAD = 96; // map node, key string, array header
+    private static final int STRIPES = 1024;
+
+    private final long capacity;
+    private final long protectedCapacity;
+    private final LinkedHashMap<String, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, byte[]> protect = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public BlockCache(long capacityBytes) {
+        this.capacity = capacityBytes;
+        this.protectedCapacity = capacityBytes * 8 / 10;
+    }
+
+    public synchronized byte[] get(String blockId) {
+        byte[] data = protect.get(blockId);
+        if (data == null) {
+            data = probation.remove(blockId);
+            if (data == null) {
+                misses.increment();
+                return null;
+            }
+            probationBytes -= weight(blockId, data);
+            protect.put(blockId, data);
+            protectedBytes += weight(blockId, data);
+            // overflow of the protected segment goes back to probation, not out of the cache
+            Iterator<Map.Entry<String, byte[]>> it = protect.entrySet().iterator();
+            while (protectedBytes > protectedCapacity && it.hasNext()) {
+                Map.Entry<String, byte[]> lru = it.next();
+                it.remove();
+                long w = weight(lru.getKey(), lru.getValue());
+                protectedBytes -= w;
+                probation.put(lru.getKey(), lru.getValue());
+                probationBytes += w;
+            }
+            evict();
+        }
+        hits.increment();
+        return data;
+    }
+
+    // Read before loading a block from the store; pass it to put().
+    public long generation(String blockId) {
+        return generations.get(stripe(blockId));
+    }
+
+    public void put(String blockId, byte[] data, long generation) {
+        if (weight(blockId, data) > capacity) return;
+        synchronized (this) {
+            if (generations.get(stripe(blockId)) != generation) return; // overwritten meanwhile
+            remove(blockId);
+            probation.put(blockId, data);
+            probationBytes += weight(blockId, data);
+            evict();
+        }
+    }
+
+    public void invalidate(String blockId) {
+        generations.incrementAndGet(stripe(blockId));
+        synchronized (this) {
+            if (remove(blockId)) invalidations.increment();
+        }
+    }
+
+    public synchronized String stats() {
+        long h = hits.sum(), m = misses.sum();
+        return String.format("cache hits=%d misses=%d hitRatio=%.3f evictions=%d invalidations=%d entries=%d bytes=%d/%d",
+                h, m, h + m == 0 ? 0.0 : (double) h / (h + m), evictions.sum(), invalidations.sum(),
+                probation.size() + protect.size(), probationBytes + protectedBytes, capacity);
+    }
+
+    // Caller holds the monitor.
+    private boolean remove(String blockId) {
+        byte[] old = probation.remove(blockId);
+        if (old != null) {
+            probationBytes -= weight(blockId, old);
+            return true;
+        }
+        old = protect.remove(blockId);
+        if (old != null) {
+            protectedBytes -= weight(blockId, old);
+            return true;
+        }
+        return false;
+    }
+
+    // Caller holds the monitor. Probation LRU goes first, protected only if probation is empty.
+    private void evict() {
+        while (probationBytes + protectedBytes > capacity) {
+            LinkedHashMap<String, byte[]> victims = probation.isEmpty() ? protect : probation;
+            Iterator<Map.Entry<String, byte[]>> it = victims.entrySet().iterator();
+            Map.Entry<String, byte[]> lru = it.next();
+            it.remove();
+            long w = weight(lru.getKey(), lru.getValue());
+            if (victims == probation) probationBytes -= w;
+            else protectedBytes -= w;
+            evictions.increment();
+        }
+    }
+
+    private static long weight(String blockId, byte[] data) {
+        return data.length + 2L * blockId.length() + ENTRY_OVERHEAD;
+    }
+
+    private static int stripe(String blockId) {
+        return (blockId.hashCode() & 0x7fffffff) % STRIPES;
+    }
+}
@@ -0,0 +1,108 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Merkle trees over stored ciphertext, for PROOF. A leaf is SHA-256(0x00 || block),
+// an inner node SHA-256(0x01 || left || right), and the last node of a level with
+// an odd count moves up unchanged; an empty file's root is SHA-256 of nothing. The
+// client computes the same root at PUT time (its MerkleTree). Leaf hashes are kept
+// in an LRU map of up to HASH_CACHE_ENTRIES block ids, so checking a file again
+// reads no blocks. Writes invalidate their block's hash; a hash computed while the
+// block was being overwritten is dropped (per-stripe generations, as in BlockCache).
+public class BlockHashes {
+    private static final int STRIPES = 1024;
+
+    private final int capacity;
+    private final LinkedHashMap<String, byte[]> leaves = new LinkedHashMap<>(16, 0.75f, true); // guarded by this
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    public BlockHashes(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized byte[] get(String blockId) {
+        return leaves.get(blockId);
+    }
+
+    // Read before loading the block; pass it to put().
+    public long generation(String blockId) {
+        return generations.get(stripe(blockId));
+    }
+
+    public void put(String blockId, byte[] leaf, long generation) {
+        if (capacity == 0) return;
+        synchronized (this) {
+            if (generations.get(stripe(blockId)) != generation) return; // overwritten meanwhile
+            leaves.put(blockId, leaf);
+            if (leaves.size() > capacity) {
+                Iterator<String> lru = leaves.keySet().iterator();
+                lru.next();
+                lru.remove();
+            }
+        }
+    }
+
+    public void invalidate(String blockId) {
+        generations.incrementAndGet(stripe(blockId));
+        synchronized (this) {
+            leaves.remove(blockId);
+        }
+    }
+
+    static byte[] leaf(byte[] block) {
+        MessageDigest sha = sha256();
+        sha.update((byte) 0);
+        sha.update(block);
+        return sha.digest();
+    }
+
+    // All levels of the tree, leaves first; the last level holds the root.
+    static byte[][][] tree(byte[][] leaves) {
+        List<byte[][]> levels = new ArrayList<>();
+        byte[][] level = leaves.length == 0 ? new byte[][] {sha256().digest()} : leaves;
+        levels.add(level);
+        while (level.length > 1) levels.add(level = up(level));
+        return levels.toArray(new byte[0][][]);
+    }
+
+    static byte[] root(byte[][][] tree) {
+        return tree[tree.length - 1][0];
+    }
+
+    // Sibling hashes from the leaf upwards; levels where the node has no sibling
+    // add nothing, which the verifier knows from the block count.
+    static List<byte[]> path(byte[][][] tree, int index) {
+        List<byte[]> path = new ArrayList<>();
+        for (int l = 0; l < tree.length - 1; l++, index >>= 1) {
+            int sibling = index ^ 1;
+            if (sibling < tree[l].length) path.add(tree[l][sibling]);
+        }
+        return path;
+    }
+
+    private static byte[][] up(byte[][] level) {
+        byte[][] next = new byte[(level.length + 1) / 2][];
+        MessageDigest sha = sha256();
+        for (int i = 0; i + 1 < level.length; i += 2) {
+            sha.update((byte) 1);
+            sha.update(level[i]);
+            sha.update(level[i + 1]);
+            next[i / 2] = sha.digest();
+        }
+        if (level.length % 2 == 1) next[next.length - 1] = level[level.length - 1];
+        return next;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int stripe(String blockId) {
+        return (blockId.hashCode() & 0x7fffffff) % STRIPES;
+    }
+}
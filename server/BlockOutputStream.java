@@ -0,0 +1,46 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// The DataOutputStream handed to command handlers. Besides the usual writes it
+// can send a file region straight from the page cache to the socket
+// (FileChannel.transferTo) when the connection engine provides a RegionSink,
+// so block bytes never pass through a heap buffer.
+public class BlockOutputStream extends DataOutputStream {
+
+    public interface RegionSink {
+        void transfer(FileChannel src, long position, long length) throws IOException;
+    }
+
+    private final RegionSink sink;
+
+    public BlockOutputStream(OutputStream out, RegionSink sink) {
+        super(out);
+        this.sink = sink;
+    }
+
+    public void writeRegion(FileChannel src, long position, int length) throws IOException {
+        if (sink != null) {
+            flush(); // everything written so far goes out first
+            sink.transfer(src, position, length);
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(length, 64 * 1024));
+        long end = position + length;
+        while (position < end) {
+            buf.clear().limit((int) Math.min(buf.capacity(), end - position));
+            int n = src.read(buf, position);
+            if (n < 0) throw new EOFException("region past end of file");
+            write(buf.array(), 0, n);
+            position += n;
+        }
+    }
+
+    // transferTo loop shared by the engines; n == 0 is retried by the caller's wait strategy.
+    static long transferSome(FileChannel src, long position, long remaining, WritableByteChannel target) throws IOException {
+        long n = src.transferTo(position, remaining, target);
+        if (n == 0 && position >= src.size()) throw new EOFException("region past end of file");
+        return n;
+    }
+}
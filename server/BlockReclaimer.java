@@ -0,0 +1,208 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Background removal of deleted files' blocks. DELETE_FILE(S) only queue the ids
+// (appended to reclaim.log and synced, so a restart finishes the job) and answer;
+// one worker thread then deletes them in batches of BATCH through the store's
+// deleteAll, at most RECLAIM_PER_SEC blocks a second, so a large delete does not
+// take the disks away from foreground traffic. A queued block counts as gone at
+// once: HAS_BLOCKS says no (a PUT meanwhile uploads it again), reads miss, and
+// storing it again takes it off the queue. A block stays queued until its delete
+// has succeeded, so it never shows up again while that is in flight or failed. Log record: byte DELETE or KEEP, UTF id;
+// a KEEP (a logged block stored again) cancels the DELETEs before it, so a restart
+// does not delete the new copy. The log is emptied whenever the queue is.
+final class BlockReclaimer implements Closeable {
+    private static final int BATCH = 256;
+    private static final int STRIPES = 1024;
+    private static final byte DELETE = 0;
+    private static final byte KEEP = 1;
+
+    interface Write {
+        void run() throws IOException;
+    }
+
+    private final BlockStore store;
+    private final Path logFile;
+    private final long nanosPerBlock;
+    private final Consumer<String> removed; // every block queued or deleted
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final Thread worker;
+    private volatile boolean closed;
+    private final FileOutputStream logFileStream;
+    private final DataOutputStream log; // guarded by this
+    private final Set<String> logged = new HashSet<>(); // ids with a DELETE in the log; guarded by this
+    private volatile long reclaimed;
+
+    BlockReclaimer(BlockStore store, Path logFile, int perSecond, Consumer<String> removed) throws IOException {
+        this.store = store;
+        this.logFile = logFile;
+        this.nanosPerBlock = 1_000_000_000L / Math.max(1, perSecond);
+        this.removed = removed;
+        for (int i = 0; i < STRIPES; i++) locks[i] = new ReentrantLock();
+        recover();
+        logFileStream = new FileOutputStream(logFile.toFile(), true);
+        log = new DataOutputStream(new BufferedOutputStream(logFileStream));
+        worker = new Thread(this::run, "block-reclaimer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Queues the blocks for deletion; durable when this returns.
+    void enqueue(Collection<String> blockIds) throws IOException {
+        if (blockIds.isEmpty()) return;
+        synchronized (this) {
+            for (String id : blockIds) {
+                log.writeByte(DELETE);
+                log.writeUTF(id);
+            }
+            sync();
+            logged.addAll(blockIds);
+            pending.addAll(blockIds);
+            queue.addAll(blockIds);
+        }
+        blockIds.forEach(removed);
+    }
+
+    boolean isPending(String blockId) {
+        return !pending.isEmpty() && pending.contains(blockId);
+    }
+
+    // Runs a store of the block, taking it off the queue first; the worker's
+    // delete of the same block happens wholly before it or not at all.
+    void store(String blockId, Write write) throws IOException {
+        ReentrantLock lock = locks[stripe(blockId)];
+        lock.lock();
+        try {
+            if (!pending.isEmpty()) pending.remove(blockId);
+            keep(blockId);
+            write.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String stats() {
+        return pending.size() + " blocks queued, " + reclaimed + " reclaimed";
+    }
+
+    // Lets the worker finish its batch first, so no delete or log truncate is cut off.
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            log.close();
+        }
+    }
+
+    private synchronized void keep(String blockId) throws IOException {
+        if (logged.isEmpty() || !logged.remove(blockId)) return;
+        log.writeByte(KEEP);
+        log.writeUTF(blockId);
+        sync();
+    }
+
+    private void sync() throws IOException {
+        log.flush();
+        logFileStream.getFD().sync();
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<>(BATCH);
+        try {
+            while (!closed) {
+                String first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, BATCH - 1);
+                long start = System.nanoTime();
+                int done = reclaim(batch);
+                batch.clear();
+                ServerMetrics.record("reclaim.batch", System.nanoTime() - start);
+                long rest = done * nanosPerBlock - (System.nanoTime() - start);
+                if (rest > 0) TimeUnit.NANOSECONDS.sleep(rest);
+                truncateIfDrained();
+            }
+        } catch (InterruptedException e) {
+            // the server is going down
+        }
+    }
+
+    // Deletes the batch's still-pending blocks with their stripes locked (in
+    // stripe order; stores take one lock only), so no store of them can interleave.
+    // They leave pending only once deleted; a failed batch is queued again.
+    private int reclaim(List<String> batch) throws InterruptedException {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (String id : batch) stripes.add(stripe(id));
+        for (int s : stripes) locks[s].lock();
+        Set<String> claimed = new LinkedHashSet<>();
+        boolean failed = false;
+        try {
+            for (String id : batch) if (pending.contains(id)) claimed.add(id);
+            if (claimed.isEmpty()) return 0;
+            store.deleteAll(new ArrayList<>(claimed));
+            pending.removeAll(claimed);
+        } catch (IOException e) {
+            System.err.println("Block reclaim failed, retrying: " + e.getMessage());
+            queue.addAll(claimed);
+            failed = true;
+        } finally {
+            for (int s : stripes) locks[s].unlock();
+        }
+        if (failed) {
+            Thread.sleep(1000); // stores of these blocks are not held up meanwhile
+            return 0;
+        }
+        claimed.forEach(removed);
+        reclaimed += claimed.size();
+        return claimed.size();
+    }
+
+    private synchronized void truncateIfDrained() {
+        if (!queue.isEmpty()) return;
+        try {
+            log.flush();
+            logFileStream.getChannel().truncate(0);
+            logged.clear();
+        } catch (IOException e) {
+            System.err.println("Error truncating " + logFile + ": " + e.getMessage());
+        }
+    }
+
+    // Ids queued before a restart and not stored again since; a torn last record is cut off.
+    private void recover() throws IOException {
+        if (!Files.exists(logFile)) return;
+        byte[] bytes = Files.readAllBytes(logFile);
+        ByteArrayInputStream buf = new ByteArrayInputStream(bytes);
+        DataInputStream in = new DataInputStream(buf);
+        int good = 0;
+        try {
+            while (buf.available() > 0) {
+                byte op = in.readByte();
+                String id = in.readUTF();
+                good = bytes.length - buf.available();
+                if (op == KEEP) pending.remove(id);
+                else pending.add(id);
+            }
+        } catch (EOFException e) {
+            Files.write(logFile, Arrays.copyOf(bytes, good));
+        }
+        queue.addAll(pending);
+        logged.addAll(pending);
+        if (!pending.isEmpty()) System.out.println(pending.size() + " deleted blocks left to reclaim");
+    }
+
+    private static int stripe(String blockId) {
+        return (blockId.hashCode() & 0x7fffffff) % STRIPES;
+    }
+}
@@ -3,120 +3,646 @@
 // Project assignment
 
 import java.io.*;
-import java.net.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class BlockStorageServer {
-    private static final int PORT = 5000;
-    private static final String BLOCK_DIR = "blockstorage";
-    private static final String META_FILE = "metadata.ser";
+    private static final String META_FILE = "metadata.idx";
+    private static final String WAL_FILE = "metadata.wal";
+    private static final String RECLAIM_FILE = "reclaim.log";
+    private static final String CONFIG_FILE = "serverconfig.txt";
+    private static final int STREAM_FLUSH_EVERY = 64; // blocks per flush in GET_BLOCKS responses
+    private static final int MAX_QUERY_ITEMS = 1024;   // tokens + operators in one SEARCH_MULTI
+    private static final int MAX_BATCH = 1 << 20;      // ids or tokens in one binary request
+    private static final int MAX_BLOCK = 1 << 30;      // payload bytes in one STORE_BLOCK
+    private static final int MAX_SAMPLES = 1024;       // sampled blocks in one PROOF
+
+    private static BlockStore store;
+    private static BlockCache cache; // null when CACHE_MB = 0
+    private static BlockHashes hashes;
+    private static BlockReclaimer reclaimer;
 
     // Map token-> set of fileIds
-    private static Map<String, Set<String>> metadata = new HashMap<>();
+    private static TokenIndex metadata;
 
     public static void main(String[] args) throws IOException {
-        File dir = new File(BLOCK_DIR);
-        if (!dir.exists()) dir.mkdir();
-        loadMetadata();
-
-        ServerSocket serverSocket = new ServerSocket(PORT);
-        System.out.println("BlockStorageServer running on port " + PORT);
-
-        while (true) {
-            Socket clientSocket = serverSocket.accept();
-            new Thread(() -> handleClient(clientSocket)).start();
-        }
-    }
-
-    private static void handleClient(Socket socket) {
-        try (
-            DataInputStream in = new DataInputStream(socket.getInputStream());
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-        ) {
-            String command;
-            while ((command = in.readUTF()) != null) {
-                switch (command) {
-                    case "STORE_BLOCK":
-                        storeBlock(in, out);
-                        break;
-                    case "GET_BLOCK":
-                        getBlock(in, out);
-                        break;
-                    case "LIST_BLOCKS":
-                        listBlocks(out);
-                        break;
-                    case "SEARCH":
-                        searchBlocks(in, out);
-                        break;
-                    case "EXIT":
-                        return;
-                    default:
-                        out.writeUTF("ERROR: Unknown command");
-                        out.flush();
-                        break;
+        ServerConfig cfg = ServerConfig.load(Paths.get(CONFIG_FILE));
+        store = BlockStore.open(cfg);
+        if (cfg.cacheBytes > 0) cache = new BlockCache(cfg.cacheBytes);
+        hashes = new BlockHashes(cfg.hashCacheEntries);
+        reclaimer = new BlockReclaimer(store, Paths.get(RECLAIM_FILE), cfg.reclaimPerSec, id -> {
+            if (cache != null) cache.invalidate(id);
+            hashes.invalidate(id);
+        });
+        metadata = new TokenIndex(Paths.get(META_FILE), Paths.get(WAL_FILE), cfg.checkpointRecords, cfg.checkpointIntervalSec);
+        ServerMetrics.startDump(Paths.get(cfg.statsFile), cfg.statsIntervalSec, BlockStorageServer::stats);
+
+        ConnectionEngine engine = ConnectionEngine.create(cfg);
+        System.out.println("BlockStorageServer running on port " + cfg.port + " (" + engine.name() + " engine)");
+        engine.serve(cfg.port, BlockStorageServer::handleCommand);
+    }
+
+    // Reads and runs one command for the connection engine; false closes the connection.
+    static boolean handleCommand(ConnectionEngine.Session session, DataInputStream in, BlockOutputStream out) throws IOException {
+        if (session.version >= 2) return handleFrame(in, out);
+        return handleCommand(session, in.readUTF(), in, out);
+    }
+
+    private static boolean handleCommand(ConnectionEngine.Session session, String command, DataInputStream in,
+                                         BlockOutputStream out) throws IOException {
+        if (command.equals("REQ")) {
+            // tagged request from a multiplexing client: echo the id, then answer as usual;
+            // a connection's requests are answered in order, so ids come back in order
+            out.writeInt(in.readInt());
+            return handleCommand(session, in.readUTF(), in, out);
+        }
+        if (command.startsWith("HELLO ")) {
+            hello(session, command, out);
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean known = true; // unknown words get no histogram, whatever a client sends
+        try {
+            switch (command) {
+                case "STORE_BLOCK":
+                    storeBlock(in, out, false);
+                    break;
+                case "STORE_BLOCK_ASYNC":
+                    storeBlock(in, out, true);
+                    break;
+                case "GET_BLOCK":
+                    getBlock(in, out);
+                    break;
+                case "GET_BLOCKS":
+                    getBlocks(in, out);
+                    break;
+                case "HAS_BLOCKS":
+                    hasBlocks(in, out);
+                    break;
+                case "ADD_TOKENS":
+                    addTokens(in, out);
+                    break;
+                case "GET_BLOCK_RANGE":
+                    getBlockRange(in, out);
+                    break;
+                case "LIST_BLOCKS":
+                    listBlocks(out);
+                    break;
+                case "SEARCH":
+                    searchBlocks(in, out);
+                    break;
+                case "SEARCH_MULTI":
+                    searchMulti(in, out);
+                    break;
+                case "CACHE_STATS":
+                    out.writeUTF(cache == null ? "cache disabled" : cache.stats());
+                    out.flush();
+                    break;
+                case "PROOF":
+                    proofText(in, out);
+                    break;
+                case "BLOCK_HASHES":
+                    blockHashes(readUTFs(in), out, false);
+                    break;
+                case "DELETE_FILE": {
+                    String fileId = in.readUTF();
+                    out.writeUTF(deleteFiles(Map.of(fileId, readUTFs(in))));
+                    out.flush();
+                    break;
+                }
+                case "DELETE_FILES":
+                    deleteFilesText(in, out);
+                    break;
+                case "STATS":
+                    out.writeUTF(stats());
+                    out.flush();
+                    break;
+                case "EXIT":
+                    return false;
+                default:
+                    known = false;
+                    out.writeUTF("ERROR: Unknown command");
+                    out.flush();
+                    break;
+            }
+            return true;
+        } finally {
+            if (known) ServerMetrics.record(command, System.nanoTime() - start);
+        }
+    }
+
+    // HELLO <highest version the client speaks>: answers VERSION + the version both
+    // speak, after which the connection carries BinaryProtocol frames (version 2).
+    // Clients that never say HELLO keep the text commands.
+    private static void hello(ConnectionEngine.Session session, String command, DataOutputStream out) throws IOException {
+        int wanted;
+        try {
+            wanted = Integer.parseInt(command.substring("HELLO ".length()).trim());
+        } catch (NumberFormatException e) {
+            out.writeUTF("ERROR: bad HELLO");
+            out.flush();
+            return;
+        }
+        session.version = Math.max(1, Math.min(wanted, BinaryProtocol.VERSION));
+        out.writeUTF("VERSION");
+        out.writeByte(session.version);
+        out.flush();
+    }
+
+    // One BinaryProtocol request: the commands above with an opcode for the word,
+    // binary block ids and varint counts. The reply starts with the request id.
+    private static boolean handleFrame(DataInputStream in, BlockOutputStream out) throws IOException {
+        int requestId = BinaryProtocol.readVarint(in);
+        int op = in.readUnsignedByte();
+        if (op == BinaryProtocol.EXIT) return false;
+        if (op >= BinaryProtocol.NAMES.length) throw new IOException("unknown opcode " + op);
+        long start = System.nanoTime();
+        try {
+            BinaryProtocol.writeVarint(out, requestId);
+            switch (op) {
+                case BinaryProtocol.STORE_BLOCK:
+                    storeFrame(in, out);
+                    break;
+                case BinaryProtocol.GET_BLOCKS:
+                    streamBlocks(readBlockIds(in), out, true);
+                    break;
+                case BinaryProtocol.HAS_BLOCKS: {
+                    List<String> ids = readBlockIds(in);
+                    byte[] bits = new byte[(ids.size() + 7) / 8];
+                    for (int i = 0; i < ids.size(); i++) if (has(ids.get(i))) bits[i >> 3] |= 1 << (i & 7);
+                    out.write(bits);
+                    out.flush();
+                    break;
+                }
+                case BinaryProtocol.GET_BLOCK_RANGE: {
+                    String fileId = BinaryProtocol.fileIdText(BinaryProtocol.readFileId(in));
+                    int first = BinaryProtocol.readVarint(in);
+                    int count = BinaryProtocol.readCount(in, MAX_BATCH);
+                    List<String> ids = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) ids.add(fileId + "_block_" + (first + i));
+                    streamBlocks(ids, out, true);
+                    break;
+                }
+                case BinaryProtocol.ADD_TOKENS: {
+                    String fileId = BinaryProtocol.readBlockId(in, null);
+                    writeStatus(out, linkTokens(fileId, readStrings(in, MAX_BATCH)));
+                    out.flush();
+                    break;
+                }
+                case BinaryProtocol.SEARCH:
+                    writeResults(out, metadata.get(BinaryProtocol.readString(in)));
+                    out.flush();
+                    break;
+                case BinaryProtocol.SEARCH_MULTI: {
+                    List<String> rpn = readStrings(in, MAX_QUERY_ITEMS);
+                    try {
+                        writeResults(out, metadata.query(rpn));
+                    } catch (IllegalArgumentException e) {
+                        writeStatus(out, "ERROR: " + e.getMessage());
+                    }
+                    out.flush();
+                    break;
+                }
+                case BinaryProtocol.STATS:
+                    BinaryProtocol.writeString(out, stats());
+                    out.flush();
+                    break;
+                case BinaryProtocol.LIST_BLOCKS: {
+                    Collection<String> ids = blockIds();
+                    BinaryProtocol.writeVarint(out, ids.size());
+                    for (String id : ids) BinaryProtocol.writeBlockId(out, id);
+                    out.flush();
+                    break;
+                }
+                case BinaryProtocol.CACHE_STATS:
+                    BinaryProtocol.writeString(out, cache == null ? "cache disabled" : cache.stats());
+                    out.flush();
+                    break;
+                case BinaryProtocol.PROOF: {
+                    List<String> ids = readBlockIds(in);
+                    int[] samples = new int[BinaryProtocol.readCount(in, MAX_SAMPLES)];
+                    for (int i = 0; i < samples.length; i++) samples[i] = BinaryProtocol.readVarint(in);
+                    proof(ids, samples, out, true);
+                    break;
+                }
+                case BinaryProtocol.BLOCK_HASHES:
+                    blockHashes(readBlockIds(in), out, true);
+                    break;
+                case BinaryProtocol.DELETE_FILE:
+                case BinaryProtocol.DELETE_FILES: {
+                    int files = op == BinaryProtocol.DELETE_FILE ? 1 : BinaryProtocol.readCount(in, MAX_BATCH);
+                    Map<String, List<String>> blocks = new LinkedHashMap<>();
+                    for (int i = 0; i < files; i++) blocks.put(BinaryProtocol.readBlockId(in, null), readBlockIds(in));
+                    writeStatus(out, deleteFiles(blocks));
+                    out.flush();
+                    break;
                 }
             }
+            return true;
+        } finally {
+            ServerMetrics.record(BinaryProtocol.NAMES[op], System.nanoTime() - start);
+        }
+    }
+
+    // STORE_BLOCK_ASYNC in binary: the fileId for the tokens comes with the id
+    // instead of being split out of it; acks are flushed like the text version's.
+    private static void storeFrame(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[][] fileId = new byte[1][];
+        String blockId = BinaryProtocol.readBlockId(in, fileId);
+        byte[] data = new byte[BinaryProtocol.readCount(in, MAX_BLOCK)];
+        in.readFully(data);
+        List<String> tokens = readStrings(in, MAX_BATCH);
+        String status = "OK";
+        try {
+            putBlock(blockId, data, tokens.isEmpty() ? null
+                    : fileId[0] != null ? BinaryProtocol.fileIdText(fileId[0]) : blockId.split("_block_")[0], tokens);
         } catch (IOException e) {
-            System.err.println("Client disconnected.");
+            status = "ERROR: " + e.getMessage();
         }
+        writeStatus(out, status);
+        if (in.available() == 0) out.flush();
+    }
+
+    private static List<String> readBlockIds(DataInputStream in) throws IOException {
+        int count = BinaryProtocol.readCount(in, MAX_BATCH);
+        List<String> ids = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) ids.add(BinaryProtocol.readBlockId(in, null));
+        return ids;
     }
 
-    private static void storeBlock(DataInputStream in, DataOutputStream out) throws IOException {
+    private static List<String> readStrings(DataInputStream in, int limit) throws IOException {
+        int count = BinaryProtocol.readCount(in, limit);
+        List<String> items = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) items.add(BinaryProtocol.readString(in));
+        return items;
+    }
+
+    // 0 for "OK", else 1 and the message
+    private static void writeStatus(DataOutputStream out, String status) throws IOException {
+        if (status.equals("OK")) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            BinaryProtocol.writeString(out, status);
+        }
+    }
+
+    private static void writeResults(DataOutputStream out, List<String> fileIds) throws IOException {
+        out.writeByte(0);
+        BinaryProtocol.writeVarint(out, fileIds.size());
+        for (String id : fileIds) BinaryProtocol.writeBlockId(out, id);
+    }
+
+    private static String stats() {
+        return ServerMetrics.report() + (cache == null ? "" : "cache: " + cache.stats() + "\n")
+                + "reclaim: " + reclaimer.stats() + "\n";
+    }
+
+    // STORE_BLOCK answers "OK" and flushes; STORE_BLOCK_ASYNC (pipelined uploads)
+    // answers status + blockId so the client can match acks to blocks, reports
+    // write failures instead of dropping the connection, and only flushes once
+    // no further pipelined request is already waiting in the input buffer.
+    private static void storeBlock(DataInputStream in, DataOutputStream out, boolean pipelined) throws IOException {
         String blockId = in.readUTF();
         int length = in.readInt();
+        if (length < 0 || length > MAX_BLOCK) throw new IOException("bad STORE_BLOCK length: " + length);
         byte[] data = new byte[length];
         in.readFully(data); // data holds iv||ciphertext+tag
 
-        // Save block file verbatim
-        File blockFile = new File(BLOCK_DIR, blockId);
-        try (FileOutputStream fos = new FileOutputStream(blockFile)) {
-            fos.write(data);
+        // Read tokens (first block only will send >0)
+        List<String> tokens = readUTFs(in);
+
+        String status = "OK";
+        try {
+            putBlock(blockId, data, tokens.isEmpty() ? null : blockId.split("_block_")[0], tokens);
+        } catch (IOException e) {
+            if (!pipelined) throw e;
+            status = "ERROR: " + e.getMessage();
         }
 
-        // Read tokens (first block only will send >0)
-        int tokenCount = in.readInt();
-        if (tokenCount > 0) {
-            String fileId = blockId.split("_block_")[0];
-            for (int i = 0; i < tokenCount; i++) {
-                String tok = in.readUTF();
-                metadata.computeIfAbsent(tok, k -> new HashSet<>()).add(fileId);
-            }
-            saveMetadata();
+        out.writeUTF(status);
+        if (pipelined) {
+            out.writeUTF(blockId);
+            if (in.available() > 0) return; // more requests queued, ack goes out with the next flush
         }
+        out.flush();
+    }
+
+    private static void putBlock(String blockId, byte[] data, String fileId, List<String> tokens) throws IOException {
+        reclaimer.store(blockId, () -> store.put(blockId, data)); // a queued delete of it is called off
+        if (cache != null) cache.invalidate(blockId);
+        hashes.invalidate(blockId);
+        if (!tokens.isEmpty()) metadata.addAll(fileId, tokens);
+    }
 
-        out.writeUTF("OK");
+    private static void getBlock(DataInputStream in, BlockOutputStream out) throws IOException {
+        String blockId = in.readUTF();
+        writeBlock(blockId, out, false);
         out.flush();
     }
 
+    // Dedup query: count + block ids, answered with one boolean per id.
+    private static void hasBlocks(DataInputStream in, DataOutputStream out) throws IOException {
+        for (String id : readUTFs(in)) out.writeBoolean(has(id));
+        out.flush();
+    }
 
+    // Links keyword tokens to a fileId without storing a block (uploads whose
+    // chunks are all on the server already). Answers "OK" or "ERROR: msg".
+    private static void addTokens(DataInputStream in, DataOutputStream out) throws IOException {
+        String fileId = in.readUTF();
+        out.writeUTF(linkTokens(fileId, readUTFs(in)));
+        out.flush();
+    }
 
-    private static void getBlock(DataInputStream in, DataOutputStream out) throws IOException {
-        String blockId = in.readUTF();
-        File blockFile = new File(BLOCK_DIR, blockId);
-        if (!blockFile.exists()) {
-            out.writeInt(-1);
+    private static String linkTokens(String fileId, List<String> tokens) {
+        try {
+            metadata.addAll(fileId, tokens);
+            return "OK";
+        } catch (IOException e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    // GET_BLOCKS <count> <blockId>... and GET_BLOCK_RANGE <fileId> <start> <count>
+    // stream back one length-prefixed blob per id, in request order, and flush
+    // once per batch. Missing ids answer -1 and the rest of the batch still goes out.
+    private static void getBlocks(DataInputStream in, BlockOutputStream out) throws IOException {
+        streamBlocks(readUTFs(in), out, false);
+    }
+
+    private static void getBlockRange(DataInputStream in, BlockOutputStream out) throws IOException {
+        String fileId = in.readUTF();
+        int start = in.readInt();
+        int count = in.readInt();
+        if (start < 0 || count < 0 || count > MAX_BATCH) throw new IOException("bad GET_BLOCK_RANGE: " + start + " " + count);
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) ids.add(fileId + "_block_" + (start + i));
+        streamBlocks(ids, out, false);
+    }
+
+    private static void streamBlocks(List<String> ids, BlockOutputStream out, boolean binary) throws IOException {
+        if (store instanceof ShardedBlockStore sharded && ids.size() > 1) {
+            streamParallel(ids, sharded, out, binary);
+            return;
+        }
+        int sent = 0;
+        for (String blockId : ids) {
+            writeBlock(blockId, out, binary);
+            if (++sent % STREAM_FLUSH_EVERY == 0) out.flush();
+        }
+        out.flush();
+    }
+
+    // Multi-volume stores: the next blocks of the batch are read ahead on their
+    // volumes' I/O threads, so every disk works at once, and sent in request order.
+    private static void streamParallel(List<String> ids, ShardedBlockStore sharded, BlockOutputStream out,
+                                       boolean binary) throws IOException {
+        Deque<CompletableFuture<byte[]>> ahead = new ArrayDeque<>();
+        int next = 0, sent = 0;
+        try {
+            for (String blockId : ids) {
+                while (next < ids.size() && ahead.size() < sharded.readAhead()) ahead.add(load(ids.get(next++), sharded));
+                byte[] data;
+                try {
+                    data = ahead.poll().join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof UncheckedIOException u) throw u.getCause();
+                    throw new IOException("reading " + blockId, e.getCause());
+                }
+                writeLength(out, data == null ? -1 : data.length, binary);
+                if (data != null) out.write(data);
+                if (++sent % STREAM_FLUSH_EVERY == 0) out.flush();
+            }
+            out.flush();
+        } finally {
+            for (CompletableFuture<byte[]> f : ahead) f.cancel(false);
+        }
+    }
+
+    // A block through the cache (when on), read on its volume's threads on a miss.
+    private static CompletableFuture<byte[]> load(String blockId, ShardedBlockStore sharded) {
+        if (reclaimer.isPending(blockId)) return CompletableFuture.completedFuture(null);
+        if (cache == null) return sharded.getAsync(blockId);
+        byte[] cached = cache.get(blockId);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        long generation = cache.generation(blockId);
+        return sharded.getAsync(blockId).thenApply(data -> {
+            if (data != null) cache.put(blockId, data, generation);
+            return data;
+        });
+    }
+
+    // Block bytes go from the store's file straight to the socket (transferTo),
+    // without a per-request heap buffer. With the cache on, blocks are served from
+    // (and loaded into) memory instead.
+    private static void writeBlock(String blockId, BlockOutputStream out, boolean binary) throws IOException {
+        if (reclaimer.isPending(blockId)) {
+            writeLength(out, -1, binary);
+            return;
+        }
+        if (cache != null) {
+            byte[] data = cache.get(blockId);
+            if (data == null) {
+                long generation = cache.generation(blockId);
+                data = store.get(blockId);
+                if (data != null) cache.put(blockId, data, generation);
+            }
+            writeLength(out, data == null ? -1 : data.length, binary);
+            if (data != null) out.write(data);
+            return;
+        }
+        try (BlockStore.Region region = store.region(blockId)) {
+            if (region == null) {
+                writeLength(out, -1, binary);
+            } else {
+                writeLength(out, region.length(), binary);
+                out.writeRegion(region.channel(), region.position(), region.length());
+            }
+        }
+    }
+
+    // a blob's length, -1 for a missing block; BinaryProtocol sends length + 1 as a varint
+    private static void writeLength(DataOutputStream out, int length, boolean binary) throws IOException {
+        if (binary) BinaryProtocol.writeVarint(out, length + 1);
+        else out.writeInt(length);
+    }
+
+    // PROOF <count> <blockId>... <samples> <index>...: the Merkle root of the blocks
+    // (BlockHashes) and, for each sampled index, the block and its audit path, so
+    // the client can check the root it recorded at PUT and spot-check blocks without
+    // downloading the file. Answers "OK" and the proof: the 32-byte root, then per
+    // sample the length-prefixed block and the path (count + 32-byte hashes), or
+    // "MISSING" and the index of the first block the server does not have.
+    private static void proofText(DataInputStream in, DataOutputStream out) throws IOException {
+        List<String> ids = readUTFs(in);
+        int n = in.readInt();
+        if (n < 0 || n > MAX_SAMPLES) throw new IOException("bad PROOF sample count: " + n);
+        int[] samples = new int[n];
+        for (int i = 0; i < n; i++) samples[i] = in.readInt();
+        proof(ids, samples, out, false);
+    }
+
+    private static void proof(List<String> ids, int[] samples, DataOutputStream out, boolean binary) throws IOException {
+        for (int index : samples) {
+            if (index < 0 || index >= ids.size()) throw new IOException("bad PROOF sample index: " + index);
+        }
+        // sampled blocks first: their leaves are then hashed from the bytes sent
+        byte[][] blobs = new byte[samples.length][];
+        for (int i = 0; i < samples.length; i++) blobs[i] = readBlock(ids.get(samples[i]));
+        byte[][] leaves = new byte[ids.size()][];
+        for (int i = 0; i < samples.length; i++) {
+            if (blobs[i] != null) leaves[samples[i]] = BlockHashes.leaf(blobs[i]);
+        }
+        leaves(ids, leaves);
+        int missing = -1;
+        for (int i = 0; i < leaves.length && missing < 0; i++) if (leaves[i] == null) missing = i;
+        for (int i = 0; i < samples.length && missing < 0; i++) if (blobs[i] == null) missing = samples[i];
+        if (binary) {
+            BinaryProtocol.writeVarint(out, missing + 1);
         } else {
-            byte[] data = new byte[(int) blockFile.length()];
-            try (FileInputStream fis = new FileInputStream(blockFile)) {
-                fis.read(data);
+            out.writeUTF(missing < 0 ? "OK" : "MISSING");
+            if (missing >= 0) out.writeInt(missing);
+        }
+        if (missing < 0) {
+            byte[][][] tree = BlockHashes.tree(leaves);
+            out.write(BlockHashes.root(tree));
+            for (int i = 0; i < samples.length; i++) {
+                writeLength(out, blobs[i].length, binary);
+                out.write(blobs[i]);
+                List<byte[]> path = BlockHashes.path(tree, samples[i]);
+                if (binary) BinaryProtocol.writeVarint(out, path.size());
+                else out.writeInt(path.size());
+                for (byte[] hash : path) out.write(hash);
+            }
+        }
+        out.flush();
+    }
+
+    // BLOCK_HASHES <count> <blockId>...: "OK", then each block's leaf hash (present
+    // flag, then 32 bytes), for clients recording the root of a file whose chunks
+    // they did not upload.
+    private static void blockHashes(List<String> ids, DataOutputStream out, boolean binary) throws IOException {
+        byte[][] leaves = leaves(ids, new byte[ids.size()][]);
+        if (!binary) out.writeUTF("OK");
+        for (byte[] leaf : leaves) {
+            if (binary) out.writeByte(leaf == null ? 0 : 1);
+            else out.writeBoolean(leaf != null);
+            if (leaf != null) out.write(leaf);
+        }
+        out.flush();
+    }
+
+    // Fills in the leaf hashes of the blocks not already in leaves, null for missing
+    // ones. Uncached leaves are hashed from the stored bytes, read ahead on every
+    // volume for multi-volume stores, without filling the block cache with the scan.
+    private static byte[][] leaves(List<String> ids, byte[][] leaves) throws IOException {
+        List<Integer> todo = new ArrayList<>();
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i] == null && (leaves[i] = hashes.get(ids.get(i))) == null) todo.add(i);
+        }
+        if (store instanceof ShardedBlockStore sharded && todo.size() > 1) {
+            Deque<CompletableFuture<byte[]>> ahead = new ArrayDeque<>();
+            long[] generations = new long[todo.size()];
+            int next = 0;
+            try {
+                for (int t = 0; t < todo.size(); t++) {
+                    while (next < todo.size() && ahead.size() < sharded.readAhead()) {
+                        String id = ids.get(todo.get(next));
+                        generations[next++] = hashes.generation(id);
+                        ahead.add(sharded.getAsync(id));
+                    }
+                    byte[] data;
+                    try {
+                        data = ahead.poll().join();
+                    } catch (CompletionException e) {
+                        if (e.getCause() instanceof UncheckedIOException u) throw u.getCause();
+                        throw new IOException("reading " + ids.get(todo.get(t)), e.getCause());
+                    }
+                    if (data != null) leaves[todo.get(t)] = hashLeaf(ids.get(todo.get(t)), data, generations[t]);
+                }
+            } finally {
+                for (CompletableFuture<byte[]> f : ahead) f.cancel(false);
             }
-            out.writeInt(data.length);
-            out.write(data);
+            return leaves;
+        }
+        for (int i : todo) {
+            String id = ids.get(i);
+            long generation = hashes.generation(id);
+            byte[] data = readBlock(id);
+            if (data != null) leaves[i] = hashLeaf(id, data, generation);
         }
+        return leaves;
+    }
+
+    private static byte[] hashLeaf(String blockId, byte[] data, long generation) {
+        byte[] leaf = BlockHashes.leaf(data);
+        hashes.put(blockId, leaf, generation);
+        return leaf;
+    }
+
+    // a block's bytes, from the cache when it has them but without loading them into it
+    private static byte[] readBlock(String blockId) throws IOException {
+        if (reclaimer.isPending(blockId)) return null;
+        byte[] data = cache == null ? null : cache.get(blockId);
+        return data != null ? data : store.get(blockId);
+    }
+
+    // DELETE_FILES <count>, then per file <fileId> <count> <blockId>...; answers like DELETE_FILE.
+    private static void deleteFilesText(DataInputStream in, DataOutputStream out) throws IOException {
+        int files = in.readInt();
+        if (files < 0 || files > MAX_BATCH) throw new IOException("bad DELETE_FILES count: " + files);
+        Map<String, List<String>> blocks = new LinkedHashMap<>();
+        for (int i = 0; i < files; i++) blocks.put(in.readUTF(), readUTFs(in));
+        out.writeUTF(deleteFiles(blocks));
         out.flush();
     }
 
+    // DELETE_FILE <fileId> <count> <blockId>...: unlinks the file from every keyword
+    // and queues the blocks for BlockReclaimer, which deletes them in the background.
+    // The client lists the blocks (only it knows which chunks other files still
+    // use); from the answer on they count as gone. Answers "OK" or "ERROR: msg".
+    private static String deleteFiles(Map<String, List<String>> blocksByFile) {
+        try {
+            List<String> ids = new ArrayList<>();
+            blocksByFile.values().forEach(ids::addAll);
+            reclaimer.enqueue(ids);
+            metadata.removeAll(blocksByFile.keySet());
+            return "OK";
+        } catch (IOException e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    private static boolean has(String blockId) throws IOException {
+        return !reclaimer.isPending(blockId) && store.contains(blockId);
+    }
+
+    private static Collection<String> blockIds() throws IOException {
+        Collection<String> ids = store.blockIds();
+        ids.removeIf(reclaimer::isPending);
+        return ids;
+    }
+
+    private static List<String> readUTFs(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_BATCH) throw new IOException("bad count: " + count);
+        List<String> ids = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) ids.add(in.readUTF());
+        return ids;
+    }
+
     private static void listBlocks(DataOutputStream out) throws IOException {
-        String[] files = new File(BLOCK_DIR).list();
-        if (files == null) files = new String[0];
-        out.writeInt(files.length);
-        for (String f : files) out.writeUTF(f);
+        Collection<String> ids = blockIds();
+        out.writeInt(ids.size());
+        for (String id : ids) out.writeUTF(id);
         out.flush();
     }
 
     private static void searchBlocks(DataInputStream in, DataOutputStream out) throws IOException {
         String token = in.readUTF(); //Hmac token sent b7 the client
-        List<String> results = new ArrayList<>(metadata.getOrDefault(token, Set.of()));
+        List<String> results = metadata.get(token);
         out.writeInt(results.size());
         //envia os ids dos files que tem esse token
         for (String name : results){
@@ -125,26 +651,22 @@ public class BlockStorageServer {
         out.flush();
     }
 
-
-    private static void saveMetadata() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(META_FILE))) {
-            oos.writeObject(metadata);
-        } catch (IOException e) {
-            System.err.println("Error saving metadata: " + e.getMessage());
-        }
-    }
-
-    @SuppressWarnings("unchecked")
-    private static void loadMetadata() {
-        File f = new File(META_FILE);
-        if (!f.exists()) return;
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f))) {
-            metadata = (Map<String, Set<String>>) ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error loading metadata: " + e.getMessage());
+    // Boolean search: count, then the query in postfix order, each item a token or
+    // one of AND / OR / NOT. Answers like SEARCH, or -1 and an error message.
+    private static void searchMulti(DataInputStream in, DataOutputStream out) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > MAX_QUERY_ITEMS) throw new IOException("bad SEARCH_MULTI size: " + n);
+        List<String> rpn = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) rpn.add(in.readUTF());
+        try {
+            List<String> results = metadata.query(rpn);
+            out.writeInt(results.size());
+            for (String name : results) out.writeUTF(name);
+        } catch (IllegalArgumentException e) {
+            out.writeInt(-1);
+            out.writeUTF("ERROR: " + e.getMessage());
         }
+        out.flush();
     }
 
-
-
 }
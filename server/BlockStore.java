@@ -0,0 +1,72 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// Where the server keeps encrypted blocks. Selected with STORAGE in serverconfig.txt:
+// FILE keeps the original one-file-per-block layout, SEGMENT appends blocks to
+// large log segments with an in-memory offset index. With VOLUMES set, one such
+// store per directory, blocks spread over them by id (ShardedBlockStore).
+public interface BlockStore extends Closeable {
+
+    void put(String blockId, byte[] data) throws IOException;
+
+    // Returns the stored blob, or null when the block does not exist.
+    byte[] get(String blockId) throws IOException;
+
+    // Where a block's bytes sit on disk, for zero-copy sends. Closing releases
+    // the channel only when the region opened it (owned).
+    record Region(FileChannel channel, long position, int length, boolean owned) implements Closeable {
+        @Override
+        public void close() throws IOException {
+            if (owned) channel.close();
+        }
+    }
+
+    // Returns the block as a file region, or null when the block does not exist.
+    Region region(String blockId) throws IOException;
+
+    boolean contains(String blockId) throws IOException;
+
+    // Removes a block; nothing happens when it does not exist.
+    void delete(String blockId) throws IOException;
+
+    // delete() for a batch; stores that can do the batch in fewer I/Os override it.
+    default void deleteAll(Collection<String> blockIds) throws IOException {
+        for (String id : blockIds) delete(id);
+    }
+
+    // Snapshot of every stored block id.
+    Collection<String> blockIds() throws IOException;
+
+    static BlockStore open(ServerConfig cfg) throws IOException {
+        if (!cfg.volumes.isEmpty())
+            return new ShardedBlockStore(cfg.volumes, cfg.volumeThreads, dir -> open(cfg, dir));
+        if (cfg.storage.equals("SEGMENT")) checkNoLegacyBlocks(cfg);
+        return open(cfg, Paths.get(cfg.storage.equals("FILE") ? cfg.blockDir : cfg.segmentDir));
+    }
+
+    // Switching an existing FILE server to SEGMENT would start on an empty log and
+    // hide every stored block, so that is refused until the blocks are moved.
+    private static void checkNoLegacyBlocks(ServerConfig cfg) throws IOException {
+        Path legacy = Paths.get(cfg.blockDir), segments = Paths.get(cfg.segmentDir);
+        if (!Files.isDirectory(legacy) || Files.isDirectory(segments)) return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(legacy)) {
+            if (files.iterator().hasNext())
+                throw new IOException("STORAGE = SEGMENT but " + legacy + " holds blocks of the FILE store and "
+                        + segments + " does not exist; keep STORAGE = FILE, or rename " + legacy + " to start an empty SEGMENT store");
+        }
+    }
+
+    // One store of the configured STORAGE type in dir.
+    static BlockStore open(ServerConfig cfg, Path dir) throws IOException {
+        switch (cfg.storage) {
+            case "FILE":
+                return new FileBlockStore(dir.toFile());
+            case "SEGMENT":
+                return new SegmentLogBlockStore(dir, cfg.segmentBytes, cfg.compactRatio, cfg.compactIntervalSec);
+            default:
+                throw new IllegalArgumentException("Unsupported STORAGE: " + cfg.storage);
+        }
+    }
+}
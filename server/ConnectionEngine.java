@@ -0,0 +1,34 @@
+import java.io.*;
+
+// Accepts client connections and feeds their commands to a RequestHandler.
+// The handlers in BlockStorageServer only see DataInputStream/BlockOutputStream,
+// so they run unchanged whichever engine is selected in serverconfig.txt.
+public interface ConnectionEngine {
+
+    interface RequestHandler {
+        // Reads and handles one command; returns false when the connection should be closed (EXIT).
+        boolean handle(Session session, DataInputStream in, BlockOutputStream out) throws IOException;
+    }
+
+    // What a connection has agreed on so far, kept by the engine between commands.
+    final class Session {
+        int version = 1; // wire protocol: 1 = text commands, 2 = BinaryProtocol frames
+    }
+
+    String name();
+
+    void serve(int port, RequestHandler handler) throws IOException;
+
+    static ConnectionEngine create(ServerConfig cfg) {
+        switch (cfg.engine) {
+            case "THREAD":
+                return new ThreadConnectionEngine(false);
+            case "VIRTUAL":
+                return new ThreadConnectionEngine(true);
+            case "NIO":
+                return new NioConnectionEngine(cfg.workers);
+            default:
+                throw new IllegalArgumentException("Unsupported ENGINE: " + cfg.engine);
+        }
+    }
+}
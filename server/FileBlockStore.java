@@ -0,0 +1,63 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// Original layout: every block is its own file named after the block id.
+public class FileBlockStore implements BlockStore {
+    private final File dir;
+
+    public FileBlockStore(File dir) {
+        this.dir = dir;
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+    @Override
+    public void put(String blockId, byte[] data) throws IOException {
+        // Save block file verbatim
+        File blockFile = new File(dir, blockId);
+        try (FileOutputStream fos = new FileOutputStream(blockFile)) {
+            fos.write(data);
+        }
+    }
+
+    @Override
+    public byte[] get(String blockId) throws IOException {
+        File blockFile = new File(dir, blockId);
+        if (!blockFile.exists()) return null;
+        try (FileInputStream fis = new FileInputStream(blockFile)) {
+            return fis.readAllBytes();
+        }
+    }
+
+    @Override
+    public Region region(String blockId) throws IOException {
+        try {
+            FileChannel ch = FileChannel.open(new File(dir, blockId).toPath(), StandardOpenOption.READ);
+            return new Region(ch, 0, (int) ch.size(), true);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean contains(String blockId) {
+        return new File(dir, blockId).exists();
+    }
+
+    @Override
+    public void delete(String blockId) throws IOException {
+        Files.deleteIfExists(new File(dir, blockId).toPath());
+    }
+
+    @Override
+    public Collection<String> blockIds() {
+        String[] files = dir.list();
+        if (files == null) files = new String[0];
+        return Arrays.asList(files);
+    }
+
+    @Override
+    public void close() {
+    }
+}
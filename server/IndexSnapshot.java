@@ -0,0 +1,286 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Read-only token index snapshot, memory-mapped. Opening it reads the 64-byte
+// header and nothing else; a lookup binary-searches the sorted token keys and
+// copies out one posting list, so the OS pages in only what SEARCH touches.
+//
+//   header       magic, format, files, tokens, offsets of the sections below
+//   fileOffsets  (files + 1) ints into fileBytes; fileId of ordinal i is [i, i + 1)
+//   fileSorted   files ints: the ordinals in fileId order (fileId -> ordinal lookups)
+//   tokenKeys    tokens x 32 bytes, sorted as unsigned bytes
+//   postings     ints, each token's list sorted ascending
+//   postOffsets  (tokens + 1) ints into postings; list of token i is [i, i + 1)
+//   fileBytes    the fileIds, UTF-8
+//
+// A token key is the 32-byte HMAC a Base64 token stands for, or the SHA-256 of
+// any other token string, so keys are fixed-size whatever the client sends.
+// A deleted file keeps its ordinal, with an empty fileId and in no posting list.
+final class IndexSnapshot {
+    private static final long MAGIC = 0x5353434944583031L; // "SSCIDX01"
+    private static final int FORMAT = 1;
+    private static final int HEADER = 64;
+    static final int KEY = 32;
+
+    static final IndexSnapshot EMPTY = new IndexSnapshot(null, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    private final ByteBuffer map;
+    private final int files;
+    private final int tokens;
+    private final int fileOffsets, fileSorted, tokenKeys, postOffsets, postings, fileBytes;
+
+    private IndexSnapshot(ByteBuffer map, int files, int tokens, int fileOffsets, int fileSorted, int tokenKeys,
+                          int postOffsets, int postings, int fileBytes) {
+        this.map = map;
+        this.files = files;
+        this.tokens = tokens;
+        this.fileOffsets = fileOffsets;
+        this.fileSorted = fileSorted;
+        this.tokenKeys = tokenKeys;
+        this.postOffsets = postOffsets;
+        this.postings = postings;
+        this.fileBytes = fileBytes;
+    }
+
+    static IndexSnapshot open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IOException(file + ": snapshot over 2 GiB");
+            if (size < HEADER) throw new IOException(file + ": truncated snapshot");
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getLong(0) != MAGIC || map.getInt(8) != FORMAT) throw new IOException(file + ": not a token index snapshot");
+            IndexSnapshot s = new IndexSnapshot(map, map.getInt(12), map.getInt(16), map.getInt(20), map.getInt(24),
+                    map.getInt(28), map.getInt(32), map.getInt(36), map.getInt(40));
+            try {
+                // the last offset of each table must end its data section
+                if (s.files < 0 || s.tokens < 0 || s.fileBytes > size
+                        || map.getInt(s.fileOffsets + 4 * s.files) != (int) size - s.fileBytes
+                        || map.getInt(s.postOffsets + 4 * s.tokens) != (s.postOffsets - s.postings) / 4)
+                    throw new IOException(file + ": damaged snapshot");
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException(file + ": damaged snapshot");
+            }
+            return s;
+        }
+    }
+
+    int files() {
+        return files;
+    }
+
+    int tokens() {
+        return tokens;
+    }
+
+    String fileId(int ordinal) {
+        int from = map.getInt(fileOffsets + 4 * ordinal), to = map.getInt(fileOffsets + 4 * ordinal + 4);
+        byte[] b = new byte[to - from];
+        map.get(fileBytes + from, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // ordinal of fileId, -1 when the snapshot does not have it
+    int ordinal(String fileId) {
+        if (fileId.isEmpty()) return -1; // deleted files
+        int lo = 0, hi = files - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int ord = map.getInt(fileSorted + 4 * mid);
+            int c = fileId(ord).compareTo(fileId);
+            if (c == 0) return ord;
+            if (c < 0) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return -1;
+    }
+
+    // the token's file ordinals, null when it is not in the snapshot
+    PostingList postings(byte[] key) {
+        int t = find(key);
+        if (t < 0) return null;
+        int from = map.getInt(postOffsets + 4 * t), to = map.getInt(postOffsets + 4 * t + 4);
+        int[] ids = new int[to - from];
+        for (int i = 0; i < ids.length; i++) ids[i] = map.getInt(postings + 4 * (from + i));
+        return PostingList.of(ids);
+    }
+
+    boolean contains(byte[] key, int ordinal) {
+        int t = find(key);
+        if (t < 0) return false;
+        int lo = map.getInt(postOffsets + 4 * t), hi = map.getInt(postOffsets + 4 * t + 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int v = map.getInt(postings + 4 * mid);
+            if (v == ordinal) return true;
+            if (v < ordinal) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return false;
+    }
+
+    private int find(byte[] key) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        int lo = 0, hi = tokens - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareKey(mid, k);
+            if (c == 0) return mid;
+            if (c < 0) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return -1;
+    }
+
+    private int compareKey(int t, ByteBuffer key) {
+        int at = tokenKeys + KEY * t;
+        for (int i = 0; i < KEY; i += 8) {
+            int c = Long.compareUnsigned(map.getLong(at + i), key.getLong(i));
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    private byte[] keyAt(int t) {
+        byte[] k = new byte[KEY];
+        map.get(tokenKeys + KEY * t, k);
+        return k;
+    }
+
+    static byte[] key(String token) {
+        if (token.length() == 44) {
+            try {
+                byte[] raw = Base64.getDecoder().decode(token);
+                if (raw.length == KEY && Base64.getEncoder().encodeToString(raw).equals(token)) return raw;
+            } catch (IllegalArgumentException notBase64) {
+                // hashed below
+            }
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Writes base plus the tokens and files added since (file ordinals base.files(),
+    // base.files() + 1, ...) as a new snapshot, without the retired (deleted)
+    // ordinals: they are cut from every list, and tokens left with none are
+    // dropped. Ordinals are kept, so the lists in memory stay valid against it.
+    static void write(Path file, IndexSnapshot base, Map<String, PostingList> added, List<String> newFiles,
+                      PostingList retired) throws IOException {
+        int files = base.files + newFiles.size();
+        String[] ids = new String[files];
+        for (int i = 0; i < base.files; i++) ids[i] = base.fileId(i);
+        for (int i = 0; i < newFiles.size(); i++) ids[base.files + i] = newFiles.get(i);
+        for (int i = 0; i < retired.size(); i++) ids[retired.get(i)] = "";
+        Integer[] sorted = new Integer[files];
+        for (int i = 0; i < files; i++) sorted[i] = i;
+        Arrays.sort(sorted, Comparator.comparing(i -> ids[i]));
+
+        List<Map.Entry<byte[], PostingList>> fresh = new ArrayList<>(added.size());
+        added.forEach((tok, list) -> fresh.add(Map.entry(key(tok), list)));
+        fresh.sort((x, y) -> Arrays.compareUnsigned(x.getKey(), y.getKey()));
+        // merged token order: every key of base and of added once, with where its lists are
+        int max = base.tokens + fresh.size();
+        List<byte[]> keys = new ArrayList<>(max);
+        int[] baseIndex = new int[max];            // -1 when only added has the token
+        PostingList[] addedList = new PostingList[max];
+        int a = 0, b = 0;
+        while (b < base.tokens || a < fresh.size()) {
+            byte[] bk = b < base.tokens ? base.keyAt(b) : null;
+            int c = bk == null ? 1 : a == fresh.size() ? -1 : Arrays.compareUnsigned(bk, fresh.get(a).getKey());
+            int t = keys.size();
+            baseIndex[t] = c <= 0 ? b++ : -1;
+            addedList[t] = c >= 0 ? fresh.get(a).getValue() : null;
+            keys.add(c >= 0 ? fresh.get(a++).getKey() : bk);
+            // only a list no longer than retired can lose every file
+            if (retired.size() > 0 && size(base, baseIndex[t], addedList[t]) <= retired.size()
+                    && merged(base, baseIndex[t], addedList[t]).andNot(retired).size() == 0) keys.remove(t);
+        }
+        int tokens = keys.size();
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            CountingOutput counter = new CountingOutput(Channels.newOutputStream(ch));
+            DataOutputStream out = new DataOutputStream(counter);
+            out.write(new byte[HEADER]); // written last, once the offsets are known
+            long fileOffsets = counter.count;
+            byte[][] utf8 = new byte[files][];
+            int pos = 0;
+            for (int i = 0; i < files; i++) {
+                out.writeInt(pos);
+                pos += (utf8[i] = ids[i].getBytes(StandardCharsets.UTF_8)).length;
+            }
+            out.writeInt(pos);
+            long fileSorted = counter.count;
+            for (int ord : sorted) out.writeInt(ord);
+            long tokenKeys = counter.count;
+            for (byte[] k : keys) out.write(k);
+            long postings = counter.count;
+            int[] offsets = new int[tokens + 1];
+            for (int t = 0; t < tokens; t++) {
+                PostingList list = merged(base, baseIndex[t], addedList[t]);
+                if (retired.size() > 0) list = list.andNot(retired);
+                for (int i = 0; i < list.size(); i++) out.writeInt(list.get(i));
+                offsets[t + 1] = offsets[t] + list.size();
+            }
+            long postOffsets = counter.count;
+            for (int o : offsets) out.writeInt(o);
+            long fileBytes = counter.count;
+            for (byte[] u : utf8) out.write(u);
+            out.flush();
+            if (counter.count > Integer.MAX_VALUE) throw new IOException("token index snapshot over 2 GiB");
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putLong(MAGIC).putInt(FORMAT).putInt(files).putInt(tokens)
+                    .putInt((int) fileOffsets).putInt((int) fileSorted).putInt((int) tokenKeys)
+                    .putInt((int) postOffsets).putInt((int) postings).putInt((int) fileBytes).flip();
+            while (header.hasRemaining()) ch.write(header, header.position());
+            ch.force(true);
+        }
+    }
+
+    // upper bound of the merged list's size
+    private static int size(IndexSnapshot base, int baseIndex, PostingList added) {
+        int n = added == null ? 0 : added.size();
+        if (baseIndex >= 0) n += base.map.getInt(base.postOffsets + 4 * baseIndex + 4) - base.map.getInt(base.postOffsets + 4 * baseIndex);
+        return n;
+    }
+
+    private static PostingList merged(IndexSnapshot base, int baseIndex, PostingList added) {
+        if (baseIndex < 0) return added;
+        int from = base.map.getInt(base.postOffsets + 4 * baseIndex), to = base.map.getInt(base.postOffsets + 4 * baseIndex + 4);
+        int[] ids = new int[to - from];
+        for (int i = 0; i < ids.length; i++) ids[i] = base.map.getInt(base.postings + 4 * (from + i));
+        PostingList list = PostingList.of(ids);
+        return added == null ? list : list.or(added);
+    }
+
+    private static final class CountingOutput extends BufferedOutputStream {
+        long count;
+
+        CountingOutput(OutputStream out) {
+            super(out, 1 << 16);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            super.write(b);
+            count++;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            count += len;
+        }
+    }
+}
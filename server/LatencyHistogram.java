@@ -0,0 +1,66 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free latency histogram in the HdrHistogram layout: values below 64 ns get
+// a bucket each, above that every power of two is split into 32 linear buckets,
+// so any recorded value is reported within about 3%. Fixed memory (15 KiB),
+// covers the whole long range, and record() never takes a lock.
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;                  // 32 sub-buckets per power of two
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS) * SUB + SUB; // last one ends at Long.MAX_VALUE
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        total.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long meanNanos() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    long maxNanos() {
+        return max.get();
+    }
+
+    // Upper bound of the bucket holding the q-quantile (0 < q <= 1), 0 when empty.
+    long percentileNanos(double q) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) n += snapshot[i] = counts.get(i);
+        long rank = Math.max(1, (long) Math.ceil(q * n)), seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return 0;
+    }
+
+    // value = mantissa << shift with mantissa in [SUB, 2 * SUB); small values map to themselves
+    private static int index(long v) {
+        if (v < 2 * SUB) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return shift * SUB + (int) (v >>> shift);
+    }
+
+    private static long upperBound(int i) {
+        if (i < 2 * SUB) return i;
+        int shift = i / SUB - 1;
+        long mantissa = i - (long) shift * SUB;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Selector-based event loop. A single thread accepts and reads all sockets;
+// idle connections hold no thread at all. As soon as bytes arrive on a
+// connection a worker from a fixed pool runs the blocking handlers over
+// stream adapters and gives the thread back once the buffered input is used up.
+// A command whose next bytes do not arrive within READ_TIMEOUT_MS closes its
+// connection, so clients that stall mid-command cannot hold the workers, and
+// replies go out in WRITE_CHUNK pieces as they are written.
+public class NioConnectionEngine implements ConnectionEngine {
+    private static final int READ_CHUNK = 64 * 1024;
+    private static final int WRITE_CHUNK = 64 * 1024;
+    private static final int MAX_BUFFERED = 4 * 1024 * 1024; // stop reading a socket past this
+    private static final long READ_TIMEOUT_MS = 30_000;
+
+    private final ExecutorService workers;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    public NioConnectionEngine(int workerCount) {
+        this.workers = Executors.newFixedThreadPool(workerCount);
+    }
+
+    @Override
+    public String name() {
+        return "NIO";
+    }
+
+    @Override
+    public void serve(int port, RequestHandler handler) throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            ByteBuffer readBuf = ByteBuffer.allocateDirect(READ_CHUNK);
+
+            while (true) {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        SocketChannel ch = server.accept();
+                        if (ch == null) continue;
+                        ch.configureBlocking(false);
+                        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        SelectionKey ck = ch.register(selector, SelectionKey.OP_READ);
+                        ck.attach(new Connection(ch, ck, handler));
+                        ServerMetrics.connectionOpened();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) conn.onWritable();
+                        if (key.isValid() && key.isReadable()) conn.onReadable(readBuf);
+                    } catch (CancelledKeyException e) {
+                        // closed by its worker in the meantime
+                    }
+                }
+            }
+        }
+    }
+
+    private void onSelector(Runnable r) {
+        selectorTasks.add(r);
+        selector.wakeup();
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final RequestHandler handler;
+        final ChannelInput input = new ChannelInput();
+        final ChannelOutput output = new ChannelOutput();
+        final DataInputStream din = new DataInputStream(input);
+        final BlockOutputStream dout = new BlockOutputStream(output, output::transfer);
+        final Session session = new Session();
+        boolean running; // guarded by input
+        private boolean closed; // guarded by this
+
+        Connection(SocketChannel channel, SelectionKey key, RequestHandler handler) {
+            this.channel = channel;
+            this.key = key;
+            this.handler = handler;
+        }
+
+        // selector thread
+        void onReadable(ByteBuffer readBuf) {
+            int n;
+            try {
+                readBuf.clear();
+                n = channel.read(readBuf);
+            } catch (IOException e) {
+                n = -1;
+            }
+            boolean schedule = false;
+            synchronized (input) {
+                if (n < 0) {
+                    input.eof = true;
+                    input.notifyAll();
+                    key.interestOps(0);
+                    if (!running) {
+                        close();
+                        return;
+                    }
+                } else if (n > 0) {
+                    ServerMetrics.bytesIn(n);
+                    readBuf.flip();
+                    byte[] chunk = new byte[n];
+                    readBuf.get(chunk);
+                    input.chunks.add(chunk);
+                    input.available += n;
+                    input.notifyAll();
+                    if (input.available > MAX_BUFFERED) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    if (!running) {
+                        running = true;
+                        schedule = true;
+                    }
+                }
+            }
+            if (schedule) workers.execute(this::drain);
+        }
+
+        // selector thread
+        void onWritable() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            synchronized (output) {
+                output.notifyAll();
+            }
+        }
+
+        // worker thread: serve commands while complete input is buffered
+        void drain() {
+            try {
+                while (true) {
+                    if (!handler.handle(session, din, dout)) {
+                        close();
+                        return;
+                    }
+                    synchronized (input) {
+                        if (input.available == 0) {
+                            running = false;
+                            if (input.eof) close();
+                            return;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Client disconnected.");
+                close();
+            }
+        }
+
+        void resumeReading() {
+            onSelector(() -> {
+                if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            });
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            ServerMetrics.connectionClosed();
+            try {
+                key.cancel();
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // Bytes handed over by the selector; reads block only mid-command.
+        final class ChannelInput extends InputStream {
+            final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+            int headPos;
+            int available;
+            boolean eof;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                synchronized (this) {
+                    long deadline = System.nanoTime() + READ_TIMEOUT_MS * 1_000_000;
+                    while (available == 0) {
+                        if (eof) return -1;
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) throw new SocketTimeoutException("no bytes for " + READ_TIMEOUT_MS + " ms in the middle of a command");
+                        try {
+                            wait(left / 1_000_000 + 1);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    boolean wasFull = available > MAX_BUFFERED;
+                    int copied = 0;
+                    while (copied < len && available > 0) {
+                        byte[] head = chunks.peek();
+                        int k = Math.min(len - copied, head.length - headPos);
+                        System.arraycopy(head, headPos, b, off + copied, k);
+                        copied += k;
+                        headPos += k;
+                        available -= k;
+                        if (headPos == head.length) {
+                            chunks.poll();
+                            headPos = 0;
+                        }
+                    }
+                    if (wasFull && available <= MAX_BUFFERED) resumeReading();
+                    return copied;
+                }
+            }
+
+            @Override
+            public synchronized int available() {
+                return available;
+            }
+        }
+
+        // Gathers small writes and sends them to the socket when WRITE_CHUNK bytes
+        // are pending or on flush(); large writes go out directly, WRITE_CHUNK at a time.
+        final class ChannelOutput extends OutputStream {
+            private final byte[] pending = new byte[WRITE_CHUNK];
+            private int count;
+
+            @Override
+            public synchronized void write(int b) throws IOException {
+                if (count == pending.length) flush();
+                pending[count++] = (byte) b;
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException {
+                if (len > pending.length - count) flush();
+                if (len < pending.length) {
+                    System.arraycopy(b, off, pending, count, len);
+                    count += len;
+                    return;
+                }
+                for (int end = off + len; off < end; off += WRITE_CHUNK) {
+                    send(ByteBuffer.wrap(b, off, Math.min(WRITE_CHUNK, end - off)));
+                }
+            }
+
+            @Override
+            public synchronized void flush() throws IOException {
+                if (count == 0) return;
+                send(ByteBuffer.wrap(pending, 0, count));
+                count = 0;
+            }
+
+            // caller holds this monitor
+            private void send(ByteBuffer buf) throws IOException {
+                ServerMetrics.bytesOut(buf.remaining());
+                while (buf.hasRemaining()) {
+                    if (channel.write(buf) == 0) awaitWritable();
+                }
+            }
+
+            // zero-copy path; the caller has flushed everything before the region
+            synchronized void transfer(FileChannel src, long pos, long len) throws IOException {
+                while (len > 0) {
+                    long n = BlockOutputStream.transferSome(src, pos, len, channel);
+                    ServerMetrics.bytesOut(n);
+                    if (n == 0) awaitWritable();
+                    pos += n;
+                    len -= n;
+                }
+            }
+
+            // caller holds this monitor; onWritable() notifies it
+            private void awaitWritable() throws IOException {
+                onSelector(() -> {
+                    if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                });
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.Arrays;
+
+// Sorted, duplicate-free list of file ordinals for one token. New files get the
+// next ordinal, so adds are appends in the common case. and() walks the shorter
+// list and gallops through the longer one, so an intersection of a rare and a
+// very common token costs about the size of the rare one.
+public class PostingList {
+    private int[] ids;
+    private int size;
+
+    public PostingList() {
+        this(new int[4], 0);
+    }
+
+    private PostingList(int[] ids, int size) {
+        this.ids = ids;
+        this.size = size;
+    }
+
+    // ids must be sorted and distinct
+    public static PostingList of(int[] ids) {
+        return new PostingList(ids, ids.length);
+    }
+
+    // 0, 1, ..., n-1
+    public static PostingList range(int n) {
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) ids[i] = i;
+        return new PostingList(ids, n);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int i) {
+        return ids[i];
+    }
+
+    public boolean contains(int id) {
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    public boolean add(int id) {
+        int at = size;
+        if (size > 0 && ids[size - 1] >= id) {
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+            if (pos >= 0) return false;
+            at = -pos - 1;
+        }
+        if (size == ids.length) ids = Arrays.copyOf(ids, Math.max(4, size * 2));
+        System.arraycopy(ids, at, ids, at + 1, size - at);
+        ids[at] = id;
+        size++;
+        return true;
+    }
+
+    public PostingList and(PostingList other) {
+        PostingList small = size <= other.size ? this : other;
+        PostingList large = small == this ? other : this;
+        int[] out = new int[small.size];
+        int n = 0, from = 0;
+        for (int i = 0; i < small.size && from < large.size; i++) {
+            from = large.gallop(small.ids[i], from);
+            if (from < large.size && large.ids[from] == small.ids[i]) out[n++] = small.ids[i];
+        }
+        return new PostingList(out, n);
+    }
+
+    public PostingList or(PostingList other) {
+        int[] out = new int[size + other.size];
+        int i = 0, j = 0, n = 0;
+        while (i < size && j < other.size) {
+            int a = ids[i], b = other.ids[j];
+            out[n++] = Math.min(a, b);
+            if (a <= b) i++;
+            if (b <= a) j++;
+        }
+        while (i < size) out[n++] = ids[i++];
+        while (j < other.size) out[n++] = other.ids[j++];
+        return new PostingList(out, n);
+    }
+
+    // this minus other; gallops through other, so a large exclusion list is cheap too
+    public PostingList andNot(PostingList other) {
+        int[] out = new int[size];
+        int n = 0, from = 0;
+        for (int i = 0; i < size; i++) {
+            from = other.gallop(ids[i], from);
+            if (from >= other.size || other.ids[from] != ids[i]) out[n++] = ids[i];
+        }
+        return new PostingList(out, n);
+    }
+
+    // First index >= from whose id is >= target (size if none): exponential probe, then binary search.
+    private int gallop(int target, int from) {
+        int step = 1, hi = from;
+        while (hi < size && ids[hi] < target) {
+            from = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        int pos = Arrays.binarySearch(ids, from, Math.min(hi + 1, size), target);
+        return pos >= 0 ? pos : -pos - 1;
+    }
+}
@@ -0,0 +1,387 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Log-structured block store. Blocks are appended to segment-NNNNNNNN.log files
+// as records [short idLen][id][int dataLen][data]; a delete appends a tombstone,
+// the same header with dataLen -1 and no data. When a segment reaches its
+// size limit it is sealed with a footer listing (id, offset, length) for every
+// record, so a restart rebuilds the in-memory index from footers alone; only an
+// unsealed tail segment (crash) is scanned record by record. The footer starts
+// with a marker record (idLen 0, dataLen FOOTER_MARKER, over any block size), so
+// a scan of a segment whose seal was cut short stops where the records end.
+// A background task rewrites the live records of sealed segments whose garbage
+// ratio (overwritten or deleted bytes) passes the threshold and then deletes them.
+// Tombstones are carried over while an older segment could still hold the block.
+public class SegmentLogBlockStore implements BlockStore {
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final int FOOTER_MAGIC = 0x5345474C; // "SEGL"
+    private static final int FOOTER_MARKER = 0x53454746; // "SEGF"
+    private static final int TRAILER_LEN = 8 + 4 + 4;   // footerStart, entryCount, magic
+    private static final int MARKER_LEN = 2 + 4;        // idLen 0, FOOTER_MARKER
+    private static final int RETIRE_GRACE_SEC = 60;
+    private static final int TOMBSTONE = -1;            // dataLen of a delete record
+
+    // Where a block's bytes live: segment id, offset of the data, data length.
+    record Location(int segment, long offset, int length) {}
+
+    // length TOMBSTONE for deletes
+    private record Entry(String blockId, long offset, int length) {}
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final AtomicLong live = new AtomicLong();
+        final AtomicLong dead = new AtomicLong();
+        final List<Entry> entries = new ArrayList<>(); // footer of the active segment
+        volatile boolean sealed;
+        long size;
+
+        Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+    private final double compactRatio;
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService compactor;
+    private Segment active; // guarded by this
+
+    public SegmentLogBlockStore(Path dir, long maxSegmentBytes, double compactRatio, int compactIntervalSec) throws IOException {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.compactRatio = compactRatio;
+        Files.createDirectories(dir);
+        recover();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "segment-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("Segment compaction failed: " + e.getMessage());
+            }
+        }, compactIntervalSec, compactIntervalSec, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void put(String blockId, byte[] data) throws IOException {
+        synchronized (this) {
+            Location prev = index.put(blockId, append(blockId, data));
+            if (prev != null) markDead(prev);
+        }
+    }
+
+    @Override
+    public byte[] get(String blockId) throws IOException {
+        Region r = region(blockId);
+        if (r == null) return null;
+        byte[] data = new byte[r.length()];
+        readFully(r.channel(), ByteBuffer.wrap(data), r.position());
+        return data;
+    }
+
+    // The region stays readable even if compaction retires its segment meanwhile:
+    // retired channels are closed only after RETIRE_GRACE_SEC.
+    @Override
+    public Region region(String blockId) throws IOException {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location loc = index.get(blockId);
+            if (loc == null) return null;
+            Segment s = segments.get(loc.segment());
+            if (s != null) return new Region(s.channel, loc.offset(), loc.length(), false);
+            // compacted away after we looked up loc; retry with the new one
+        }
+        throw new IOException("block moved repeatedly during read: " + blockId);
+    }
+
+    @Override
+    public boolean contains(String blockId) {
+        return index.containsKey(blockId);
+    }
+
+    @Override
+    public void delete(String blockId) throws IOException {
+        synchronized (this) {
+            if (!index.containsKey(blockId)) return;
+            appendTombstone(blockId);
+            markDead(index.remove(blockId));
+        }
+    }
+
+    // The batch's tombstones go out in one write.
+    @Override
+    public void deleteAll(Collection<String> blockIds) throws IOException {
+        synchronized (this) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            List<String> present = new ArrayList<>();
+            for (String blockId : new LinkedHashSet<>(blockIds)) {
+                if (!index.containsKey(blockId)) continue;
+                byte[] id = blockId.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(id.length);
+                out.write(id);
+                out.writeInt(TOMBSTONE);
+                present.add(blockId);
+            }
+            if (present.isEmpty()) return;
+            long pos = active.size;
+            writeFully(active.channel, ByteBuffer.wrap(bytes.toByteArray()), pos);
+            for (String blockId : present) {
+                pos += 2 + blockId.getBytes(StandardCharsets.UTF_8).length + 4;
+                active.entries.add(new Entry(blockId, pos, TOMBSTONE));
+                markDead(index.remove(blockId));
+            }
+            active.size = pos;
+            active.dead.addAndGet(bytes.size());
+            if (active.size >= maxSegmentBytes) roll();
+        }
+    }
+
+    @Override
+    public Collection<String> blockIds() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        compactor.shutdownNow();
+        if (active.size > 0) seal(active);
+        for (Segment s : segments.values()) s.channel.close();
+    }
+
+    // ===== write path =====
+
+    // Caller holds the monitor.
+    private Location append(String blockId, byte[] data) throws IOException {
+        byte[] id = blockId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer rec = ByteBuffer.allocate(2 + id.length + 4);
+        rec.putShort((short) id.length).put(id).putInt(data.length).flip();
+        long pos = active.size;
+        long dataPos = pos + rec.remaining();
+        writeFully(active.channel, rec, pos);
+        writeFully(active.channel, ByteBuffer.wrap(data), dataPos);
+        active.size = dataPos + data.length;
+        active.entries.add(new Entry(blockId, dataPos, data.length));
+        active.live.addAndGet(data.length);
+        Location loc = new Location(active.id, dataPos, data.length);
+        if (active.size >= maxSegmentBytes) roll();
+        return loc;
+    }
+
+    // Caller holds the monitor.
+    private void appendTombstone(String blockId) throws IOException {
+        byte[] id = blockId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer rec = ByteBuffer.allocate(2 + id.length + 4);
+        rec.putShort((short) id.length).put(id).putInt(TOMBSTONE).flip();
+        long pos = active.size;
+        writeFully(active.channel, rec, pos);
+        active.size = pos + rec.capacity();
+        active.entries.add(new Entry(blockId, active.size, TOMBSTONE));
+        active.dead.addAndGet(rec.capacity()); // only there to shadow older segments
+        if (active.size >= maxSegmentBytes) roll();
+    }
+
+    private void roll() throws IOException {
+        seal(active);
+        active = newSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        Segment s = new Segment(id, dir.resolve(String.format("%s%08d%s", PREFIX, id, SUFFIX)));
+        segments.put(id, s);
+        return s;
+    }
+
+    private static void seal(Segment s) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(s.entries.size() * 64);
+        DataOutputStream footer = new DataOutputStream(bos);
+        footer.writeShort(0);
+        footer.writeInt(FOOTER_MARKER);
+        for (Entry e : s.entries) {
+            footer.writeUTF(e.blockId());
+            footer.writeLong(e.offset());
+            footer.writeInt(e.length());
+        }
+        footer.writeLong(s.size);
+        footer.writeInt(s.entries.size());
+        footer.writeInt(FOOTER_MAGIC);
+        writeFully(s.channel, ByteBuffer.wrap(bos.toByteArray()), s.size);
+        s.channel.force(false);
+        s.entries.clear();
+        s.sealed = true;
+    }
+
+    private void markDead(Location loc) {
+        Segment s = segments.get(loc.segment());
+        if (s == null) return;
+        s.live.addAndGet(-loc.length());
+        s.dead.addAndGet(loc.length());
+    }
+
+    // ===== compaction =====
+
+    private void compact() throws IOException {
+        for (Segment s : segments.values()) {
+            if (!s.sealed) continue;
+            long live = s.live.get(), dead = s.dead.get();
+            if (dead == 0 || (double) dead / (live + dead) < compactRatio) continue;
+
+            for (Entry e : readFooter(s)) {
+                if (e.length() == TOMBSTONE) {
+                    // still needed while an older segment may hold the deleted block
+                    synchronized (this) {
+                        if (!index.containsKey(e.blockId()) && segments.firstKey() < s.id) appendTombstone(e.blockId());
+                    }
+                    continue;
+                }
+                Location loc = new Location(s.id, e.offset(), e.length());
+                if (!loc.equals(index.get(e.blockId()))) continue; // overwritten since
+                byte[] data = new byte[e.length()];
+                readFully(s.channel, ByteBuffer.wrap(data), e.offset());
+                synchronized (this) {
+                    if (loc.equals(index.get(e.blockId()))) index.put(e.blockId(), append(e.blockId(), data));
+                }
+            }
+            synchronized (this) {
+                active.channel.force(false); // copies are durable before the old segment goes
+            }
+            segments.remove(s.id);
+            Files.deleteIfExists(s.path);
+            // in-flight readers may still hold the channel; the unlinked file stays readable until closed
+            compactor.schedule(() -> {
+                try {
+                    s.channel.close();
+                } catch (IOException ignored) {
+                }
+            }, RETIRE_GRACE_SEC, TimeUnit.SECONDS);
+        }
+    }
+
+    // ===== recovery =====
+
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                ids.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+
+        for (int id : ids) {
+            Segment s = newSegment(id);
+            List<Entry> entries = hasFooter(s) ? readFooter(s) : scan(s);
+            for (Entry e : entries) {
+                if (e.length() == TOMBSTONE) {
+                    Location prev = index.remove(e.blockId());
+                    if (prev != null) markDead(prev);
+                    s.dead.addAndGet(2 + e.blockId().getBytes(StandardCharsets.UTF_8).length + 4);
+                    continue;
+                }
+                Location prev = index.put(e.blockId(), new Location(id, e.offset(), e.length()));
+                s.live.addAndGet(e.length());
+                if (prev != null) markDead(prev);
+            }
+            if (!s.sealed) {
+                s.entries.addAll(entries);
+                if (s.size > 0) seal(s); // tail left open by a crash
+            }
+        }
+        // empty leftover tail segments are reused as the active one
+        Map.Entry<Integer, Segment> last = segments.lastEntry();
+        active = last != null && !last.getValue().sealed ? last.getValue()
+                : newSegment(last == null ? 1 : last.getKey() + 1);
+    }
+
+    private static boolean hasFooter(Segment s) throws IOException {
+        if (s.size < TRAILER_LEN) return false;
+        ByteBuffer t = ByteBuffer.allocate(TRAILER_LEN);
+        readFully(s.channel, t, s.size - TRAILER_LEN);
+        boolean sealed = t.getInt(12) == FOOTER_MAGIC && t.getLong(0) >= 0 && t.getLong(0) <= s.size - TRAILER_LEN;
+        if (sealed) {
+            s.sealed = true;
+            s.size = t.getLong(0);
+        }
+        return sealed;
+    }
+
+    private static List<Entry> readFooter(Segment s) throws IOException {
+        long end = s.channel.size() - TRAILER_LEN;
+        ByteBuffer buf = ByteBuffer.allocate((int) (end - s.size));
+        readFully(s.channel, buf, s.size);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array()));
+        if (buf.capacity() >= MARKER_LEN && buf.getShort(0) == 0 && buf.getInt(2) == FOOTER_MARKER)
+            in.skipNBytes(MARKER_LEN); // footers written before the marker start with the first entry
+        List<Entry> entries = new ArrayList<>();
+        while (in.available() > 0) entries.add(new Entry(in.readUTF(), in.readLong(), in.readInt()));
+        return entries;
+    }
+
+    // Rebuilds the entries of a segment without a footer; a torn last record, or
+    // the start of a footer whose trailer never made it to disk, is cut off.
+    private static List<Entry> scan(Segment s) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long pos = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(s.channel.position(0))));
+        while (pos < s.size) {
+            try {
+                byte[] id = new byte[in.readUnsignedShort()];
+                in.readFully(id);
+                int len = in.readInt();
+                if (id.length == 0 && len == FOOTER_MARKER) break;
+                long dataPos = pos + 2 + id.length + 4;
+                if (len == TOMBSTONE) {
+                    if (dataPos > s.size) break;
+                    entries.add(new Entry(new String(id, StandardCharsets.UTF_8), dataPos, TOMBSTONE));
+                    pos = dataPos;
+                    continue;
+                }
+                if (len < 0 || dataPos + len > s.size) break;
+                in.skipNBytes(len);
+                entries.add(new Entry(new String(id, StandardCharsets.UTF_8), dataPos, len));
+                pos = dataPos + len;
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        if (pos < s.size) {
+            s.channel.truncate(pos);
+            s.size = pos;
+        }
+        return entries;
+    }
+
+    // ===== channel helpers =====
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) throw new EOFException("short segment read");
+            pos += n;
+        }
+        buf.flip();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) pos += ch.write(buf, pos);
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Server settings read from serverconfig.txt (same KEY = VALUE format as the
+// client's cryptoconfig.txt). Every key is optional; a missing file means defaults.
+public class ServerConfig {
+    public final int port;
+    public final String engine;     // THREAD | VIRTUAL | NIO
+    public final int workers;       // worker pool size for the NIO engine
+    public final String storage;    // FILE | SEGMENT
+    public final String blockDir;   // FILE storage directory
+    public final String segmentDir; // SEGMENT storage directory
+    public final List<Path> volumes; // one store per directory (disk) instead of BLOCK_DIR / SEGMENT_DIR
+    public final int volumeThreads; // I/O threads per volume
+    public final long segmentBytes; // roll a segment once it reaches this size
+    public final double compactRatio;   // compact sealed segments with this share of dead bytes
+    public final int compactIntervalSec;
+    public final long checkpointRecords;    // token WAL records before a snapshot is forced
+    public final int checkpointIntervalSec; // periodic snapshot-and-truncate of the token WAL
+    public final long cacheBytes;   // block cache budget, 0 = no cache
+    public final int hashCacheEntries;  // cached leaf hashes for PROOF, 0 = none
+    public final int reclaimPerSec;     // deleted blocks the background reclaimer removes per second
+    public final String statsFile;  // periodic copy of the STATS report
+    public final int statsIntervalSec;  // 0 = no stats file
+
+    private ServerConfig(Properties p) {
+        this.port = Integer.parseInt(p.getProperty("PORT", "5000").trim());
+        this.engine = p.getProperty("ENGINE", "THREAD").trim().toUpperCase();
+        this.workers = Integer.parseInt(p.getProperty("WORKERS",
+                String.valueOf(Runtime.getRuntime().availableProcessors() * 4)).trim());
+        this.storage = p.getProperty("STORAGE", "FILE").trim().toUpperCase();
+        this.blockDir = p.getProperty("BLOCK_DIR", "blockstorage").trim();
+        this.segmentDir = p.getProperty("SEGMENT_DIR", "blocksegments").trim();
+        List<Path> volumes = new ArrayList<>();
+        for (String v : p.getProperty("VOLUMES", "").split(",")) if (!v.isBlank()) volumes.add(Paths.get(v.trim()));
+        this.volumes = List.copyOf(volumes);
+        this.volumeThreads = Math.max(1, Integer.parseInt(p.getProperty("VOLUME_THREADS", "4").trim()));
+        this.segmentBytes = Long.parseLong(p.getProperty("SEGMENT_MB", "64").trim()) * 1024 * 1024;
+        this.compactRatio = Double.parseDouble(p.getProperty("COMPACT_RATIO", "0.5").trim());
+        this.compactIntervalSec = Integer.parseInt(p.getProperty("COMPACT_INTERVAL_SEC", "30").trim());
+        this.checkpointRecords = Long.parseLong(p.getProperty("CHECKPOINT_RECORDS", "100000").trim());
+        this.checkpointIntervalSec = Integer.parseInt(p.getProperty("CHECKPOINT_INTERVAL_SEC", "300").trim());
+        this.cacheBytes = Long.parseLong(p.getProperty("CACHE_MB", "0").trim()) * 1024 * 1024;
+        this.hashCacheEntries = Integer.parseInt(p.getProperty("HASH_CACHE_ENTRIES", "262144").trim());
+        this.reclaimPerSec = Math.max(1, Integer.parseInt(p.getProperty("RECLAIM_PER_SEC", "2000").trim()));
+        this.statsFile = p.getProperty("STATS_FILE", "server_stats.txt").trim();
+        this.statsIntervalSec = Integer.parseInt(p.getProperty("STATS_INTERVAL_SEC", "60").trim());
+    }
+
+    public static ServerConfig load(Path path) throws IOException {
+        Properties p = new Properties();
+        if (Files.exists(path)) {
+            try (Reader r = Files.newBufferedReader(path)) {
+                p.load(r);
+            }
+        }
+        return new ServerConfig(p);
+    }
+}
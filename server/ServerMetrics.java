@@ -0,0 +1,114 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Process-wide instrumentation: a latency histogram per command (from the
+// command word to the reply), histograms for metadata WAL appends and
+// checkpoints, bytes in/out and connections as counted by the engines.
+// STATS returns report(); with STATS_INTERVAL_SEC > 0 the same text is
+// rewritten to STATS_FILE periodically.
+final class ServerMetrics {
+    private static final long START = System.nanoTime();
+    private static final Map<String, LatencyHistogram> LATENCIES = new ConcurrentSkipListMap<>();
+    private static final LongAdder BYTES_IN = new LongAdder();
+    private static final LongAdder BYTES_OUT = new LongAdder();
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+    private static final LongAdder CONNECTIONS = new LongAdder();
+
+    private ServerMetrics() {
+    }
+
+    static void record(String name, long nanos) {
+        LATENCIES.computeIfAbsent(name, k -> new LatencyHistogram()).record(nanos);
+    }
+
+    static void bytesIn(long n) {
+        BYTES_IN.add(n);
+    }
+
+    static void bytesOut(long n) {
+        BYTES_OUT.add(n);
+    }
+
+    static void connectionOpened() {
+        ACTIVE.incrementAndGet();
+        CONNECTIONS.increment();
+    }
+
+    static void connectionClosed() {
+        ACTIVE.decrementAndGet();
+    }
+
+    // Socket streams of the blocking engine, counted into bytes in / out.
+    static InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) BYTES_IN.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) BYTES_IN.add(n);
+                return n;
+            }
+        };
+    }
+
+    static OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                BYTES_OUT.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                BYTES_OUT.add(len);
+            }
+        };
+    }
+
+    static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("uptime %d s, connections %d open / %d total, bytes in %d, bytes out %d%n",
+                (System.nanoTime() - START) / 1_000_000_000L, ACTIVE.get(), CONNECTIONS.sum(), BYTES_IN.sum(), BYTES_OUT.sum()));
+        sb.append(String.format("%-20s %10s %10s %10s %10s %10s %10s %10s%n",
+                "latency (us)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (Map.Entry<String, LatencyHistogram> e : LATENCIES.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            sb.append(String.format("%-20s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", e.getKey(), h.count(),
+                    h.meanNanos() / 1e3, h.percentileNanos(0.5) / 1e3, h.percentileNanos(0.9) / 1e3,
+                    h.percentileNanos(0.99) / 1e3, h.percentileNanos(0.999) / 1e3, h.maxNanos() / 1e3));
+        }
+        return sb.toString();
+    }
+
+    // Rewrites file with report every intervalSec seconds (atomic replace, so readers never see half a report).
+    static void startDump(Path file, int intervalSec, Supplier<String> report) {
+        if (intervalSec <= 0) return;
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleWithFixedDelay(() -> {
+            try {
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.writeString(tmp, report.get());
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Error writing " + file + ": " + e.getMessage());
+            }
+        }, intervalSec, intervalSec, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Blocks spread over several volume directories (one per disk), each an ordinary
+// FILE or SEGMENT store with its own I/O threads. A block's home is the volume
+// that scores highest for its id under rendezvous hashing, so adding a volume
+// moves only the blocks the new volume wins (about 1 / volumes of them) and the
+// order of VOLUMES does not matter: a volume is known by the random id in its
+// volume.id file, not by its path (the store itself is in its blocks/ folder).
+// Blocks found away from their home at startup (a volume was just added) are
+// served from where they are until VolumeRebalancer moves them; new writes
+// always go to the home volume and drop the away copy. A copy at home always
+// wins over one away from it, and a delete removes the block from every volume.
+public class ShardedBlockStore implements BlockStore {
+    private static final String VOLUME_ID = "volume.id";
+    private static final String STORE_DIR = "blocks";
+
+    interface Opener {
+        BlockStore open(Path dir) throws IOException;
+    }
+
+    private final List<Path> dirs;
+    private final List<BlockStore> volumes = new ArrayList<>();
+    private final List<ExecutorService> io = new ArrayList<>();
+    private final long[] seeds;
+    private final int threads;
+    private final ConcurrentHashMap<String, Integer> misplaced = new ConcurrentHashMap<>();
+
+    public ShardedBlockStore(List<Path> dirs, int threads, Opener opener) throws IOException {
+        this.dirs = List.copyOf(dirs);
+        this.threads = threads;
+        this.seeds = new long[dirs.size()];
+        for (int i = 0; i < dirs.size(); i++) {
+            Files.createDirectories(dirs.get(i));
+            seeds[i] = volumeId(dirs.get(i));
+            for (int k = 0; k < i; k++)
+                if (seeds[k] == seeds[i]) throw new IOException("volume listed twice: " + dirs.get(k) + ", " + dirs.get(i));
+            String name = "volume-" + i + "-io";
+            io.add(Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }));
+        }
+        // volumes recover (segment footers, directory listings) in parallel
+        List<Future<BlockStore>> opened = new ArrayList<>();
+        for (int i = 0; i < dirs.size(); i++) {
+            Path dir = dirs.get(i).resolve(STORE_DIR);
+            opened.add(io.get(i).submit(() -> opener.open(dir)));
+        }
+        for (Future<BlockStore> f : opened) volumes.add(await(f));
+
+        List<Future<?>> scans = new ArrayList<>();
+        for (int i = 0; i < volumes.size(); i++) {
+            int v = i;
+            scans.add(io.get(i).submit(() -> {
+                for (String id : volumes.get(v).blockIds()) {
+                    int home = home(id);
+                    if (home != v && !volumes.get(home).contains(id)) misplaced.putIfAbsent(id, v);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : scans) await(f);
+        if (!misplaced.isEmpty())
+            System.out.println(misplaced.size() + " blocks are not on their home volume; run VolumeRebalancer to move them");
+    }
+
+    @Override
+    public void put(String blockId, byte[] data) throws IOException {
+        volumes.get(home(blockId)).put(blockId, data);
+        Integer away = misplaced.remove(blockId);
+        if (away != null) volumes.get(away).delete(blockId); // stale now, and would win after a restart
+    }
+
+    @Override
+    public byte[] get(String blockId) throws IOException {
+        return volumes.get(locate(blockId)).get(blockId);
+    }
+
+    // get() on the block's volume I/O threads; GET_BLOCKS keeps several of these
+    // in flight so every disk is busy.
+    public CompletableFuture<byte[]> getAsync(String blockId) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return get(blockId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, io.get(locate(blockId)));
+    }
+
+    // Blocks worth reading ahead: enough to keep every volume's threads busy.
+    public int readAhead() {
+        return volumes.size() * threads * 2;
+    }
+
+    @Override
+    public Region region(String blockId) throws IOException {
+        return volumes.get(locate(blockId)).region(blockId);
+    }
+
+    @Override
+    public boolean contains(String blockId) throws IOException {
+        return volumes.get(locate(blockId)).contains(blockId);
+    }
+
+    @Override
+    public void delete(String blockId) throws IOException {
+        deleteAll(List.of(blockId));
+    }
+
+    // Every volume drops the copies it holds (stale ones away from home included,
+    // so none comes back at the next start), each on its own threads, all at once.
+    @Override
+    public void deleteAll(Collection<String> blockIds) throws IOException {
+        for (String id : blockIds) misplaced.remove(id);
+        List<Future<?>> done = new ArrayList<>();
+        for (int i = 0; i < volumes.size(); i++) {
+            BlockStore v = volumes.get(i);
+            done.add(io.get(i).submit(() -> {
+                List<String> held = new ArrayList<>();
+                for (String id : blockIds) if (v.contains(id)) held.add(id);
+                if (!held.isEmpty()) v.deleteAll(held);
+                return null;
+            }));
+        }
+        for (Future<?> f : done) await(f);
+    }
+
+    // Every volume listed in parallel; a block with a stale copy away from home is listed once.
+    @Override
+    public Collection<String> blockIds() throws IOException {
+        List<Future<Collection<String>>> lists = new ArrayList<>();
+        for (int i = 0; i < volumes.size(); i++) {
+            BlockStore v = volumes.get(i);
+            lists.add(io.get(i).submit(v::blockIds));
+        }
+        Set<String> ids = new LinkedHashSet<>();
+        for (Future<Collection<String>> f : lists) ids.addAll(await(f));
+        return ids;
+    }
+
+    // Moves every block to its home volume, each volume's share on its own threads;
+    // a block already at home (rewritten since) only loses the stale copy.
+    // Returns the blocks moved off each volume. Run with the server stopped.
+    int[] rebalance() throws IOException {
+        int[] moved = new int[volumes.size()];
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < volumes.size(); i++) {
+            int v = i;
+            tasks.add(io.get(i).submit(() -> {
+                BlockStore from = volumes.get(v);
+                for (String id : from.blockIds()) {
+                    BlockStore to = volumes.get(home(id));
+                    if (to == from) continue;
+                    if (!to.contains(id)) {
+                        byte[] data = from.get(id);
+                        if (data == null) continue;
+                        to.put(id, data);
+                    }
+                    from.delete(id);
+                    misplaced.remove(id, v);
+                    moved[v]++;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : tasks) await(f);
+        return moved;
+    }
+
+    List<Path> dirs() {
+        return dirs;
+    }
+
+    int misplacedCount() {
+        return misplaced.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ExecutorService e : io) e.shutdownNow();
+        IOException failure = null;
+        for (BlockStore v : volumes) {
+            try {
+                v.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private int locate(String blockId) {
+        Integer away = misplaced.get(blockId);
+        return away != null ? away : home(blockId);
+    }
+
+    // Rendezvous hashing: the volume whose id mixes with the block id into the highest score.
+    private int home(String blockId) {
+        long h = 1125899906842597L;
+        for (int i = 0; i < blockId.length(); i++) h = 31 * h + blockId.charAt(i);
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < seeds.length; i++) {
+            long score = mix(h ^ seeds[i]);
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // MurmurHash3 fmix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    // The volume's identity, created on first use.
+    private static long volumeId(Path dir) throws IOException {
+        Path file = dir.resolve(VOLUME_ID);
+        if (Files.exists(file)) return Long.parseUnsignedLong(Files.readString(file).trim(), 16);
+        long id = new SecureRandom().nextLong();
+        Path tmp = dir.resolve(VOLUME_ID + ".tmp");
+        Files.writeString(tmp, Long.toHexString(id));
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        return id;
+    }
+
+    private static <T> T await(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            if (e.getCause() instanceof UncheckedIOException u) throw u.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+// One blocking thread per connection. With virtual=true the threads come from
+// Executors.newVirtualThreadPerTaskExecutor (JDK 21+); on older JDKs we fall back
+// to platform threads so the same build still runs on the corretto-17 toolchain.
+public class ThreadConnectionEngine implements ConnectionEngine {
+    private final ExecutorService executor;
+    private final String name;
+
+    public ThreadConnectionEngine(boolean virtual) {
+        ExecutorService ex = null;
+        if (virtual) {
+            try {
+                ex = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads not available on this JDK, using platform threads.");
+            }
+        }
+        this.name = ex != null ? "VIRTUAL" : "THREAD";
+        this.executor = ex != null ? ex : Executors.newCachedThreadPool();
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public void serve(int port, RequestHandler handler) throws IOException {
+        // accepted through a channel so block regions can be sent with transferTo
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            while (true) {
+                SocketChannel client = serverChannel.accept();
+                // header and transferTo payload leave as separate writes; don't let Nagle hold the second
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                executor.execute(() -> handleClient(client, handler));
+            }
+        }
+    }
+
+    private static void handleClient(SocketChannel channel, RequestHandler handler) {
+        ServerMetrics.connectionOpened();
+        try (
+            channel;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    ServerMetrics.countIn(channel.socket().getInputStream())));
+            BlockOutputStream out = new BlockOutputStream(new BufferedOutputStream(
+                    ServerMetrics.countOut(channel.socket().getOutputStream())),
+                    (src, pos, len) -> {
+                        while (len > 0) {
+                            long n = BlockOutputStream.transferSome(src, pos, len, channel);
+                            ServerMetrics.bytesOut(n);
+                            pos += n;
+                            len -= n;
+                        }
+                    });
+        ) {
+            ConnectionEngine.Session session = new ConnectionEngine.Session();
+            while (handler.handle(session, in, out)) {
+                // keep serving commands until EXIT
+            }
+        } catch (IOException e) {
+            System.err.println("Client disconnected.");
+        } finally {
+            ServerMetrics.connectionClosed();
+        }
+    }
+}
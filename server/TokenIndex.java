@@ -0,0 +1,455 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// token -> posting list of file ordinals; each fileId is stored once and numbered
+// in arrival order, so lists stay sorted and boolean queries are list merges.
+// Every new (token, fileId) pair is appended to a write-ahead log, so an upload
+// costs a few bytes of I/O whatever the index size; addAll and removeAll return
+// once their records are forced to disk, and writers that arrive during a force
+// share the next one (group commit). A background checkpoint rotates the log, writes a
+// full snapshot and drops the rotated log; a restart replays only the log written since.
+// Snapshots are IndexSnapshot files (metadata.idx.<generation>), memory-mapped
+// rather than loaded, so a restart costs the same whatever the index size; the
+// pairs added since the last one are kept in memory on top of it.
+// Deleting a file retires its ordinal: lists skip it until the next snapshot,
+// which cuts it out of them, and the fileId gets a new ordinal if it comes back.
+public class TokenIndex implements Closeable {
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2; // token "", fileId
+    private static final PostingList EMPTY = new PostingList();
+    private static final String LEGACY_SNAPSHOT = "metadata.ser"; // serialized map of older servers
+
+    private final Path snapshotFile; // snapshots are <snapshotFile>.<generation>
+    private final Path walFile;
+    private final Path oldWalFile;
+    private final long checkpointRecords;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // guards the six below
+    private IndexSnapshot base = IndexSnapshot.EMPTY;
+    private Map<String, PostingList> frozen = new HashMap<>(); // being written to the next snapshot
+    private Map<String, PostingList> recent = new HashMap<>();  // added since
+    private final Map<String, Integer> recentOrdinals = new HashMap<>();
+    private final List<String> recentFileIds = new ArrayList<>(); // ordinals base.files(), base.files() + 1, ...
+    private PostingList deleted = new PostingList(); // ordinals retired since the snapshot
+    private long generation; // of base; checkpoint thread only after startup
+    private final AtomicLong walRecords = new AtomicLong();
+    private final Object checkpointing = new Object(); // one checkpoint at a time
+    private final ScheduledExecutorService checkpointer;
+    private FileOutputStream walStream; // guarded by this
+    private DataOutputStream wal;       // guarded by this
+    private long appended;              // batches flushed to the log; guarded by this
+    private final Object syncLock = new Object(); // taken before this, never inside it
+    private long synced;                // batches forced to disk; guarded by syncLock
+
+    public TokenIndex(Path snapshotFile, Path walFile, long checkpointRecords, int checkpointIntervalSec) throws IOException {
+        this.snapshotFile = snapshotFile;
+        this.walFile = walFile;
+        this.oldWalFile = walFile.resolveSibling(walFile.getFileName() + ".old");
+        this.checkpointRecords = checkpointRecords;
+
+        openSnapshot();
+        Path legacy = walFile.resolveSibling(LEGACY_SNAPSHOT);
+        boolean converting = loadLegacy(legacy);
+        replay(oldWalFile); // left behind by a checkpoint that did not finish
+        replay(walFile);
+        if (Files.exists(oldWalFile) || converting) {
+            writeSnapshot();
+            Files.deleteIfExists(oldWalFile);
+            Files.deleteIfExists(legacy);
+        }
+        wal = openWal();
+
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "token-index-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpointQuietly, checkpointIntervalSec, checkpointIntervalSec, TimeUnit.SECONDS);
+    }
+
+    public void addAll(String fileId, Collection<String> tokens) throws IOException {
+        int added = 0;
+        long start = System.nanoTime(), batch = 0, records = 0;
+        synchronized (this) {
+            for (String tok : tokens) {
+                if (!add(tok, fileId)) continue;
+                wal.writeByte(OP_ADD);
+                wal.writeUTF(tok);
+                wal.writeUTF(fileId);
+                added++;
+            }
+            if (added > 0) {
+                wal.flush();
+                batch = ++appended;
+                records = walRecords.addAndGet(added);
+            }
+        }
+        if (added == 0) return;
+        sync(batch);
+        ServerMetrics.record("metadata.wal", System.nanoTime() - start);
+        if (records >= checkpointRecords) checkpointer.execute(this::checkpointQuietly);
+    }
+
+    // Removes the files from every token; fileIds no token links to are skipped.
+    public void removeAll(Collection<String> fileIds) throws IOException {
+        int removed = 0;
+        long start = System.nanoTime(), batch = 0, records = 0;
+        synchronized (this) {
+            for (String fileId : fileIds) {
+                if (!retire(fileId)) continue;
+                wal.writeByte(OP_REMOVE);
+                wal.writeUTF("");
+                wal.writeUTF(fileId);
+                removed++;
+            }
+            if (removed > 0) {
+                wal.flush();
+                batch = ++appended;
+                records = walRecords.addAndGet(removed);
+            }
+        }
+        if (removed == 0) return;
+        sync(batch);
+        ServerMetrics.record("metadata.wal", System.nanoTime() - start);
+        if (records >= checkpointRecords) checkpointer.execute(this::checkpointQuietly);
+    }
+
+    // Returns once the log is on disk up to the given batch. One force covers
+    // every batch flushed before it started, so concurrent writers wait for at
+    // most one force in progress plus one of their own.
+    private void sync(long batch) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= batch) return;
+            long upTo;
+            FileChannel channel;
+            synchronized (this) {
+                upTo = appended;
+                channel = walStream.getChannel();
+            }
+            channel.force(false); // appends go on meanwhile; rotation waits for syncLock
+            synced = upTo;
+        }
+    }
+
+    public List<String> get(String token) {
+        lock.readLock().lock();
+        try {
+            return resolve(list(token));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Evaluates a query in postfix order: tokens, "AND", "OR", "NOT". NOT is kept
+    // as a flag while the expression is reduced (a AND NOT b becomes a.andNot(b),
+    // De Morgan for the rest), so only a NOT left at the top costs a pass over
+    // every known file.
+    public List<String> query(List<String> rpn) {
+        lock.readLock().lock();
+        try {
+            Deque<Term> stack = new ArrayDeque<>();
+            for (String item : rpn) {
+                switch (item) {
+                    case "NOT" -> stack.push(pop(stack).not());
+                    case "AND" -> {
+                        Term b = pop(stack), a = pop(stack);
+                        stack.push(and(a, b));
+                    }
+                    case "OR" -> {
+                        Term b = pop(stack), a = pop(stack);
+                        stack.push(and(a.not(), b.not()).not());
+                    }
+                    default -> stack.push(new Term(list(item), false));
+                }
+            }
+            if (stack.size() != 1) throw new IllegalArgumentException("malformed query");
+            Term t = stack.pop();
+            if (!t.negated) return resolve(t.list);
+            return resolve(PostingList.range(base.files() + recentFileIds.size()).andNot(t.list).andNot(deleted));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private record Term(PostingList list, boolean negated) {
+        Term not() {
+            return new Term(list, !negated);
+        }
+    }
+
+    private static Term pop(Deque<Term> stack) {
+        if (stack.isEmpty()) throw new IllegalArgumentException("malformed query");
+        return stack.pop();
+    }
+
+    private static Term and(Term a, Term b) {
+        if (!a.negated && !b.negated) return new Term(a.list.and(b.list), false);
+        if (!a.negated) return new Term(a.list.andNot(b.list), false);
+        if (!b.negated) return new Term(b.list.andNot(a.list), false);
+        return new Term(a.list.or(b.list), true);
+    }
+
+    // The token's files in the snapshot and in memory. Caller holds the read lock.
+    private PostingList list(String token) {
+        PostingList list = base.postings(IndexSnapshot.key(token));
+        for (Map<String, PostingList> layer : List.of(frozen, recent)) {
+            PostingList more = layer.get(token);
+            if (more != null) list = list == null ? more : list.or(more);
+        }
+        if (list == null) return EMPTY;
+        return deleted.size() == 0 ? list : list.andNot(deleted);
+    }
+
+    // Caller holds the read lock. Ordinals retired in the snapshot (empty fileId) are skipped.
+    private List<String> resolve(PostingList list) {
+        List<String> out = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            int ord = list.get(i);
+            String fileId = ord < base.files() ? base.fileId(ord) : recentFileIds.get(ord - base.files());
+            if (!fileId.isEmpty()) out.add(fileId);
+        }
+        return out;
+    }
+
+    // The current ordinal of fileId, or -1.
+    // Caller holds the write lock.
+    private int ordinal(String fileId) {
+        Integer ord = recentOrdinals.get(fileId);
+        if (ord != null) return ord;
+        int o = base.ordinal(fileId);
+        return o >= 0 && deleted.contains(o) ? -1 : o;
+    }
+
+    private boolean retire(String fileId) {
+        lock.writeLock().lock();
+        try {
+            int ord = ordinal(fileId);
+            if (ord < 0) return false;
+            recentOrdinals.remove(fileId);
+            deleted.add(ord);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean add(String token, String fileId) {
+        byte[] key = IndexSnapshot.key(token);
+        lock.writeLock().lock();
+        try {
+            int ord = ordinal(fileId);
+            if (ord < 0) {
+                ord = base.files() + recentFileIds.size();
+                recentOrdinals.put(fileId, ord);
+                recentFileIds.add(fileId);
+            } else if (base.contains(key, ord) || frozen.getOrDefault(token, EMPTY).contains(ord)) {
+                return false;
+            }
+            return recent.computeIfAbsent(token, k -> new PostingList()).add(ord);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void checkpoint() throws IOException {
+        synchronized (checkpointing) {
+            long start = System.nanoTime();
+            // 1) rotate: records from here on go to a fresh log; everything in the
+            //    rotated one is already applied to the map, and forced first, as
+            //    writers still waiting in sync() will only force the new log.
+            synchronized (syncLock) {
+                synchronized (this) {
+                    if (walRecords.get() == 0) return;
+                    wal.flush();
+                    walStream.getChannel().force(false);
+                    synced = appended;
+                    wal.close();
+                    Files.move(walFile, oldWalFile, StandardCopyOption.REPLACE_EXISTING);
+                    wal = openWal();
+                    walRecords.set(0);
+                }
+            }
+            // 2) snapshot without blocking writers; later records are replayed on top (adds are idempotent)
+            writeSnapshot();
+            // 3) the rotated log is now covered by the snapshot
+            Files.deleteIfExists(oldWalFile);
+            ServerMetrics.record("metadata.checkpoint", System.nanoTime() - start);
+        }
+    }
+
+    // Merges the snapshot and everything added so far into the next generation
+    // and maps it in place of the old one. Adds go on meanwhile, into a fresh layer.
+    private void writeSnapshot() throws IOException {
+        IndexSnapshot from;
+        Map<String, PostingList> added;
+        List<String> newFiles;
+        PostingList retired = new PostingList();
+        lock.writeLock().lock();
+        try {
+            if (frozen.isEmpty()) frozen = recent;
+            else recent.forEach((tok, list) -> frozen.merge(tok, list, PostingList::or)); // after a failed write
+            recent = new HashMap<>();
+            from = base;
+            added = frozen;
+            newFiles = List.copyOf(recentFileIds);
+            // retired files the snapshot has an ordinal for; later ones stay in deleted
+            for (int i = 0; i < deleted.size(); i++) if (deleted.get(i) < base.files() + newFiles.size()) retired.add(deleted.get(i));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Path next = generationFile(generation + 1);
+        Path tmp = next.resolveSibling(next.getFileName() + ".tmp");
+        IndexSnapshot.write(tmp, from, added, newFiles, retired);
+        Files.move(tmp, next, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        IndexSnapshot opened = IndexSnapshot.open(next);
+        lock.writeLock().lock();
+        try {
+            base = opened;
+            frozen = new HashMap<>();
+            recentFileIds.subList(0, newFiles.size()).clear();
+            for (int i = 0; i < newFiles.size(); i++) recentOrdinals.remove(newFiles.get(i), from.files() + i);
+            deleted = deleted.andNot(retired);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        generation++;
+        deleteOldGenerations();
+    }
+
+    private Path generationFile(long gen) {
+        return snapshotFile.resolveSibling(snapshotFile.getFileName() + "." + gen);
+    }
+
+    // Maps the newest snapshot that opens; older generations are removed.
+    private void openSnapshot() {
+        List<Long> gens = generations();
+        for (int i = gens.size() - 1; i >= 0; i--) {
+            try {
+                base = IndexSnapshot.open(generationFile(gens.get(i)));
+                generation = gens.get(i);
+                break;
+            } catch (IOException e) {
+                System.err.println("Error loading metadata: " + e.getMessage());
+            }
+        }
+        deleteOldGenerations();
+    }
+
+    // Snapshots still mapped cannot be deleted on every OS; those go at the next start.
+    private void deleteOldGenerations() {
+        for (long gen : generations()) {
+            if (gen >= generation) continue;
+            try {
+                Files.deleteIfExists(generationFile(gen));
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private List<Long> generations() {
+        String prefix = snapshotFile.getFileName() + ".";
+        List<Long> gens = new ArrayList<>();
+        Path dir = snapshotFile.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path f : files) {
+                String suffix = f.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) gens.add(Long.parseLong(suffix));
+            }
+        } catch (IOException e) {
+            System.err.println("Error listing metadata snapshots: " + e.getMessage());
+        }
+        Collections.sort(gens);
+        return gens;
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpointer.shutdownNow();
+        synchronized (syncLock) {
+            synchronized (this) {
+                wal.close();
+            }
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            System.err.println("Error checkpointing metadata: " + e.getMessage());
+        }
+    }
+
+    // Caller holds the monitor (or is the constructor).
+    private DataOutputStream openWal() throws IOException {
+        walStream = new FileOutputStream(walFile.toFile(), true);
+        return new DataOutputStream(new BufferedOutputStream(walStream));
+    }
+
+    // The serialized map written by servers before the mapped snapshots; read once
+    // and converted. True when there was one.
+    @SuppressWarnings("unchecked")
+    private boolean loadLegacy(Path legacy) {
+        if (!Files.exists(legacy)) return false;
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(legacy)))) {
+            Map<String, Set<String>> snap = (Map<String, Set<String>>) ois.readObject();
+            snap.forEach((tok, ids) -> ids.forEach(id -> add(tok, id)));
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error loading metadata: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void replay(Path log) throws IOException {
+        if (!Files.exists(log)) return;
+        long n = 0, good = 0;
+        CountingInput counter = new CountingInput(Files.newInputStream(log));
+        try (DataInputStream in = new DataInputStream(counter)) {
+            while (true) {
+                byte op = in.readByte();
+                String tok = in.readUTF();
+                String fileId = in.readUTF();
+                if (op == OP_ADD) add(tok, fileId);
+                else if (op == OP_REMOVE) retire(fileId);
+                good = counter.count;
+                n++;
+            }
+        } catch (EOFException e) {
+            // end of log
+        }
+        walRecords.addAndGet(n);
+        if (Files.size(log) > good) {
+            // torn last record from a crash: cut it so new appends start on a record boundary
+            try (FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+            }
+        }
+    }
+
+    private static final class CountingInput extends BufferedInputStream {
+        long count;
+
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
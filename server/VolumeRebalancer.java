@@ -0,0 +1,27 @@
+import java.io.*;
+import java.nio.file.*;
+
+// Offline tool for adding a volume: append the new directory to VOLUMES in
+// serverconfig.txt, stop the server, run this from the server folder, start the
+// server again. Moves every block that now hashes to another volume (about
+// 1 / volumes of them for one new volume) and removes the old copy. Running it
+// again is harmless; a run that was interrupted just finishes the job.
+public class VolumeRebalancer {
+    public static void main(String[] args) throws IOException {
+        ServerConfig cfg = ServerConfig.load(Paths.get("serverconfig.txt"));
+        if (cfg.volumes.isEmpty()) {
+            System.out.println("VOLUMES is not set in serverconfig.txt; nothing to rebalance");
+            return;
+        }
+        try (ShardedBlockStore store = new ShardedBlockStore(cfg.volumes, cfg.volumeThreads, dir -> BlockStore.open(cfg, dir))) {
+            long start = System.nanoTime();
+            int[] moved = store.rebalance();
+            int total = 0;
+            for (int i = 0; i < moved.length; i++) {
+                System.out.println(store.dirs().get(i) + ": moved " + moved[i] + " blocks away");
+                total += moved[i];
+            }
+            System.out.printf("Rebalanced %d blocks in %d ms%n", total, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+}